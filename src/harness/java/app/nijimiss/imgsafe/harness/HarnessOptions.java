@@ -0,0 +1,121 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.harness;
+
+import app.nijimiss.imgsafe.pipeline.ExecutionMode;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// --files=2000 --vision-latency=300 のような "--名前=値" 形式の引数を受け取る
+@Data
+public class HarnessOptions {
+    private int files = 2000;
+    private int imagePool = 0; // 0の場合はファイルと同数 (重複なし)
+    private int pageSize = 100;
+    private int batchSize = 16;
+    private int users = 100;
+    private List<ExecutionMode> modes = List.of(ExecutionMode.PIPELINE, ExecutionMode.VIRTUAL);
+    private boolean serial = true; // パイプライン化する前の逐次処理も計測する
+    private int warmupFiles = 200;
+    private long seed = 42;
+    private int timeoutSeconds = 600;
+
+    private String sizes = "32k:0.5,128k:0.35,512k:0.12,2m:0.03";
+    private double sensitiveRate = 0.05;
+    private double jitter = 0.2;
+
+    private long misskeyLatency = 30;
+    private double misskeyErrorRate = 0;
+    private double updateRateLimitRate = 0; // センシティブ指定の要求に429を返す割合
+    private long imageLatency = 50;
+    private double imageErrorRate = 0;
+    private long imageBandwidthKbps = 0; // 0の場合は制限しない
+    private long visionLatency = 300;
+    private double visionErrorRate = 0;
+    private long webhookLatency = 50;
+
+    private int quota = 0; // 0の場合は無制限
+    private boolean verdictCache = true;
+    private boolean nearDuplicate = false;
+    private boolean preprocess = false; // 本体の既定値に合わせる
+    private boolean webhook = true;
+    private boolean resilience = false; // 本体の既定値に合わせる
+
+    public static HarnessOptions parse(String[] args) {
+        Map<String, String> values = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("="))
+                throw new IllegalArgumentException("Arguments must be in the form --name=value: " + arg);
+            int separator = arg.indexOf('=');
+            values.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+
+        HarnessOptions options = new HarnessOptions();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            String value = entry.getValue();
+            switch (entry.getKey()) {
+                case "files" -> options.files = Integer.parseInt(value);
+                case "image-pool" -> options.imagePool = Integer.parseInt(value);
+                case "page-size" -> options.pageSize = Integer.parseInt(value);
+                case "batch-size" -> options.batchSize = Integer.parseInt(value);
+                case "users" -> options.users = Integer.parseInt(value);
+                case "modes" -> options.modes = parseModes(value);
+                case "serial" -> options.serial = Boolean.parseBoolean(value);
+                case "warmup-files" -> options.warmupFiles = Integer.parseInt(value);
+                case "seed" -> options.seed = Long.parseLong(value);
+                case "timeout-seconds" -> options.timeoutSeconds = Integer.parseInt(value);
+                case "sizes" -> options.sizes = value;
+                case "sensitive-rate" -> options.sensitiveRate = Double.parseDouble(value);
+                case "jitter" -> options.jitter = Double.parseDouble(value);
+                case "misskey-latency" -> options.misskeyLatency = Long.parseLong(value);
+                case "misskey-error-rate" -> options.misskeyErrorRate = Double.parseDouble(value);
+                case "update-rate-limit-rate" -> options.updateRateLimitRate = Double.parseDouble(value);
+                case "image-latency" -> options.imageLatency = Long.parseLong(value);
+                case "image-error-rate" -> options.imageErrorRate = Double.parseDouble(value);
+                case "image-bandwidth-kbps" -> options.imageBandwidthKbps = Long.parseLong(value);
+                case "vision-latency" -> options.visionLatency = Long.parseLong(value);
+                case "vision-error-rate" -> options.visionErrorRate = Double.parseDouble(value);
+                case "webhook-latency" -> options.webhookLatency = Long.parseLong(value);
+                case "quota" -> options.quota = Integer.parseInt(value);
+                case "verdict-cache" -> options.verdictCache = Boolean.parseBoolean(value);
+                case "near-duplicate" -> options.nearDuplicate = Boolean.parseBoolean(value);
+                case "preprocess" -> options.preprocess = Boolean.parseBoolean(value);
+                case "webhook" -> options.webhook = Boolean.parseBoolean(value);
+                case "resilience" -> options.resilience = Boolean.parseBoolean(value);
+                default -> throw new IllegalArgumentException("Unknown option: --" + entry.getKey());
+            }
+        }
+        SizeDistribution.parse(options.sizes); // 書式の確認
+        return options;
+    }
+
+    private static List<ExecutionMode> parseModes(String value) {
+        List<ExecutionMode> modes = new ArrayList<>();
+        for (String mode : value.split(","))
+            modes.add(ExecutionMode.valueOf(mode.trim().toUpperCase(Locale.ROOT)));
+        return modes;
+    }
+
+    public int getEffectiveImagePool() {
+        return imagePool > 0 ? Math.min(imagePool, files) : files;
+    }
+}
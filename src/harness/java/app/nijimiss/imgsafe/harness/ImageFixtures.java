@@ -0,0 +1,158 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.harness;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+// 検査対象の画像をJPEGで生成し、ディスクに保存して実行間で再利用する
+@Slf4j
+public class ImageFixtures {
+    private static final int MIN_EDGE = 420; // checking_image_size_minの既定値 (400px) を超える大きさ
+    private static final int MAX_EDGE = 4096;
+
+    private final File directory;
+    private final List<Fixture> fixtures;
+
+    public ImageFixtures(File directory, SizeDistribution distribution, int count, long seed) {
+        this.directory = directory;
+        if (!directory.exists() && !directory.mkdirs())
+            throw new IllegalStateException("Failed to create " + directory);
+
+        Random random = new Random(seed);
+        long[] targets = new long[count];
+        for (int i = 0; i < count; i++)
+            targets[i] = distribution.sample(random);
+
+        long started = System.currentTimeMillis();
+        fixtures = IntStream.range(0, count).parallel()
+                .mapToObj(i -> load(i, targets[i], seed))
+                .toList();
+        log.info("Prepared {} images in {} ms.", count, System.currentTimeMillis() - started);
+    }
+
+    public Fixture get(int index) {
+        return fixtures.get(index);
+    }
+
+    public int size() {
+        return fixtures.size();
+    }
+
+    public byte[] read(int index) throws IOException {
+        return Files.readAllBytes(fixtures.get(index).file().toPath());
+    }
+
+    private Fixture load(int index, long targetSize, long seed) {
+        File file = new File(directory, seed + "-" + index + "-" + targetSize + ".jpg");
+        try {
+            if (!file.exists()) {
+                byte[] bytes = generate(new Random(seed * 31 + index), targetSize);
+                File temp = new File(file.getPath() + ".tmp");
+                Files.write(temp.toPath(), bytes);
+                Files.move(temp.toPath(), file.toPath());
+            }
+
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            val image = ImageIO.read(file);
+            return new Fixture(file, image.getWidth(), image.getHeight(), bytes.length, DigestUtils.md5Hex(bytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // 目標サイズに近づくよう、一度エンコードした結果から画素数を補正してもう一度エンコードする
+    private static byte[] generate(Random random, long targetSize) throws IOException {
+        double aspect = 0.75 + random.nextDouble() * 0.6;
+        long seed = random.nextLong();
+        int[] palette = {random.nextInt(0xffffff), random.nextInt(0xffffff), random.nextInt(0xffffff)};
+
+        double pixels = targetSize / 1.5;
+        byte[] encoded = null;
+        for (int pass = 0; pass < 2; pass++) {
+            int width = clamp((int) Math.sqrt(pixels * aspect));
+            int height = clamp((int) (width / aspect));
+            encoded = encode(render(width, height, palette, new Random(seed)));
+            pixels = (double) width * height * targetSize / encoded.length;
+        }
+        return encoded;
+    }
+
+    private static int clamp(int edge) {
+        return Math.max(MIN_EDGE, Math.min(MAX_EDGE, edge));
+    }
+
+    // なめらかなグラデーションにノイズを重ね、写真に近い圧縮率にする
+    // 図形を重ねて、知覚ハッシュが画像ごとに異なるようにする
+    private static BufferedImage render(int width, int height, int[] palette, Random random) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        double fx = 2 + random.nextDouble() * 4;
+        double fy = 2 + random.nextDouble() * 4;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double wave = (Math.sin(x * fx / width * Math.PI) + Math.cos(y * fy / height * Math.PI) + 2) / 4;
+                int base = palette[(int) (wave * palette.length) % palette.length];
+                int noise = random.nextInt(48) - 24;
+                int r = channel((base >> 16) & 0xff, wave, noise);
+                int g = channel((base >> 8) & 0xff, wave, noise);
+                int b = channel(base & 0xff, wave, noise);
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+
+        Graphics2D graphics = image.createGraphics();
+        for (int i = 0; i < 8; i++) {
+            graphics.setColor(new Color(random.nextInt(0xffffff)));
+            int w = width / 8 + random.nextInt(width / 3);
+            int h = height / 8 + random.nextInt(height / 3);
+            if (random.nextBoolean()) {
+                graphics.fillRect(random.nextInt(width - w), random.nextInt(height - h), w, h);
+            } else {
+                graphics.fillOval(random.nextInt(width - w), random.nextInt(height - h), w, h);
+            }
+        }
+        graphics.dispose();
+        return image;
+    }
+
+    private static int channel(int base, double wave, int noise) {
+        return Math.max(0, Math.min(255, (int) (base * (0.5 + wave / 2)) + noise));
+    }
+
+    private static byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", output);
+        return output.toByteArray();
+    }
+
+    public record Fixture(File file, int width, int height, long size, String md5) {
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.harness;
+
+import java.util.Arrays;
+
+// 1画像あたりの処理時間を全件保持し、終了後にパーセンタイルを求める
+public class LatencyRecorder {
+    private long[] values = new long[1024];
+    private int count;
+
+    public synchronized void record(long nanos) {
+        if (count == values.length)
+            values = Arrays.copyOf(values, values.length * 2);
+        values[count++] = nanos;
+    }
+
+    public synchronized int count() {
+        return count;
+    }
+
+    public synchronized double percentileMillis(double percentile) {
+        if (count == 0)
+            return 0;
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))] / 1_000_000.0;
+    }
+}
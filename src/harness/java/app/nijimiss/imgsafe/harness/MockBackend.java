@@ -0,0 +1,244 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.harness;
+
+import app.nijimiss.imgsafe.api.misskey.File;
+import app.nijimiss.imgsafe.api.misskey.Properties;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Misskey、画像の配信、Vision API、Webhookの送信先を1つのサーバーで再現する
+@Slf4j
+public class MockBackend extends Dispatcher {
+    private static final String[] LEVELS = {"VERY_UNLIKELY", "UNLIKELY", "POSSIBLE", "LIKELY", "VERY_LIKELY"};
+    private static final OffsetDateTime CREATED_AT = OffsetDateTime.of(2023, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+
+    private final HarnessOptions options;
+    private final ImageFixtures fixtures;
+    private final ObjectMapper mapper;
+    private final List<File> files;
+
+    final LongAdder misskeyRequests = new LongAdder();
+    final LongAdder imageRequests = new LongAdder();
+    final LongAdder imageBytes = new LongAdder();
+    final LongAdder visionRequests = new LongAdder();
+    final LongAdder visionImages = new LongAdder();
+    final LongAdder flagged = new LongAdder();
+    final LongAdder webhooks = new LongAdder();
+    final LongAdder injectedErrors = new LongAdder();
+
+    public MockBackend(HarnessOptions options, ImageFixtures fixtures, String baseUrl, int fileCount) {
+        this.options = options;
+        this.fixtures = fixtures;
+        mapper = new ObjectMapper()
+                .registerModule(new JavaTimeModule())
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+
+        List<File> list = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            int fixtureIndex = i % fixtures.size();
+            ImageFixtures.Fixture fixture = fixtures.get(fixtureIndex);
+            String url = baseUrl + "/files/" + fixtureIndex + ".jpg";
+            list.add(new File(idOf(i + 1), CREATED_AT.plusSeconds(i), fixture.file().getName(), "image/jpeg",
+                    fixture.md5(), fixture.size(), false, null, new Properties(fixture.width(), fixture.height(), 1),
+                    url, null, url, null, null, null, "user" + (i % Math.max(1, options.getUsers()))));
+        }
+        files = Collections.unmodifiableList(list);
+    }
+
+    // IDは辞書順と作成順が一致するように0埋めする
+    public static String idOf(int index) {
+        return String.format("h%09d", index);
+    }
+
+    public int getFileCount() {
+        return files.size();
+    }
+
+    @NotNull
+    @Override
+    public MockResponse dispatch(@NotNull RecordedRequest request) {
+        String path = request.getPath() != null ? request.getPath() : "";
+        try {
+            if (path.startsWith("/api/")) {
+                misskeyRequests.increment();
+                return misskey(path, request);
+            } else if (path.startsWith("/files/")) {
+                imageRequests.increment();
+                return image(path);
+            } else if (path.startsWith("/v1/images:annotate")) {
+                visionRequests.increment();
+                return vision(request);
+            } else if (path.startsWith("/webhook")) {
+                webhooks.increment();
+                return delayed(new MockResponse().setResponseCode(204), options.getWebhookLatency());
+            }
+            return new MockResponse().setResponseCode(404);
+        } catch (IOException | RuntimeException e) {
+            log.error("Mock backend failed to handle {}", path, e);
+            return new MockResponse().setResponseCode(500);
+        }
+    }
+
+    private MockResponse misskey(String path, RecordedRequest request) throws IOException {
+        if (shouldFail(options.getMisskeyErrorRate()))
+            return error(options.getMisskeyLatency());
+
+        JsonNode body = mapper.readTree(request.getBody().readUtf8());
+        switch (path) {
+            case "/api/admin/drive/files" -> {
+                int limit = body.path("limit").asInt(10);
+                String sinceId = body.path("sinceId").isTextual() ? body.path("sinceId").asText() : null;
+                return json(listFiles(limit, sinceId), options.getMisskeyLatency());
+            }
+            case "/api/admin/drive/show-file" -> {
+                File file = findFile(body.path("fileId").asText());
+                return file != null ? json(file, options.getMisskeyLatency())
+                        : delayed(new MockResponse().setResponseCode(400), options.getMisskeyLatency());
+            }
+            case "/api/drive/files/update" -> {
+                if (shouldFail(options.getUpdateRateLimitRate()))
+                    return delayed(new MockResponse().setResponseCode(429).setHeader("Retry-After", "1"), options.getMisskeyLatency());
+                if (body.path("isSensitive").asBoolean())
+                    flagged.increment();
+                return delayed(new MockResponse().setResponseCode(204), options.getMisskeyLatency());
+            }
+            case "/api/admin/meta" -> {
+                return json(Map.of("version", "harness"), options.getMisskeyLatency());
+            }
+            default -> {
+                return new MockResponse().setResponseCode(404);
+            }
+        }
+    }
+
+    // sinceIdを指定した場合はそれより新しいファイルを古い順に、指定しない場合は新しい順に返す
+    private List<File> listFiles(int limit, String sinceId) {
+        if (sinceId == null) {
+            List<File> latest = new ArrayList<>(files.subList(Math.max(0, files.size() - limit), files.size()));
+            Collections.reverse(latest);
+            return latest;
+        }
+
+        int start = Math.max(0, indexOf(sinceId) + 1);
+        return files.subList(Math.min(start, files.size()), Math.min(start + limit, files.size()));
+    }
+
+    private File findFile(String fileId) {
+        int index = indexOf(fileId);
+        return index >= 0 && index < files.size() ? files.get(index) : null;
+    }
+
+    private static int indexOf(String fileId) {
+        return fileId.startsWith("h") ? Integer.parseInt(fileId.substring(1)) - 1 : -1;
+    }
+
+    private MockResponse image(String path) throws IOException {
+        if (shouldFail(options.getImageErrorRate()))
+            return error(options.getImageLatency());
+
+        int index = Integer.parseInt(path.substring("/files/".length(), path.lastIndexOf('.')));
+        byte[] bytes = fixtures.read(index);
+        imageBytes.add(bytes.length);
+
+        MockResponse response = new MockResponse()
+                .setHeader("Content-Type", "image/jpeg")
+                .setBody(new Buffer().write(bytes));
+        if (options.getImageBandwidthKbps() > 0)
+            response.throttleBody(options.getImageBandwidthKbps() * 1024 / 8 / 10, 100, TimeUnit.MILLISECONDS);
+        return delayed(response, options.getImageLatency());
+    }
+
+    private MockResponse vision(RecordedRequest request) {
+        if (shouldFail(options.getVisionErrorRate()))
+            return error(options.getVisionLatency());
+
+        // Base64の本文に "_" は含まれないため、機能名の出現回数が画像の枚数になる
+        int images = count(request.getBody().readUtf8(), "SAFE_SEARCH_DETECTION");
+        visionImages.add(images);
+
+        StringBuilder builder = new StringBuilder("{\"responses\":[");
+        for (int i = 0; i < images; i++) {
+            if (i > 0)
+                builder.append(',');
+            builder.append("{\"safeSearchAnnotation\":").append(annotation()).append('}');
+        }
+        builder.append("]}");
+        return delayed(new MockResponse()
+                .setHeader("Content-Type", "application/json; charset=utf-8")
+                .setBody(builder.toString()), options.getVisionLatency());
+    }
+
+    private String annotation() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        boolean sensitive = random.nextDouble() < options.getSensitiveRate();
+        String adult = sensitive ? LEVELS[3 + random.nextInt(2)] : LEVELS[random.nextInt(2)];
+        return "{\"adult\":\"" + adult + "\",\"spoof\":\"" + LEVELS[random.nextInt(3)] + "\",\"medical\":\"" + LEVELS[random.nextInt(2)]
+                + "\",\"violence\":\"" + LEVELS[random.nextInt(2)] + "\",\"racy\":\"" + (sensitive ? LEVELS[4] : LEVELS[random.nextInt(3)]) + "\"}";
+    }
+
+    private static int count(String text, String token) {
+        int count = 0;
+        for (int index = text.indexOf(token); index >= 0; index = text.indexOf(token, index + token.length()))
+            count++;
+        return count;
+    }
+
+    private boolean shouldFail(double rate) {
+        if (rate <= 0 || ThreadLocalRandom.current().nextDouble() >= rate)
+            return false;
+        injectedErrors.increment();
+        return true;
+    }
+
+    private MockResponse error(long latency) {
+        return delayed(new MockResponse().setResponseCode(500), latency);
+    }
+
+    private MockResponse json(Object body, long latency) throws IOException {
+        return delayed(new MockResponse()
+                .setHeader("Content-Type", "application/json; charset=utf-8")
+                .setBody(mapper.writeValueAsString(body)), latency);
+    }
+
+    // 指定した遅延の前後にjitterの割合で揺らぎを加える
+    private MockResponse delayed(MockResponse response, long latencyMillis) {
+        if (latencyMillis <= 0)
+            return response;
+        double jitter = options.getJitter() * (ThreadLocalRandom.current().nextDouble() * 2 - 1);
+        return response.setHeadersDelay(Math.max(0, Math.round(latencyMillis * (1 + jitter))), TimeUnit.MILLISECONDS);
+    }
+}
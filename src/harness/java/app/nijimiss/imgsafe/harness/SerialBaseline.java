@@ -0,0 +1,106 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.harness;
+
+import app.nijimiss.imgsafe.api.ImageDownloader;
+import app.nijimiss.imgsafe.api.misskey.File;
+import app.nijimiss.imgsafe.api.misskey.MisskeyApiClient;
+import app.nijimiss.imgsafe.classifier.ImageClassifier;
+import app.nijimiss.imgsafe.judge.JudgingRules;
+import app.nijimiss.imgsafe.webhook.WebhookManager;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+
+// パイプライン化する前のImageCheckTaskと同じく、1ファイルずつ取得・判定・反映を順に行う比較用の処理
+@Slf4j
+public class SerialBaseline {
+    private static final int CHECKING_IMAGE_SIZE_MIN = 400;
+
+    private final MisskeyApiClient misskey;
+    private final ImageDownloader downloader;
+    private final ImageClassifier classifier;
+    private final JudgingRules judgingRules;
+    private final WebhookManager webhookManager;
+
+    public SerialBaseline(MisskeyApiClient misskey, ImageDownloader downloader, ImageClassifier classifier,
+                          JudgingRules judgingRules, WebhookManager webhookManager) {
+        this.misskey = misskey;
+        this.downloader = downloader;
+        this.classifier = classifier;
+        this.judgingRules = judgingRules;
+        this.webhookManager = webhookManager;
+    }
+
+    // 処理時間はページを取得してから各ファイルの処理が終わるまでとし、パイプラインの投入から完了までに揃える
+    public int run(String sinceId, int pageSize, int fileCount, long deadlineNanos, LatencyRecorder latencies) throws IOException {
+        int checked = 0;
+        while (checked < fileCount && System.nanoTime() < deadlineNanos) {
+            long fetched = System.nanoTime();
+            val files = misskey.getFiles(pageSize, sinceId);
+            if (files.isEmpty())
+                break;
+
+            List<File> images = files.stream()
+                    .filter(SerialBaseline::isCheckTarget)
+                    .sorted(Comparator.comparing(File::createdAt))
+                    .toList();
+            for (File file : images) {
+                try {
+                    check(file);
+                    latencies.record(System.nanoTime() - fetched);
+                    checked++;
+                } catch (FileNotFoundException e) {
+                    log.warn("Image {} is not found.", file.id());
+                } catch (IOException e) {
+                    log.warn("Failed to check image {}: {}", file.id(), e.getMessage());
+                }
+            }
+            sinceId = files.stream().max(Comparator.comparing(File::createdAt)).orElseThrow().id();
+        }
+        return checked;
+    }
+
+    private void check(File file) throws IOException {
+        val fullFileInfo = misskey.getFile(file.id());
+        val image = downloader.download(StringUtils.defaultIfEmpty(fullFileInfo.webpublicUrl(), fullFileInfo.url()));
+        try {
+            val classification = classifier.classify(List.of(image)).get(0);
+            if (classification.annotation() == null)
+                throw new IOException(classification.error());
+
+            if (judgingRules.isSensitive(file, classification.annotation())) {
+                misskey.updateFile(file, true);
+                if (webhookManager != null)
+                    webhookManager.sendWebhook(file, file.userId(), classification.annotation());
+            }
+        } finally {
+            image.release();
+        }
+    }
+
+    private static boolean isCheckTarget(File file) {
+        return (file.type().equals("image/png") || file.type().equals("image/jpeg") || file.type().equals("image/gif"))
+                && !file.isSensitive()
+                && file.properties().height() > CHECKING_IMAGE_SIZE_MIN && file.properties().width() > CHECKING_IMAGE_SIZE_MIN;
+    }
+}
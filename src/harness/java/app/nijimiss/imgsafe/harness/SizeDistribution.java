@@ -0,0 +1,80 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.harness;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+// "32k:0.5,128k:0.35,2m:0.15" の形式で、ファイルサイズとその割合を指定する
+public class SizeDistribution {
+    private final long[] sizes;
+    private final double[] cumulative;
+
+    private SizeDistribution(long[] sizes, double[] cumulative) {
+        this.sizes = sizes;
+        this.cumulative = cumulative;
+    }
+
+    public static SizeDistribution parse(String spec) {
+        List<Long> sizes = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+        double total = 0;
+        for (String entry : spec.split(",")) {
+            String[] pair = entry.trim().split(":");
+            if (pair.length != 2)
+                throw new IllegalArgumentException("Invalid size distribution entry: " + entry);
+            double weight = Double.parseDouble(pair[1]);
+            if (weight <= 0)
+                throw new IllegalArgumentException("Weight must be positive: " + entry);
+            sizes.add(parseSize(pair[0]));
+            weights.add(weight);
+            total += weight;
+        }
+
+        double[] cumulative = new double[weights.size()];
+        double sum = 0;
+        for (int i = 0; i < cumulative.length; i++) {
+            sum += weights.get(i) / total;
+            cumulative[i] = sum;
+        }
+        return new SizeDistribution(sizes.stream().mapToLong(Long::longValue).toArray(), cumulative);
+    }
+
+    static long parseSize(String value) {
+        String lower = value.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+        if (lower.endsWith("k")) {
+            unit = 1024;
+        } else if (lower.endsWith("m")) {
+            unit = 1024 * 1024;
+        }
+        if (unit != 1)
+            lower = lower.substring(0, lower.length() - 1);
+        return (long) (Double.parseDouble(lower) * unit);
+    }
+
+    public long sample(Random random) {
+        double value = random.nextDouble();
+        for (int i = 0; i < cumulative.length; i++) {
+            if (value < cumulative[i])
+                return sizes[i];
+        }
+        return sizes[sizes.length - 1];
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.harness;
+
+import app.nijimiss.imgsafe.ImageCheckTask;
+import app.nijimiss.imgsafe.ImgSafeConfig;
+import app.nijimiss.imgsafe.ImgSafeTemp;
+import app.nijimiss.imgsafe.api.HttpClientFactory;
+import app.nijimiss.imgsafe.api.ImageDownloader;
+import app.nijimiss.imgsafe.api.misskey.MisskeyApiClient;
+import app.nijimiss.imgsafe.api.resilience.ResilienceInterceptor;
+import app.nijimiss.imgsafe.api.vision.CloudVisionApiClient;
+import app.nijimiss.imgsafe.api.vision.VisionQuota;
+import app.nijimiss.imgsafe.cache.NearDuplicateIndex;
+import app.nijimiss.imgsafe.cache.VerdictCache;
+import app.nijimiss.imgsafe.classifier.VisionClassifier;
+import app.nijimiss.imgsafe.judge.JudgingRules;
+import app.nijimiss.imgsafe.pipeline.CheckpointTracker;
+import app.nijimiss.imgsafe.pipeline.ExecutionMode;
+import app.nijimiss.imgsafe.pipeline.FlagRetryQueue;
+import app.nijimiss.imgsafe.pipeline.FlagUpdater;
+import app.nijimiss.imgsafe.pipeline.ImagePipeline;
+import app.nijimiss.imgsafe.pipeline.ImagePreprocessor;
+import app.nijimiss.imgsafe.pipeline.VisionBacklog;
+import app.nijimiss.imgsafe.webhook.WebhookDispatcher;
+import app.nijimiss.imgsafe.webhook.WebhookManager;
+import app.nijimiss.imgsafe.webhook.WebhookRetryQueue;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import okhttp3.mockwebserver.MockWebServer;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.slf4j.Logger.ROOT_LOGGER_NAME;
+
+// モックのMisskeyとVision APIに対してImageCheckTaskを実行し、実行モードごとの処理性能を計測する
+@Slf4j
+public class ThroughputHarness {
+    private static final File RESULT_FILE = new File("harness-results.json");
+
+    public static void main(String[] args) throws Exception {
+        HarnessOptions options;
+        try {
+            options = HarnessOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        // 計測中のログ出力が結果に影響しないよう、ハーネス以外は警告以上のみ出力する
+        ((Logger) LoggerFactory.getLogger(ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+        ((Logger) LoggerFactory.getLogger(ThroughputHarness.class.getPackageName())).setLevel(Level.INFO);
+
+        log.info("Options: {}", options);
+        val fixtures = new ImageFixtures(new File("fixtures"), SizeDistribution.parse(options.getSizes()),
+                options.getEffectiveImagePool(), options.getSeed());
+
+        List<ExecutionMode> modes = new ArrayList<>(options.getModes());
+        if (modes.contains(ExecutionMode.VIRTUAL) && !ImagePipeline.isVirtualThreadAvailable()) {
+            log.warn("Virtual threads are not available on Java {}. Skipping virtual mode.", Runtime.version().feature());
+            modes.remove(ExecutionMode.VIRTUAL);
+        }
+
+        // JITの最適化が最初のモードだけに不利に働かないよう、計測前に一度処理を流す
+        if (options.getWarmupFiles() > 0 && !modes.isEmpty()) {
+            log.info("Warming up with {} files...", options.getWarmupFiles());
+            run(options, fixtures, modes.get(0), Math.min(options.getWarmupFiles(), options.getFiles()));
+        }
+
+        List<RunResult> results = new ArrayList<>();
+        if (options.isSerial()) {
+            log.info("Running {} files serially...", options.getFiles());
+            val result = runSerial(options, fixtures, options.getFiles());
+            log.info("{}", result);
+            results.add(result);
+        }
+        for (ExecutionMode mode : modes) {
+            log.info("Running {} files in {} mode...", options.getFiles(), mode);
+            val result = run(options, fixtures, mode, options.getFiles());
+            log.info("{}", result);
+            results.add(result);
+        }
+
+        printSummary(results);
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT)
+                .writeValue(RESULT_FILE, new Report(options, results));
+        log.info("Results written to {}", RESULT_FILE.getAbsolutePath());
+        System.exit(0);
+    }
+
+    private static RunResult run(HarnessOptions options, ImageFixtures fixtures, ExecutionMode mode, int fileCount) throws IOException, InterruptedException {
+        try (MockWebServer server = new MockWebServer()) {
+            server.start();
+            String baseUrl = "http://" + server.getHostName() + ":" + server.getPort();
+            val backend = new MockBackend(options, fixtures, baseUrl, fileCount);
+            server.setDispatcher(backend);
+
+            val httpClientFactory = new HttpClientFactory(new ImgSafeConfig.Http());
+            val resilience = new ImgSafeConfig.Resilience();
+            val misskey = new MisskeyApiClient(baseUrl, "harness", options.isResilience()
+                    ? httpClientFactory.newClient(new ResilienceInterceptor("misskey", resilience.getMisskey()))
+                    : httpClientFactory.newClient());
+            val quota = new VisionQuota(options.getQuota());
+            val vision = new CloudVisionApiClient("harness", quota, options.isResilience()
+                    ? httpClientFactory.newClient(new ResilienceInterceptor("vision", resilience.getVision()))
+                    : httpClientFactory.newClient(), baseUrl + "/v1/images:annotate");
+            WebhookDispatcher webhook = null;
+            if (options.isWebhook()) {
+                val webhookRetryFile = new File("harness-webhook-retry.json");
+                webhookRetryFile.delete();
+                val webhookConfig = new ImgSafeConfig.Webhook();
+                webhookConfig.setCoalesceWindowMillis(200);
+                webhook = new WebhookDispatcher(new WebhookManager(baseUrl + "/webhook", "{\"content\":\"{fileId} {checkResult}\"}",
+                        httpClientFactory.newClient()), new WebhookRetryQueue(webhookRetryFile), webhookConfig);
+                webhook.start();
+            }
+
+            val settings = new ImgSafeConfig.Settings();
+            settings.setJudgingScore(15);
+            val pipelineConfig = new ImgSafeConfig.Pipeline();
+            pipelineConfig.setExecutionMode(mode);
+
+            // 実行ごとに最初のファイルの直前から処理を始める
+            ImgSafeTemp.setLastCheckedFile(MockBackend.idOf(0));
+            val pipeline = new ImagePipeline(misskey, new VisionClassifier(vision), webhook,
+                    new ImageDownloader(httpClientFactory.newClient()), JudgingRules.compile(settings),
+                    options.getBatchSize(), pipelineConfig, new CheckpointTracker(ImgSafeTemp::setLastCheckedFile));
+
+            val flagRetryFile = new File("harness-flag-retry.json");
+            flagRetryFile.delete();
+            val flagUpdater = new FlagUpdater(misskey, new FlagRetryQueue(flagRetryFile), new ImgSafeConfig.FlagUpdate());
+            flagUpdater.start();
+            pipeline.setFlagUpdater(flagUpdater);
+
+            if (options.isVerdictCache()) {
+                val cacheFile = new File("harness-cache.json");
+                cacheFile.delete();
+                pipeline.setVerdictCache(new VerdictCache(cacheFile, 100000, TimeUnit.DAYS.toMillis(30)));
+            }
+            val nearDuplicateIndex = options.isNearDuplicate() ? new NearDuplicateIndex(4, 1000000) : null;
+            if (nearDuplicateIndex != null)
+                pipeline.setNearDuplicateIndex(nearDuplicateIndex);
+            if (options.isPreprocess())
+                pipeline.setPreprocessor(new ImagePreprocessor(640, 0.85f));
+
+            VisionBacklog backlog = null;
+            if (options.getQuota() > 0) {
+                val backlogFile = new File("harness-backlog.json");
+                backlogFile.delete();
+                backlog = new VisionBacklog(backlogFile);
+                pipeline.setBacklog(backlog);
+            }
+
+            Set<String> completed = ConcurrentHashMap.newKeySet();
+            val latencies = new LatencyRecorder();
+            pipeline.setListener((file, checked, elapsedNanos) -> {
+                if (checked && completed.add(file.id()))
+                    latencies.record(elapsedNanos);
+            });
+
+            val heap = new HeapSampler();
+            val task = new ImageCheckTask(misskey, pipeline);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.getTimeoutSeconds());
+            long started = System.nanoTime();
+            heap.start();
+            try {
+                while (completed.size() < fileCount && System.nanoTime() < deadline)
+                    task.poll(options.getPageSize());
+            } finally {
+                heap.stop();
+                pipeline.shutdown();
+                flagUpdater.shutdown();
+                if (webhook != null)
+                    webhook.shutdown();
+            }
+            double seconds = (System.nanoTime() - started) / 1e9;
+
+            if (completed.size() < fileCount)
+                log.warn("Timed out after {} of {} files.", completed.size(), fileCount);
+
+            return new RunResult(mode.name().toLowerCase(), completed.size(), seconds, completed.size() / seconds,
+                    latencies.percentileMillis(50), latencies.percentileMillis(99), latencies.percentileMillis(100),
+                    heap.peakBytes() / 1048576.0, heap.gcCount(), heap.gcMillis(),
+                    quota.getUsed(), backlog != null ? backlog.size() : 0,
+                    backend.misskeyRequests.sum(), backend.imageRequests.sum(), backend.imageBytes.sum() / 1048576.0,
+                    backend.visionRequests.sum(), backend.visionImages.sum(),
+                    nearDuplicateIndex != null ? nearDuplicateIndex.getHits() : 0, backend.flagged.sum(),
+                    backend.webhooks.sum(), backend.injectedErrors.sum());
+        }
+    }
+
+    // パイプライン化する前と同じ逐次処理。キャッシュや前処理は使わない
+    private static RunResult runSerial(HarnessOptions options, ImageFixtures fixtures, int fileCount) throws IOException {
+        try (MockWebServer server = new MockWebServer()) {
+            server.start();
+            String baseUrl = "http://" + server.getHostName() + ":" + server.getPort();
+            val backend = new MockBackend(options, fixtures, baseUrl, fileCount);
+            server.setDispatcher(backend);
+
+            val httpClientFactory = new HttpClientFactory(new ImgSafeConfig.Http());
+            val misskey = new MisskeyApiClient(baseUrl, "harness", httpClientFactory.newClient());
+            val quota = new VisionQuota(options.getQuota());
+            val vision = new CloudVisionApiClient("harness", quota, httpClientFactory.newClient(), baseUrl + "/v1/images:annotate");
+            val webhook = options.isWebhook()
+                    ? new WebhookManager(baseUrl + "/webhook", "{\"content\":\"{fileId} {checkResult}\"}", httpClientFactory.newClient())
+                    : null;
+            val settings = new ImgSafeConfig.Settings();
+            settings.setJudgingScore(15);
+            val serial = new SerialBaseline(misskey, new ImageDownloader(httpClientFactory.newClient()),
+                    new VisionClassifier(vision), JudgingRules.compile(settings), webhook);
+
+            val heap = new HeapSampler();
+            val latencies = new LatencyRecorder();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.getTimeoutSeconds());
+            long started = System.nanoTime();
+            heap.start();
+            int checked;
+            try {
+                checked = serial.run(MockBackend.idOf(0), options.getPageSize(), fileCount, deadline, latencies);
+            } finally {
+                heap.stop();
+            }
+            double seconds = (System.nanoTime() - started) / 1e9;
+
+            if (checked < fileCount)
+                log.warn("Timed out after {} of {} files.", checked, fileCount);
+
+            return new RunResult("serial", checked, seconds, checked / seconds,
+                    latencies.percentileMillis(50), latencies.percentileMillis(99), latencies.percentileMillis(100),
+                    heap.peakBytes() / 1048576.0, heap.gcCount(), heap.gcMillis(),
+                    quota.getUsed(), 0,
+                    backend.misskeyRequests.sum(), backend.imageRequests.sum(), backend.imageBytes.sum() / 1048576.0,
+                    backend.visionRequests.sum(), backend.visionImages.sum(), 0, backend.flagged.sum(),
+                    backend.webhooks.sum(), backend.injectedErrors.sum());
+        }
+    }
+
+    private static void printSummary(List<RunResult> results) {
+        StringBuilder builder = new StringBuilder("\n");
+        builder.append(String.format("%-10s %8s %10s %10s %10s %10s %10s %8s %8s%n",
+                "mode", "files", "files/s", "p50 ms", "p99 ms", "max ms", "heap MB", "gc ms", "quota"));
+        for (RunResult result : results) {
+            builder.append(String.format("%-10s %8d %10.1f %10.1f %10.1f %10.1f %10.1f %8d %8d%n",
+                    result.mode(), result.files(), result.throughput(), result.p50Millis(),
+                    result.p99Millis(), result.maxMillis(), result.peakHeapMegabytes(), result.gcMillis(), result.quotaUsed()));
+        }
+        log.info("{}", builder);
+    }
+
+    // ヒープ使用量のピークと、計測中のGC回数・時間を記録する
+    private static final class HeapSampler {
+        private final AtomicLong peak = new AtomicLong();
+        private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+                .namingPattern("harness-heap-sampler")
+                .daemon(true)
+                .build());
+        private long gcCountBefore;
+        private long gcMillisBefore;
+        private long gcCount;
+        private long gcMillis;
+
+        void start() {
+            System.gc();
+            gcCountBefore = collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+            gcMillisBefore = collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+            sampler.scheduleAtFixedRate(() -> peak.accumulateAndGet(
+                    ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(), Math::max), 0, 50, TimeUnit.MILLISECONDS);
+        }
+
+        void stop() {
+            sampler.shutdownNow();
+            gcCount = collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum() - gcCountBefore;
+            gcMillis = collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum() - gcMillisBefore;
+        }
+
+        long peakBytes() {
+            return peak.get();
+        }
+
+        long gcCount() {
+            return gcCount;
+        }
+
+        long gcMillis() {
+            return gcMillis;
+        }
+    }
+
+    public record RunResult(String mode, int files, double seconds, double throughput,
+                            double p50Millis, double p99Millis, double maxMillis,
+                            double peakHeapMegabytes, long gcCount, long gcMillis,
+                            int quotaUsed, int backlogSize,
+                            long misskeyRequests, long imageRequests, double imageMegabytes,
+                            long visionRequests, long visionImages, long nearDuplicateHits, long flagged,
+                            long webhooks, long injectedErrors) {
+    }
+
+    public record Report(HarnessOptions options, List<RunResult> results) {
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.api.misskey;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MisskeyJsonBenchmark {
+    private static final TypeReference<List<File>> FILES_TYPE = new TypeReference<>() {
+    };
+
+    @Param({"10", "100"})
+    private int pageSize;
+
+    private ObjectMapper mapper;
+    private String page;
+
+    @Setup
+    public void setUp() {
+        mapper = MisskeyApiClient.createMapper();
+
+        // /api/admin/drive/files の応答と同じ形のページを生成する
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < pageSize; i++) {
+            if (i > 0)
+                builder.append(',');
+            builder.append("{\"id\":\"9a").append(String.format("%08d", i)).append("\",")
+                    .append("\"createdAt\":\"2023-01-0").append(i % 9 + 1).append("T12:34:56.789Z\",")
+                    .append("\"name\":\"image").append(i).append(".png\",")
+                    .append("\"type\":\"image/png\",")
+                    .append("\"md5\":\"0123456789abcdef0123456789abcdef\",")
+                    .append("\"size\":").append(100000 + i).append(',')
+                    .append("\"isSensitive\":false,")
+                    .append("\"blurhash\":\"eVF$^OI:${M{o#*0-nNFxakD-?xVM}WEWB%iNKxvR-oetmo#R-aen$\",")
+                    .append("\"properties\":{\"width\":1920,\"height\":1080},")
+                    .append("\"url\":\"https://example.com/files/").append(i).append("\",")
+                    .append("\"thumbnailUrl\":\"https://example.com/files/thumbnail-").append(i).append("\",")
+                    .append("\"webpublicUrl\":null,")
+                    .append("\"comment\":null,")
+                    .append("\"folderId\":null,")
+                    .append("\"folder\":null,")
+                    .append("\"userId\":\"9b").append(String.format("%08d", i % 17)).append("\",")
+                    .append("\"user\":{\"id\":\"9b").append(String.format("%08d", i % 17)).append("\",\"name\":null,\"username\":\"user\",\"host\":null}}");
+        }
+        page = builder.append(']').toString();
+    }
+
+    @Benchmark
+    public List<File> deserializeFilesPage() throws IOException {
+        return mapper.readValue(page, FILES_TYPE);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.api.vision;
+
+import okio.BufferedSink;
+import okio.Okio;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class Base64Benchmark {
+    @Param({"1", "10", "50"})
+    private int megabytes;
+
+    private byte[] image;
+
+    @Setup
+    public void setUp() {
+        image = new byte[megabytes * 1024 * 1024];
+        new Random(42).nextBytes(image);
+    }
+
+    @Benchmark
+    public String commonsCodec() {
+        return org.apache.commons.codec.binary.Base64.encodeBase64String(image);
+    }
+
+    @Benchmark
+    public byte[] jdk() {
+        return java.util.Base64.getEncoder().encode(image);
+    }
+
+    @Benchmark
+    public long streaming() throws IOException {
+        SafeSearchRequestBody body = new SafeSearchRequestBody(List.of(ImageSource.ofBytes(image)));
+        try (BufferedSink sink = Okio.buffer(Okio.blackhole())) {
+            body.writeTo(sink);
+        }
+        return body.contentLength();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.api.vision;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.gson.Gson;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Gson・Jacksonで文字列を組み立てる方法と、SafeSearchRequestBodyでストリームに書き込む方法の比較
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class VisionRequestBenchmark {
+    @Param({"65536", "1048576"})
+    private int imageBytes;
+
+    @Param({"1", "16"})
+    private int batchSize;
+
+    private final Gson gson = new Gson();
+    // Gsonと同じくフィールドを直接読む
+    private final ObjectMapper mapper = new ObjectMapper().setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+    private List<byte[]> images;
+    private List<ImageSource> sources;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        images = new ArrayList<>(batchSize);
+        sources = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            byte[] image = new byte[imageBytes];
+            random.nextBytes(image);
+            images.add(image);
+            sources.add(ImageSource.ofBytes(image));
+        }
+    }
+
+    @Benchmark
+    public String gson() {
+        return gson.toJson(createRequests());
+    }
+
+    @Benchmark
+    public String jackson() throws JsonProcessingException {
+        return mapper.writeValueAsString(createRequests());
+    }
+
+    @Benchmark
+    public long streaming() throws IOException {
+        SafeSearchRequestBody body = new SafeSearchRequestBody(sources);
+        try (BufferedSink sink = Okio.buffer(Okio.blackhole())) {
+            body.writeTo(sink);
+        }
+        return body.contentLength();
+    }
+
+    @Benchmark
+    public long streamingToBuffer() throws IOException {
+        Buffer buffer = new Buffer();
+        new SafeSearchRequestBody(sources).writeTo(buffer);
+        long size = buffer.size();
+        buffer.clear();
+        return size;
+    }
+
+    private Requests createRequests() {
+        List<Request> requests = new ArrayList<>(images.size());
+        for (byte[] image : images)
+            requests.add(new Request(new Image(org.apache.commons.codec.binary.Base64.encodeBase64String(image))));
+        return new Requests(requests);
+    }
+
+    // 以前CloudVisionApiClientで組み立てていたリクエストと同じ構造
+    private static final class Requests {
+        private final List<Request> requests;
+
+        private Requests(List<Request> requests) {
+            this.requests = requests;
+        }
+    }
+
+    private static final class Request {
+        private final Image image;
+        private final List<Feature> features = List.of(new Feature());
+
+        private Request(Image image) {
+            this.image = image;
+        }
+    }
+
+    private static final class Image {
+        private final String content;
+
+        private Image(String content) {
+            this.content = content;
+        }
+    }
+
+    private static final class Feature {
+        private final String type = "SAFE_SEARCH_DETECTION";
+    }
+}
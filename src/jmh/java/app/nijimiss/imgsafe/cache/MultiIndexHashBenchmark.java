@@ -0,0 +1,84 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.cache;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// 100万件の知覚ハッシュに対する近傍検索。全件走査との比較
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class MultiIndexHashBenchmark {
+    @Param({"100000", "1000000"})
+    private int entries;
+
+    @Param({"4"})
+    private int maxDistance;
+
+    private MultiIndexHash<Integer> index;
+    private long[] hashes;
+    private long[] queries;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        index = new MultiIndexHash<>(maxDistance, entries);
+        hashes = new long[entries];
+        for (int i = 0; i < entries; i++) {
+            hashes[i] = random.nextLong();
+            index.add(hashes[i], i);
+        }
+
+        // 半分は登録済みのハッシュの近傍、半分は無関係なハッシュで検索する
+        queries = new long[1024];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = i % 2 == 0
+                    ? hashes[random.nextInt(entries)] ^ (1L << random.nextInt(64)) ^ (1L << random.nextInt(64))
+                    : random.nextLong();
+        }
+    }
+
+    @Benchmark
+    public Integer multiIndex() {
+        return index.findNearest(nextQuery());
+    }
+
+    @Benchmark
+    public int linearScan() {
+        long query = nextQuery();
+        int best = -1;
+        int bestDistance = maxDistance + 1;
+        for (int i = 0; i < hashes.length; i++) {
+            int distance = PerceptualHash.distance(query, hashes[i]);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private long nextQuery() {
+        next = (next + 1) & (queries.length - 1);
+        return queries[next];
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.judge;
+
+import app.nijimiss.imgsafe.api.vision.JudgingItem;
+import app.nijimiss.imgsafe.api.vision.LikelinessLevel;
+import app.nijimiss.imgsafe.api.vision.SafeSearchAnnotation;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// 条件式を毎回評価する場合と、事前に計算した判定表を引く場合の比較
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JudgingRulesBenchmark {
+    private static final String RULE = "adult >= LIKELY || (racy >= VERY_LIKELY && violence >= POSSIBLE) || (medical >= LIKELY && !(spoof >= LIKELY))";
+
+    private JudgingCondition condition;
+    private DecisionTable table;
+    private SafeSearchAnnotation[] annotations;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        condition = RuleParser.parse(RULE);
+        table = DecisionTable.compile(condition);
+
+        LikelinessLevel[] levels = LikelinessLevel.values();
+        Random random = new Random(42);
+        annotations = new SafeSearchAnnotation[1024];
+        for (int i = 0; i < annotations.length; i++) {
+            annotations[i] = new SafeSearchAnnotation(levels[random.nextInt(levels.length)], levels[random.nextInt(levels.length)],
+                    levels[random.nextInt(levels.length)], levels[random.nextInt(levels.length)], levels[random.nextInt(levels.length)]);
+        }
+    }
+
+    @Benchmark
+    public boolean decisionTable() {
+        return table.matches(nextAnnotation());
+    }
+
+    @Benchmark
+    public boolean interpreted() {
+        SafeSearchAnnotation annotation = nextAnnotation();
+        LikelinessLevel[] levels = new LikelinessLevel[JudgingItem.values().length];
+        for (JudgingItem item : JudgingItem.values())
+            levels[item.ordinal()] = levelOf(item, annotation);
+        return condition.test(levels);
+    }
+
+    private static LikelinessLevel levelOf(JudgingItem item, SafeSearchAnnotation annotation) {
+        return switch (item) {
+            case ADULT -> annotation.adult();
+            case SPOOF -> annotation.spoof();
+            case MEDICAL -> annotation.medical();
+            case VIOLENCE -> annotation.violence();
+            case RACY -> annotation.racy();
+        };
+    }
+
+    private SafeSearchAnnotation nextAnnotation() {
+        next = (next + 1) & (annotations.length - 1);
+        return annotations[next];
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.webhook;
+
+import app.nijimiss.imgsafe.api.misskey.File;
+import app.nijimiss.imgsafe.api.misskey.Properties;
+import app.nijimiss.imgsafe.api.vision.LikelinessLevel;
+import app.nijimiss.imgsafe.api.vision.SafeSearchAnnotation;
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// 以前のString.replaceを繰り返す実装と、事前に解析したテンプレートの比較
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class WebhookRenderBenchmark {
+    private static final String TEMPLATE = "{\"content\":\"Sensitive image detected.\\nFile: {fileId}\\nURL: {fileUrl}\\n" +
+            "Size: {fileSize}\\nUser: {authorUser}\\nResult: {checkResult}\"}";
+
+    private WebhookManager webhookManager;
+    private File file;
+    private SafeSearchAnnotation annotation;
+    private WebhookEvent event;
+    private List<WebhookEvent> digest;
+
+    @Setup
+    public void setUp() {
+        webhookManager = new WebhookManager("https://example.com/webhook", TEMPLATE);
+        file = new File("9a00000001", OffsetDateTime.now(), "image.png", "image/png", "0123456789abcdef0123456789abcdef",
+                123456, false, null, new Properties(1920, 1080, 0), "https://example.com/files/1", null, null,
+                null, null, null, "9b00000001");
+        annotation = new SafeSearchAnnotation(LikelinessLevel.VERY_LIKELY, LikelinessLevel.UNLIKELY,
+                LikelinessLevel.VERY_UNLIKELY, LikelinessLevel.POSSIBLE, LikelinessLevel.LIKELY);
+        event = WebhookEvent.of(file, file.userId(), annotation);
+        digest = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            digest.add(event);
+    }
+
+    @Benchmark
+    public String chainedReplace() {
+        var messageBody = TEMPLATE.replace("{fileId}", file.id());
+        messageBody = messageBody.replace("{fileUrl}", StringUtils.defaultIfEmpty(file.url(), "unknown"));
+        messageBody = messageBody.replace("{fileSize}", Long.toString(ObjectUtils.defaultIfNull(file.size(), 0L)));
+        messageBody = messageBody.replace("{authorUser}", StringUtils.defaultIfEmpty(file.userId(), "unknown"));
+        messageBody = messageBody.replace("{checkResult}", "adult=" + annotation.adult() +
+                ", spoof=" + annotation.spoof() +
+                ", medical=" + annotation.medical() +
+                ", violence=" + annotation.violence() +
+                ", racy=" + annotation.racy());
+        return messageBody;
+    }
+
+    @Benchmark
+    public String compiled() {
+        return webhookManager.render(file, file.userId(), annotation);
+    }
+
+    @Benchmark
+    public String compiledFromEvent() {
+        return webhookManager.render(event);
+    }
+
+    @Benchmark
+    public String compiledDigest() {
+        return webhookManager.renderDigest(digest);
+    }
+}
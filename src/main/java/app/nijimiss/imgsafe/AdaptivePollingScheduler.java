@@ -0,0 +1,132 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// 直近のアップロード量に合わせてポーリング間隔と1ページあたりの取得件数を調整する
+@Slf4j
+public class AdaptivePollingScheduler {
+    public static final int MISSKEY_MAX_PAGE_SIZE = 100;
+
+    private final ImageCheckTask task;
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+    private final int minPageSize;
+    private final int maxPageSize;
+    private final ScheduledExecutorService executor;
+
+    private long intervalMillis;
+    private int pageSize;
+    private ScheduledFuture<?> nextRun;
+    private boolean running;
+    private boolean triggered;
+
+    public AdaptivePollingScheduler(ImageCheckTask task,
+                                    long minIntervalMillis,
+                                    long maxIntervalMillis,
+                                    long initialIntervalMillis,
+                                    int minPageSize,
+                                    int maxPageSize) {
+        if (minIntervalMillis <= 0 || maxIntervalMillis < minIntervalMillis)
+            throw new IllegalArgumentException("Invalid polling interval bounds");
+        if (minPageSize <= 0 || maxPageSize < minPageSize)
+            throw new IllegalArgumentException("Invalid page size bounds");
+        this.task = task;
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+        this.minPageSize = minPageSize;
+        this.maxPageSize = Math.min(maxPageSize, MISSKEY_MAX_PAGE_SIZE);
+        this.intervalMillis = clamp(initialIntervalMillis, minIntervalMillis, maxIntervalMillis);
+        this.pageSize = minPageSize;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+                .namingPattern("imgsafe-polling")
+                .daemon(false)
+                .build());
+    }
+
+    public void start() {
+        schedule(0);
+    }
+
+    // ストリーミングの再接続時など、次の定期実行を待たずに取得したい場合に使う
+    public synchronized void triggerNow() {
+        if (running) {
+            triggered = true; // 実行中の場合は完了後すぐに再実行する
+            return;
+        }
+        schedule(0);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private synchronized void schedule(long delayMillis) {
+        if (nextRun != null)
+            nextRun.cancel(false);
+        nextRun = executor.schedule(this::runTask, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void runTask() {
+        synchronized (this) {
+            running = true;
+            triggered = false;
+        }
+
+        long delay;
+        try {
+            val result = task.poll(pageSize);
+            delay = adapt(result);
+        } catch (RuntimeException e) {
+            log.error("Image check failed unexpectedly.", e);
+            delay = intervalMillis;
+        }
+
+        synchronized (this) {
+            running = false;
+            schedule(triggered ? 0 : delay);
+        }
+    }
+
+    private synchronized long adapt(ImageCheckTask.PollResult result) {
+        if (result.getFullPages() > 0) {
+            // 取得しきれないほど投稿がある場合は間隔を縮め、まとめて取得する
+            intervalMillis = Math.max(minIntervalMillis, intervalMillis / 2);
+            pageSize = Math.min(maxPageSize, pageSize * 2);
+        } else if (result.getFiles() == 0) {
+            intervalMillis = Math.min(maxIntervalMillis, intervalMillis * 2);
+            pageSize = Math.max(minPageSize, pageSize / 2);
+        } else if (result.getFiles() < pageSize / 2) {
+            pageSize = Math.max(minPageSize, pageSize / 2);
+        }
+
+        log.debug("Next check in {} seconds with page size {}.", TimeUnit.MILLISECONDS.toSeconds(intervalMillis), pageSize);
+        return intervalMillis;
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe;
+
+import app.nijimiss.imgsafe.api.vision.VisionQuota;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+// 更新はメモリ上でまとめ、一定間隔または終了時にのみファイルへ書き出す
+@Slf4j
+public class CheckpointStore {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final File file;
+    private final File tempFile;
+
+    private final AtomicReference<String> lastCheckedFile = new AtomicReference<>();
+    private final AtomicLong lastChecked = new AtomicLong();
+    private final AtomicReference<VisionQuota.Usage> quotaUsage = new AtomicReference<>();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final Object flushLock = new Object();
+
+    private ScheduledExecutorService flusher;
+    private volatile Supplier<VisionQuota.Usage> quotaSource;
+
+    public CheckpointStore(File file) {
+        this.file = file;
+        this.tempFile = new File(file.getPath() + ".tmp");
+        load();
+    }
+
+    public String getLastCheckedFile() {
+        return lastCheckedFile.get();
+    }
+
+    public long getLastChecked() {
+        return lastChecked.get();
+    }
+
+    public int getRequestedCount() {
+        val usage = getQuotaUsage();
+        return usage != null ? usage.used() : 0;
+    }
+
+    public VisionQuota.Usage getQuotaUsage() {
+        val source = quotaSource;
+        return source != null ? source.get() : quotaUsage.get();
+    }
+
+    public void setLastCheckedFile(String fileId) {
+        lastCheckedFile.set(fileId);
+        dirty.set(true);
+    }
+
+    public void setLastChecked(long time) {
+        lastChecked.set(time);
+        dirty.set(true);
+    }
+
+    // 利用量はクォータ側で管理し、書き出す時点の値を取得する
+    public void bindQuota(VisionQuota quota) {
+        quotaSource = quota::getUsage;
+        quota.setListener(this::markDirty);
+    }
+
+    public void markDirty() {
+        dirty.set(true);
+    }
+
+    public synchronized void startAutoFlush(long intervalMillis) {
+        if (flusher != null)
+            return;
+
+        flusher = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+                .namingPattern("imgsafe-checkpoint")
+                .daemon(true)
+                .build());
+        flusher.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "imgsafe-checkpoint-shutdown"));
+    }
+
+    public void flush() {
+        synchronized (flushLock) {
+            if (!dirty.getAndSet(false))
+                return;
+
+            val usage = getQuotaUsage();
+            val snapshot = new ImgSafeTemp.Temp(lastCheckedFile.get(), lastChecked.get(),
+                    usage != null ? usage.used() : 0, usage != null ? usage.month().toString() : null);
+            try {
+                // 一時ファイルに書いて同期してから置き換えるため、書き込み中に停止しても元のファイルは壊れない
+                try (FileOutputStream output = new FileOutputStream(tempFile)) {
+                    output.write(MAPPER.writeValueAsBytes(snapshot));
+                    output.getFD().sync();
+                }
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                dirty.set(true);
+                log.error("The temporary file could not be saved successfully.", e);
+            }
+        }
+    }
+
+    private void load() {
+        if (!file.exists() || file.length() == 0)
+            return;
+
+        try {
+            val temp = MAPPER.readValue(file, ImgSafeTemp.Temp.class);
+            lastCheckedFile.set(temp.getLastCheckedFile());
+            lastChecked.set(temp.getLastChecked());
+            // 利用月が記録されていない古いファイルは最終確認日時の月とみなす
+            val month = temp.getQuotaMonth() != null ? YearMonth.parse(temp.getQuotaMonth())
+                    : YearMonth.from(Instant.ofEpochMilli(temp.getLastChecked()).atZone(ZoneId.systemDefault()));
+            quotaUsage.set(new VisionQuota.Usage(month, temp.getRequestedCount()));
+        } catch (IOException | RuntimeException e) {
+            log.error("The temporary file could not be loaded successfully.", e);
+        }
+    }
+}
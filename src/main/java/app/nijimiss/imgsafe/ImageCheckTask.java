@@ -18,143 +18,152 @@ package app.nijimiss.imgsafe;
 
 import app.nijimiss.imgsafe.api.misskey.File;
 import app.nijimiss.imgsafe.api.misskey.MisskeyApiClient;
-import app.nijimiss.imgsafe.api.vision.CloudVisionApiClient;
-import app.nijimiss.imgsafe.webhook.WebhookManager;
+import app.nijimiss.imgsafe.api.resilience.CircuitOpenException;
+import app.nijimiss.imgsafe.api.vision.QuotaExceededException;
+import app.nijimiss.imgsafe.metrics.ImgSafeMetrics;
+import app.nijimiss.imgsafe.pipeline.ImagePipeline;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.StringUtils;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.URL;
 import java.text.DateFormat;
-import java.util.*;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
 
 @Slf4j
-public class ImageCheckTask extends TimerTask {
+public class ImageCheckTask implements Runnable {
     private final MisskeyApiClient misskey;
-    private final CloudVisionApiClient vision;
-    private final WebhookManager webhookManager;
-    private final int judgingScore;
+    private final ImagePipeline pipeline;
+    private final CheckpointStore checkpoint;
     private int checkingImageSizeMin = 400;
 
 
-    public ImageCheckTask(MisskeyApiClient misskey, CloudVisionApiClient vision, WebhookManager webhookManager, int judgingScore) {
+    public ImageCheckTask(MisskeyApiClient misskey, ImagePipeline pipeline) {
+        this(misskey, pipeline, ImgSafeTemp.getStore());
+    }
+
+    public ImageCheckTask(MisskeyApiClient misskey, ImagePipeline pipeline, CheckpointStore checkpoint) {
         this.misskey = misskey;
-        this.vision = vision;
-        this.webhookManager = webhookManager;
-        this.judgingScore = judgingScore;
+        this.pipeline = pipeline;
+        this.checkpoint = checkpoint;
     }
 
     public void setCheckingImageSizeMin(int size) {
         this.checkingImageSizeMin = size;
     }
 
+    // ストリーミングAPIで受け取ったファイルをポーリングを待たずに検査する
+    public void submitStreamedFile(File file) {
+        if (isCheckTarget(file))
+            pipeline.submitUntracked(file);
+    }
+
+    private boolean isCheckTarget(File file) {
+        val reason = skipReasonOf(file);
+        if (reason == null)
+            return true;
+        ImgSafeMetrics.IMAGES_SKIPPED.inc(reason);
+        return false;
+    }
+
+    private String skipReasonOf(File file) {
+        if (!(file.type().equals("image/png") || file.type().equals("image/jpeg") || file.type().equals("image/gif")))
+            return "unsupported_type";
+        if (file.isSensitive())
+            return "already_sensitive";
+        if (file.properties().height() <= checkingImageSizeMin || file.properties().width() <= checkingImageSizeMin)
+            return "too_small";
+        return null;
+    }
+
     @Override
     public void run() {
-        Date lastChecked = new Date(ImgSafeTemp.getLastChecked());
-        int limit = 10;
-
-        val lastCheckedCalendar = Calendar.getInstance();
-        lastCheckedCalendar.setTime(lastChecked);
-        val nowCalender = Calendar.getInstance();
+        poll(Math.max(10, pipeline.getBatchSize())); // 1ページで1バッチを満たせるようにする
+    }
 
-        if (lastCheckedCalendar.get(Calendar.MONTH) < nowCalender.get(Calendar.MONTH))
-            ImgSafeTemp.setRequestedCount(0);
+    public PollResult poll(int limit) {
+        Date lastChecked = new Date(checkpoint.getLastChecked());
+        val result = new PollResult();
 
         log.debug("Start checking images...");
-        log.debug("Last checked image: {}, requested count: {}, last checked: {}", ImgSafeTemp.getLastCheckedFile(), ImgSafeTemp.getRequestedCount(), DateFormat.getInstance().format(lastChecked));
+        log.debug("Last checked image: {}, requested count: {}, last checked: {}", checkpoint.getLastCheckedFile(), checkpoint.getRequestedCount(), DateFormat.getInstance().format(lastChecked));
 
+        pipeline.reset();
         try {
-            List<File> images;
-            do {
-                do {
-                    val files = misskey.getFiles(limit, ImgSafeTemp.getLastCheckedFile());
-                    ImgSafeTemp.setLastChecked(new Date().getTime());
-
-                    if (files.isEmpty())
-                        return;
-
-                    images = files.stream()
-                            .filter(file -> file.type().equals("image/png") || file.type().equals("image/jpeg") || file.type().equals("image/gif"))
-                            .filter(file -> !file.isSensitive())
-                            .filter(file -> file.properties().height() > checkingImageSizeMin && file.properties().width() > checkingImageSizeMin)
-                            .sorted(Comparator.comparing(File::createdAt))
-                            .toList();
-
-                    if (images.isEmpty()) {
-                        ImgSafeTemp.setLastCheckedFile(files.get(0).id());
-                    }
-                } while (images.isEmpty());
+            try {
+                submitNewImages(limit, result);
+            } finally {
+                // 処理中の画像が全て完了するまで次の実行を開始しない
+                pipeline.awaitIdle();
+            }
+            pipeline.throwIfFailed();
+        } catch (QuotaExceededException e) {
+            // バックログを使わない場合でもスレッドは止めず、次回の実行で再試行する
+            log.warn("Vision API limit exceeded. Checking resumes after {}.", e.getResetAt());
+        } catch (CircuitOpenException e) {
+            log.warn("{}. Checking resumes on the next run.", e.getMessage());
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return result;
+    }
 
+    private void submitNewImages(int limit, PollResult result) throws IOException {
+        // チェックポイントは完了順に進むため、ページ送りには投入済みの位置を使う
+        String sinceId = checkpoint.getLastCheckedFile();
+        while (!pipeline.isAborted()) {
+            long started = System.nanoTime();
+            val files = misskey.getFiles(limit, sinceId);
+            ImgSafeMetrics.observe(ImgSafeMetrics.STAGE_GET_FILES, started);
+            checkpoint.setLastChecked(new Date().getTime());
+
+            result.pages++;
+            result.files += files.size();
+            if (files.size() >= limit)
+                result.fullPages++;
+
+            if (files.isEmpty())
+                return;
+
+            List<File> images = files.stream()
+                    .filter(this::isCheckTarget)
+                    .sorted(Comparator.comparing(File::createdAt))
+                    .toList();
+
+            if (images.isEmpty()) {
+                sinceId = files.get(0).id();
+                pipeline.skip(sinceId);
+            } else {
                 log.debug("Found {} newly added images.", images.size());
 
-                for (File file : images) {
-                    val fullFileInfo = misskey.getFile(file.id());
-
-                    log.debug("Checking image: {}", fullFileInfo.name());
-                    log.debug("Encoding image to base64...");
-
-                    String base64Image;
-                    try {
-                        base64Image = Base64.encodeBase64String(IOUtils.toByteArray(new URL(StringUtils.defaultIfEmpty(fullFileInfo.webpublicUrl(), fullFileInfo.url()))));
-                    } catch (FileNotFoundException e) {
-                        log.warn("Image {} is not found.", fullFileInfo.name());
-                        continue;
-                    }
-
-                    val requestBody = new CloudVisionApiClient.VisionSafeSearchRequestBody(
-                            new CloudVisionApiClient.VisionSafeSearchRequestImage(base64Image));
-
-                    val request = new CloudVisionApiClient.VisionSafeSearchRequests(List.of(requestBody));
-                    val safeSearchResult = vision.safeSearch(request);
-
-                    if (safeSearchResult.responses().isEmpty()) {
-                        log.warn("Image {} was ignored because an error was returned.", fullFileInfo.name());
-                        continue;
-                    }
-
-                    val response = safeSearchResult.responses().get(0);
-
-                    log.debug("Safe search result: {}", response.safeSearchAnnotation());
-
-                    if (response.safeSearchAnnotation().adult().getLevel() >= judgingScore
-                            || response.safeSearchAnnotation().violence().getLevel() >= judgingScore) {
-                        misskey.updateFile(file, true);
+                for (File file : images)
+                    pipeline.submit(file);
+                sinceId = images.get(images.size() - 1).id();
+            }
 
-                        if (webhookManager != null) {
-                            webhookManager.sendWebhook(file, file.userId(), response.safeSearchAnnotation());
-                        }
+            if (files.size() < limit)
+                return; // 最後のページなので、空のページを取得するためだけのリクエストは送らない
+        }
+    }
 
-                        log.debug("Image {} is sensitive.", fullFileInfo.name());
-                        log.debug("Marked as sensitive on Misskey.");
-                    }
+    public static final class PollResult {
+        private int pages;
+        private int files;
+        private int fullPages;
 
-                    ImgSafeTemp.setLastCheckedFile(file.id());
-                }
-            } while (true);
-        } catch (IllegalStateException e) {
-            log.warn("Execution is suspended until the next month because the limit is exceeded.", e);
+        public int getPages() {
+            return pages;
+        }
 
-            // Calc next month first day millis
-            val nextMonthCalendar = Calendar.getInstance();
-            nextMonthCalendar.add(Calendar.MONTH, 1);
-            nextMonthCalendar.set(Calendar.DAY_OF_MONTH, 1);
-            nextMonthCalendar.set(Calendar.HOUR_OF_DAY, 0);
-            nextMonthCalendar.set(Calendar.MINUTE, 0);
-            nextMonthCalendar.set(Calendar.SECOND, 0);
-            nextMonthCalendar.set(Calendar.MILLISECOND, 0);
+        public int getFiles() {
+            return files;
+        }
 
-            // Calc next month first day millis - now millis
-            try {
-                Thread.sleep(nextMonthCalendar.getTimeInMillis() - new Date().getTime());
-            } catch (InterruptedException e1) {
-                Thread.currentThread().interrupt();
-            }
-        } catch (IOException e) {
-            log.error(e.getMessage(), e);
+        public int getFullPages() {
+            return fullPages;
         }
     }
 }
@@ -16,13 +16,19 @@
 
 package app.nijimiss.imgsafe;
 
+import app.nijimiss.imgsafe.api.vision.JudgingItem;
+import app.nijimiss.imgsafe.classifier.ClassifierType;
+import app.nijimiss.imgsafe.pipeline.ExecutionMode;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
 
+import java.util.List;
+
 @Data
 public class ImgSafeConfig {
     private Authentication authentication;
     private Settings settings;
+    private List<Instance> instances = List.of();
     private boolean debug;
 
     @Data
@@ -35,18 +41,87 @@ public class ImgSafeConfig {
         private String googleAPIKey;
     }
 
+    // 1つのプロセスで複数のインスタンスを検査する場合の、インスタンスごとの設定。未指定の項目はsettingsの値を使う
+    @Data
+    public static class Instance {
+        @JsonProperty("name")
+        private String name;
+        @JsonProperty("instance_hostname")
+        private String instanceHostname;
+        @JsonProperty("instance_key")
+        private String instanceKey;
+        @JsonProperty("checkpoint_file")
+        private String checkpointFile;
+        @JsonProperty("quota_weight")
+        private int quotaWeight = 1;
+        @JsonProperty("judging_item")
+        private List<JudgingItem> judgingItem;
+        @JsonProperty("judging_score")
+        private Integer judgingScore;
+        @JsonProperty("judging_rule")
+        private String judgingRule;
+        @JsonProperty("judging_overrides")
+        private List<JudgingOverride> judgingOverrides;
+        @JsonProperty("webhook")
+        private Webhook webhook;
+    }
+
     @Data
     public static class Settings {
-        //@JsonProperty("judging_item")
-        //private List<JudgingItem> judgingItem;
+        @JsonProperty("judging_item")
+        private List<JudgingItem> judgingItem = List.of(JudgingItem.ADULT, JudgingItem.VIOLENCE);
         @JsonProperty("judging_score")
         private int judgingScore;
+        @JsonProperty("judging_rule")
+        private String judgingRule;
+        @JsonProperty("judging_overrides")
+        private List<JudgingOverride> judgingOverrides = List.of();
         @JsonProperty("limit_per_month")
         private int limitPerMonth;
         @JsonProperty("checking_image_size_min")
         private int checkingImageSizeMin;
+        @JsonProperty("vision_batch_size")
+        private int visionBatchSize = 16;
+        @JsonProperty("classifier")
+        private ClassifierType classifier = ClassifierType.VISION;
+        @JsonProperty("local_classifier")
+        private LocalClassifier localClassifier = new LocalClassifier();
+        @JsonProperty("cascade")
+        private Cascade cascade = new Cascade();
         @JsonProperty("webhook")
         private Webhook webhook;
+        @JsonProperty("flag_update")
+        private FlagUpdate flagUpdate = new FlagUpdate();
+        @JsonProperty("pipeline")
+        private Pipeline pipeline = new Pipeline();
+        @JsonProperty("verdict_cache")
+        private VerdictCache verdictCache = new VerdictCache();
+        @JsonProperty("near_duplicate")
+        private NearDuplicate nearDuplicate = new NearDuplicate();
+        @JsonProperty("preprocess")
+        private Preprocess preprocess = new Preprocess();
+        @JsonProperty("http")
+        private Http http = new Http();
+        @JsonProperty("ingestion")
+        private Ingestion ingestion = new Ingestion();
+        @JsonProperty("result_store")
+        private ResultStore resultStore = new ResultStore();
+        @JsonProperty("vision_backlog")
+        private VisionBacklog visionBacklog = new VisionBacklog();
+        @JsonProperty("metrics")
+        private Metrics metrics = new Metrics();
+        @JsonProperty("resilience")
+        private Resilience resilience = new Resilience();
+    }
+
+    @Data
+    public static class JudgingOverride {
+        @JsonProperty("user_id")
+        private String userId;
+        @JsonProperty("folder_id")
+        private String folderId;
+        @JsonProperty("rule")
+        private String rule;
     }
 
     @Data
@@ -57,5 +132,227 @@ public class ImgSafeConfig {
         private String url;
         @JsonProperty("template")
         private String template;
+        @JsonProperty("digest_template")
+        private String digestTemplate;
+        @JsonProperty("digest_entry_template")
+        private String digestEntryTemplate;
+        @JsonProperty("queue_capacity")
+        private int queueCapacity = 1000;
+        @JsonProperty("coalesce_window_millis")
+        private long coalesceWindowMillis = 2000;
+        @JsonProperty("max_digest_size")
+        private int maxDigestSize = 20;
+        @JsonProperty("max_attempts")
+        private int maxAttempts = 3;
+        @JsonProperty("initial_backoff_millis")
+        private long initialBackoffMillis = 1000;
+        @JsonProperty("max_backoff_millis")
+        private long maxBackoffMillis = 300000;
+        @JsonProperty("retry_file")
+        private String retryFile = "ImgSafeWebhookRetry.json";
+    }
+
+    @Data
+    public static class FlagUpdate {
+        @JsonProperty("concurrency")
+        private int concurrency = 4;
+        @JsonProperty("queue_capacity")
+        private int queueCapacity = 1000;
+        @JsonProperty("max_attempts")
+        private int maxAttempts = 5;
+        @JsonProperty("initial_backoff_millis")
+        private long initialBackoffMillis = 1000;
+        @JsonProperty("max_backoff_millis")
+        private long maxBackoffMillis = 60000;
+        @JsonProperty("retry_interval_seconds")
+        private int retryIntervalSeconds = 300;
+        @JsonProperty("retry_file")
+        private String retryFile = "ImgSafeFlagRetry.json";
+    }
+
+    @Data
+    public static class Pipeline {
+        @JsonProperty("execution_mode")
+        private ExecutionMode executionMode = ExecutionMode.PIPELINE;
+        @JsonProperty("metadata_workers")
+        private int metadataWorkers = 2;
+        @JsonProperty("download_workers")
+        private int downloadWorkers = 4;
+        @JsonProperty("classify_workers")
+        private int classifyWorkers = 2;
+        @JsonProperty("action_workers")
+        private int actionWorkers = 2;
+        @JsonProperty("queue_capacity")
+        private int queueCapacity = 32;
+        @JsonProperty("max_in_flight")
+        private int maxInFlight = 256;
+        @JsonProperty("max_requests_per_host")
+        private int maxRequestsPerHost = 16;
+        @JsonProperty("max_attempts")
+        private int maxAttempts = 3;
+        @JsonProperty("initial_backoff_millis")
+        private long initialBackoffMillis = 1000;
+    }
+
+    @Data
+    public static class VerdictCache {
+        @JsonProperty("enable")
+        private boolean enable = true;
+        @JsonProperty("file")
+        private String file = "ImgSafeCache.json";
+        @JsonProperty("max_entries")
+        private int maxEntries = 100000;
+        @JsonProperty("ttl_days")
+        private int ttlDays = 30;
+    }
+
+    @Data
+    public static class NearDuplicate {
+        @JsonProperty("enable")
+        private boolean enable = false;
+        @JsonProperty("max_distance")
+        private int maxDistance = 4;
+        @JsonProperty("max_entries")
+        private int maxEntries = 1000000;
+    }
+
+    @Data
+    public static class Preprocess {
+        @JsonProperty("enable")
+        private boolean enable = false;
+        @JsonProperty("max_edge")
+        private int maxEdge = 640;
+        @JsonProperty("jpeg_quality")
+        private float jpegQuality = 0.85f;
+        @JsonProperty("prefer_thumbnail")
+        private boolean preferThumbnail = false;
+    }
+
+    @Data
+    public static class Http {
+        @JsonProperty("max_idle_connections")
+        private int maxIdleConnections = 16;
+        @JsonProperty("keep_alive_seconds")
+        private int keepAliveSeconds = 300;
+        @JsonProperty("max_requests")
+        private int maxRequests = 128;
+        @JsonProperty("max_requests_per_host")
+        private int maxRequestsPerHost = 16;
+        @JsonProperty("connect_timeout_seconds")
+        private int connectTimeoutSeconds = 10;
+        @JsonProperty("read_timeout_seconds")
+        private int readTimeoutSeconds = 60;
+        @JsonProperty("write_timeout_seconds")
+        private int writeTimeoutSeconds = 60;
+    }
+
+    @Data
+    public static class Ingestion {
+        @JsonProperty("mode")
+        private IngestionMode mode = IngestionMode.POLLING;
+        @JsonProperty("polling_interval_seconds")
+        private int pollingIntervalSeconds = 600;
+        @JsonProperty("min_polling_interval_seconds")
+        private int minPollingIntervalSeconds = 30;
+        @JsonProperty("max_polling_interval_seconds")
+        private int maxPollingIntervalSeconds = 600;
+        @JsonProperty("min_page_size")
+        private int minPageSize = 16;
+        @JsonProperty("max_page_size")
+        private int maxPageSize = 100;
+        @JsonProperty("streaming_channel")
+        private String streamingChannel = "localTimeline";
+        @JsonProperty("streaming_polling_interval_seconds")
+        private int streamingPollingIntervalSeconds = 600;
+        @JsonProperty("streaming_queue_capacity")
+        private int streamingQueueCapacity = 1000;
+    }
+
+    @Data
+    public static class ResultStore {
+        @JsonProperty("enable")
+        private boolean enable = false;
+        @JsonProperty("path")
+        private String path = "./ImgSafeResults";
+    }
+
+    @Data
+    public static class VisionBacklog {
+        @JsonProperty("file")
+        private String file = "ImgSafeBacklog.json";
+        @JsonProperty("drain_rate_per_minute")
+        private int drainRatePerMinute = 60;
+    }
+
+    @Data
+    public static class Metrics {
+        @JsonProperty("enable")
+        private boolean enable = false;
+        @JsonProperty("bind_address")
+        private String bindAddress = "0.0.0.0";
+        @JsonProperty("port")
+        private int port = 9464;
+        @JsonProperty("path")
+        private String path = "/metrics";
+    }
+
+    @Data
+    public static class Resilience {
+        @JsonProperty("enable")
+        private boolean enable = false;
+        @JsonProperty("misskey")
+        private Endpoint misskey = new Endpoint();
+        @JsonProperty("vision")
+        private Endpoint vision = new Endpoint();
+    }
+
+    @Data
+    public static class Endpoint {
+        @JsonProperty("rate_per_second")
+        private double ratePerSecond = 30;
+        @JsonProperty("burst")
+        private int burst = 30;
+        @JsonProperty("failure_threshold")
+        private int failureThreshold = 5;
+        @JsonProperty("open_seconds")
+        private int openSeconds = 30;
+        @JsonProperty("min_concurrency")
+        private int minConcurrency = 1;
+        @JsonProperty("max_concurrency")
+        private int maxConcurrency = 16;
+    }
+
+    @Data
+    public static class LocalClassifier {
+        @JsonProperty("model")
+        private String model = "nsfw.onnx";
+        @JsonProperty("input_size")
+        private int inputSize = 224;
+        @JsonProperty("channels_first")
+        private boolean channelsFirst = false;
+        @JsonProperty("bgr")
+        private boolean bgr = false;
+        @JsonProperty("pixel_mean")
+        private float pixelMean = 0f;
+        @JsonProperty("pixel_scale")
+        private float pixelScale = 1f / 255;
+        @JsonProperty("labels")
+        private List<String> labels = List.of("drawings", "hentai", "neutral", "porn", "sexy");
+        @JsonProperty("adult_labels")
+        private List<String> adultLabels = List.of("hentai", "porn");
+        @JsonProperty("racy_labels")
+        private List<String> racyLabels = List.of("sexy");
+        @JsonProperty("batch_size")
+        private int batchSize = 16;
+        @JsonProperty("threads")
+        private int threads = 0;
+    }
+
+    @Data
+    public static class Cascade {
+        @JsonProperty("lower_threshold")
+        private double lowerThreshold = 0.2;
+        @JsonProperty("upper_threshold")
+        private double upperThreshold = 0.8;
     }
 }
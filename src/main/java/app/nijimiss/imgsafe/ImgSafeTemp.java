@@ -16,81 +16,54 @@
 
 package app.nijimiss.imgsafe;
 
+import app.nijimiss.imgsafe.api.vision.VisionQuota;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import lombok.extern.slf4j.Slf4j;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
 
-@Slf4j
 public class ImgSafeTemp {
-    private static final ObjectMapper mapper;
-    private static final File tempFile;
-    private static ImgSafeTemp.Temp temp;
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+    private static final CheckpointStore store;
 
     static {
-        mapper = new ObjectMapper();
-        tempFile = new File("ImgSafe.json");
-
-        load();
+        store = new CheckpointStore(new File("ImgSafe.json"));
+        store.startAutoFlush(FLUSH_INTERVAL_MILLIS);
     }
 
-    public static synchronized String getLastCheckedFile() {
-        return temp.getLastCheckedFile();
+    public static CheckpointStore getStore() {
+        return store;
     }
 
-    public static synchronized long getLastChecked() {
-        return temp.getLastChecked();
+    public static String getLastCheckedFile() {
+        return store.getLastCheckedFile();
     }
 
-    public static synchronized int getRequestedCount() {
-        return temp.getRequestedCount();
+    public static long getLastChecked() {
+        return store.getLastChecked();
     }
 
-    public static synchronized void setLastCheckedFile(String lastCheckedFile) {
-        temp.setLastCheckedFile(lastCheckedFile);
-        save();
+    public static int getRequestedCount() {
+        return store.getRequestedCount();
     }
 
-    public static synchronized void setLastChecked(long lastChecked) {
-        temp.setLastChecked(lastChecked);
-        save();
+    public static void setLastCheckedFile(String lastCheckedFile) {
+        store.setLastCheckedFile(lastCheckedFile);
     }
 
-    public static synchronized void setRequestedCount(int requestedCount) {
-        temp.setRequestedCount(requestedCount);
-        save();
+    public static void setLastChecked(long lastChecked) {
+        store.setLastChecked(lastChecked);
     }
 
+    public static VisionQuota.Usage getQuotaUsage() {
+        return store.getQuotaUsage();
+    }
 
-    private static void load() {
-        if (!tempFile.exists()) {
-            try {
-                tempFile.createNewFile();
-            } catch (IOException e) {
-                log.error("Failed to create temporary file.\n" +
-                        "Please check if this program has write permission to the directory.", e);
-            }
-        }
-
-        try (var fileInput = new FileInputStream(tempFile)) {
-            temp = mapper.readValue(fileInput, Temp.class);
-        } catch (FileNotFoundException e) {
-            log.error("The temporary file could not be found. Do not delete the configuration file after starting the program.", e);
-        } catch (IOException e) {
-            log.error("The temporary file could not be loaded successfully.", e);
-        }
+    public static void bindQuota(VisionQuota quota) {
+        store.bindQuota(quota);
     }
 
-    private static void save() {
-        try {
-            mapper.writeValue(tempFile, temp);
-        } catch (IOException e) {
-            log.error("The temporary file could not be saved successfully.", e);
-        }
+    public static void flush() {
+        store.flush();
     }
 
     @JsonIgnoreProperties(ignoreUnknown = true)
@@ -98,15 +71,17 @@ public class ImgSafeTemp {
         private String lastCheckedFile;
         private long lastChecked;
         private int requestedCount;
+        private String quotaMonth;
 
         public Temp() {
             // Jackson deserialization
         }
 
-        public Temp(String lastCheckedFile, long lastChecked, int requestedCount) {
+        public Temp(String lastCheckedFile, long lastChecked, int requestedCount, String quotaMonth) {
             this.lastCheckedFile = lastCheckedFile;
             this.lastChecked = lastChecked;
             this.requestedCount = requestedCount;
+            this.quotaMonth = quotaMonth;
         }
 
         public String getLastCheckedFile() {
@@ -132,5 +107,13 @@ public class ImgSafeTemp {
         public void setRequestedCount(int requestedCount) {
             this.requestedCount = requestedCount;
         }
+
+        public String getQuotaMonth() {
+            return quotaMonth;
+        }
+
+        public void setQuotaMonth(String quotaMonth) {
+            this.quotaMonth = quotaMonth;
+        }
     }
 }
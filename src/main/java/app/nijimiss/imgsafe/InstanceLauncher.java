@@ -0,0 +1,230 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe;
+
+import app.nijimiss.imgsafe.api.HttpClientFactory;
+import app.nijimiss.imgsafe.api.ImageDownloader;
+import app.nijimiss.imgsafe.api.misskey.File;
+import app.nijimiss.imgsafe.api.misskey.Meta;
+import app.nijimiss.imgsafe.api.misskey.MisskeyApiClient;
+import app.nijimiss.imgsafe.api.misskey.MisskeyStreamingClient;
+import app.nijimiss.imgsafe.api.vision.VisionQuota;
+import app.nijimiss.imgsafe.cache.NearDuplicateIndex;
+import app.nijimiss.imgsafe.cache.VerdictCache;
+import app.nijimiss.imgsafe.classifier.ImageClassifier;
+import app.nijimiss.imgsafe.judge.JudgingRules;
+import app.nijimiss.imgsafe.metrics.ImgSafeMetrics;
+import app.nijimiss.imgsafe.pipeline.BacklogDrainer;
+import app.nijimiss.imgsafe.pipeline.CheckpointTracker;
+import app.nijimiss.imgsafe.pipeline.FlagRetryQueue;
+import app.nijimiss.imgsafe.pipeline.FlagUpdater;
+import app.nijimiss.imgsafe.pipeline.ImagePipeline;
+import app.nijimiss.imgsafe.pipeline.ImagePreprocessor;
+import app.nijimiss.imgsafe.pipeline.VisionBacklog;
+import app.nijimiss.imgsafe.store.CheckResultStore;
+import app.nijimiss.imgsafe.webhook.WebhookDispatcher;
+import app.nijimiss.imgsafe.webhook.WebhookManager;
+import app.nijimiss.imgsafe.webhook.WebhookRetryQueue;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import okhttp3.Interceptor;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+// インスタンスごとにAPIクライアント・パイプライン・チェックポイントを用意し、検査を開始する
+@Slf4j
+public class InstanceLauncher {
+    private final ImgSafeConfig.Settings settings;
+    private final Shared shared;
+
+    public InstanceLauncher(ImgSafeConfig.Settings settings, Shared shared) {
+        this.settings = settings;
+        this.shared = shared;
+    }
+
+    // multiInstanceの場合は、バックログなどをインスタンスごとのファイル名にする
+    public void start(String name, String hostname, String key, JudgingRules judgingRules,
+                      ImgSafeConfig.Webhook webhookConfig, CheckpointStore checkpoint,
+                      ImageClassifier classifier, boolean multiInstance) {
+        val instance = new Instance(name, multiInstance);
+
+        MisskeyApiClient misskey = new MisskeyApiClient(hostname, key, shared.httpClientFactory().newClient(shared.misskeyInterceptors()));
+        try {
+            Meta meta = misskey.getMeta();
+            log.info("API connection: Misskey ({})... OK (v{})", name, meta.version());
+        } catch (IOException e) {
+            log.error("\"API connection: Misskey ({})... Failed", name, e);
+            System.exit(1);
+        }
+
+        val webhookDispatcher = startWebhook(instance, webhookConfig);
+
+        log.info("Starting ImageCheckTask ({})...", name);
+        CheckpointTracker checkpointTracker = new CheckpointTracker(checkpoint::setLastCheckedFile);
+        ImgSafeMetrics.REGISTRY.gauge("imgsafe_checkpoint_pending_files", "Files submitted but not yet covered by the checkpoint.",
+                "instance", name, checkpointTracker::pendingCount);
+        ImgSafeMetrics.REGISTRY.gauge("imgsafe_checkpoint_lag_seconds", "Time the checkpoint has been waiting for the oldest pending file.",
+                "instance", name, () -> checkpointTracker.getLagMillis() / 1000.0);
+        ImagePipeline pipeline = new ImagePipeline(misskey, classifier, webhookDispatcher, shared.imageDownloader(),
+                judgingRules,
+                settings.getVisionBatchSize(),
+                settings.getPipeline(),
+                checkpointTracker);
+        pipeline.setVerdictCache(shared.verdictCache());
+        pipeline.setNearDuplicateIndex(shared.nearDuplicateIndex());
+        pipeline.setFlagUpdater(startFlagUpdater(instance, misskey));
+
+        val preprocessConfig = settings.getPreprocess();
+        if (preprocessConfig.isEnable())
+            pipeline.setPreprocessor(new ImagePreprocessor(preprocessConfig.getMaxEdge(), preprocessConfig.getJpegQuality()));
+        pipeline.setPreferThumbnail(preprocessConfig.isPreferThumbnail());
+
+        val resultStoreConfig = settings.getResultStore();
+        if (resultStoreConfig.isEnable())
+            pipeline.setResultStore(openResultStore(instance, resultStoreConfig));
+
+        startBacklog(instance, misskey, pipeline, classifier);
+
+        startIngestion(instance, misskey, new ImageCheckTask(misskey, pipeline, checkpoint));
+    }
+
+    private WebhookDispatcher startWebhook(Instance instance, ImgSafeConfig.Webhook webhookConfig) {
+        if (webhookConfig == null || !webhookConfig.isEnable())
+            return null;
+
+        WebhookManager webhookManage = new WebhookManager(webhookConfig.getUrl(), webhookConfig.getTemplate(),
+                shared.httpClientFactory().newClient());
+        webhookManage.setDigestTemplate(webhookConfig.getDigestTemplate(), webhookConfig.getDigestEntryTemplate());
+        WebhookRetryQueue webhookRetryQueue = new WebhookRetryQueue(instance.file(webhookConfig.getRetryFile()));
+        webhookRetryQueue.startAutoSave(10000);
+        WebhookDispatcher webhookDispatcher = new WebhookDispatcher(webhookManage, webhookRetryQueue, webhookConfig);
+        webhookDispatcher.start();
+        ImgSafeMetrics.REGISTRY.gauge("imgsafe_webhook_queue_size", "Notifications waiting to be sent.",
+                "instance", instance.name(), webhookDispatcher::getQueueSize);
+        ImgSafeMetrics.REGISTRY.gauge("imgsafe_webhook_retry_queue_size", "Notifications waiting for the webhook endpoint to recover.",
+                "instance", instance.name(), webhookDispatcher::getRetryQueueSize);
+        return webhookDispatcher;
+    }
+
+    private FlagUpdater startFlagUpdater(Instance instance, MisskeyApiClient misskey) {
+        val flagUpdateConfig = settings.getFlagUpdate();
+        FlagRetryQueue flagRetryQueue = new FlagRetryQueue(instance.file(flagUpdateConfig.getRetryFile()));
+        flagRetryQueue.startAutoSave(10000);
+        FlagUpdater flagUpdater = new FlagUpdater(misskey, flagRetryQueue, flagUpdateConfig);
+        flagUpdater.start();
+        ImgSafeMetrics.REGISTRY.gauge("imgsafe_flag_update_queue_size", "Files waiting to be marked as sensitive.",
+                "instance", instance.name(), flagUpdater::getQueueSize);
+        ImgSafeMetrics.REGISTRY.gauge("imgsafe_flag_update_retry_queue_size", "Files waiting to be retried after failing to be marked as sensitive.",
+                "instance", instance.name(), flagUpdater::getRetryQueueSize);
+        return flagUpdater;
+    }
+
+    private CheckResultStore openResultStore(Instance instance, ImgSafeConfig.ResultStore resultStoreConfig) {
+        try {
+            CheckResultStore resultStore = new CheckResultStore(instance.path(resultStoreConfig.getPath()));
+            ImgSafeMetrics.REGISTRY.gauge("imgsafe_result_store_pending", "Check results waiting to be written.",
+                    "instance", instance.name(), resultStore::getPendingCount);
+            ImgSafeMetrics.REGISTRY.counterFunction("imgsafe_result_store_dropped_total",
+                    "Check results dropped because the write queue was full.", "instance", instance.name(), resultStore::getDroppedCount);
+            return resultStore;
+        } catch (SQLException e) {
+            log.error("Failed to open the result store.", e);
+            System.exit(1);
+            return null;
+        }
+    }
+
+    // 上限に達してもVision API以外の処理は続け、未検査のファイルはリセット後に検査する
+    private void startBacklog(Instance instance, MisskeyApiClient misskey, ImagePipeline pipeline, ImageClassifier classifier) {
+        val backlogConfig = settings.getVisionBacklog();
+        VisionBacklog visionBacklog = new VisionBacklog(instance.file(backlogConfig.getFile()));
+        visionBacklog.startAutoSave(10000);
+        pipeline.setBacklog(visionBacklog);
+        ImgSafeMetrics.REGISTRY.gauge("imgsafe_backlog_files", "Files waiting for the Vision API limit to reset.",
+                "instance", instance.name(), visionBacklog::size);
+        // 複数のインスタンスの場合、戻す量はそのインスタンスへの配分の残りに合わせる
+        new BacklogDrainer(visionBacklog, shared.visionQuota(), classifier::getRemainingQuota, misskey, pipeline,
+                backlogConfig.getDrainRatePerMinute()).start(600000);
+    }
+
+    private void startIngestion(Instance instance, MisskeyApiClient misskey, ImageCheckTask imageCheckTask) {
+        val ingestionConfig = settings.getIngestion();
+        AdaptivePollingScheduler scheduler;
+        if (ingestionConfig.getMode() == IngestionMode.STREAMING) {
+            // 新しいファイルはストリーミングで即座に検査し、ポーリングは取りこぼしの回収にのみ使う
+            long interval = TimeUnit.SECONDS.toMillis(ingestionConfig.getStreamingPollingIntervalSeconds());
+            scheduler = new AdaptivePollingScheduler(imageCheckTask, interval, interval, interval,
+                    ingestionConfig.getMinPageSize(), ingestionConfig.getMaxPageSize());
+            val streamingClient = misskey.createStreamingClient(ingestionConfig.getStreamingChannel(),
+                    ingestionConfig.getStreamingQueueCapacity(), new MisskeyStreamingClient.Listener() {
+                @Override
+                public void onFile(File file) {
+                    imageCheckTask.submitStreamedFile(file);
+                }
+
+                @Override
+                public void onDropped(File file) {
+                    ImgSafeMetrics.STREAMED_FILES_DROPPED.inc();
+                    scheduler.triggerNow();
+                }
+
+                @Override
+                public void onConnected(boolean reconnected) {
+                    if (reconnected)
+                        scheduler.triggerNow();
+                }
+            });
+            ImgSafeMetrics.REGISTRY.gauge("imgsafe_streaming_queue_files", "Streamed files waiting to be submitted to the pipeline.",
+                    "instance", instance.name(), streamingClient::getQueueSize);
+            streamingClient.connect();
+        } else {
+            scheduler = new AdaptivePollingScheduler(imageCheckTask,
+                    TimeUnit.SECONDS.toMillis(ingestionConfig.getMinPollingIntervalSeconds()),
+                    TimeUnit.SECONDS.toMillis(ingestionConfig.getMaxPollingIntervalSeconds()),
+                    TimeUnit.SECONDS.toMillis(ingestionConfig.getPollingIntervalSeconds()),
+                    ingestionConfig.getMinPageSize(), ingestionConfig.getMaxPageSize());
+        }
+        scheduler.start();
+    }
+
+    // "ImgSafeBacklog.json" -> "ImgSafeBacklog-<name>.json"
+    static String suffixed(String path, String name) {
+        int slash = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+        int dot = path.lastIndexOf('.');
+        if (dot <= slash + 1)
+            return path + "-" + name;
+        return path.substring(0, dot) + "-" + name + path.substring(dot);
+    }
+
+    private record Instance(String name, boolean multiInstance) {
+        // 複数のインスタンスを検査する場合は、インスタンスごとのファイル名にする
+        String path(String path) {
+            return multiInstance ? suffixed(path, name) : path;
+        }
+
+        java.io.File file(String path) {
+            return new java.io.File(path(path));
+        }
+    }
+
+    // 全てのインスタンスで共有する接続プール・上限・キャッシュ
+    public record Shared(HttpClientFactory httpClientFactory, Interceptor[] misskeyInterceptors, VisionQuota visionQuota,
+                         ImageDownloader imageDownloader, VerdictCache verdictCache, NearDuplicateIndex nearDuplicateIndex) {
+    }
+}
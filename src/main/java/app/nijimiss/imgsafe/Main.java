@@ -16,18 +16,42 @@
 
 package app.nijimiss.imgsafe;
 
-import app.nijimiss.imgsafe.api.misskey.Meta;
-import app.nijimiss.imgsafe.api.misskey.MisskeyApiClient;
+import app.nijimiss.imgsafe.api.HttpClientFactory;
+import app.nijimiss.imgsafe.api.ImageDownloader;
+import app.nijimiss.imgsafe.api.resilience.ResilienceInterceptor;
 import app.nijimiss.imgsafe.api.vision.CloudVisionApiClient;
-import app.nijimiss.imgsafe.webhook.WebhookManager;
+import app.nijimiss.imgsafe.api.vision.VisionQuota;
+import app.nijimiss.imgsafe.cache.NearDuplicateIndex;
+import app.nijimiss.imgsafe.cache.VerdictCache;
+import app.nijimiss.imgsafe.classifier.CascadeClassifier;
+import app.nijimiss.imgsafe.classifier.ClassifierType;
+import app.nijimiss.imgsafe.classifier.ImageClassifier;
+import app.nijimiss.imgsafe.classifier.OnnxNsfwClassifier;
+import app.nijimiss.imgsafe.classifier.VisionClassifier;
+import app.nijimiss.imgsafe.judge.JudgingRules;
+import app.nijimiss.imgsafe.metrics.ImgSafeMetrics;
+import app.nijimiss.imgsafe.metrics.MetricsServer;
+import app.nijimiss.imgsafe.pipeline.ExecutionMode;
+import app.nijimiss.imgsafe.pipeline.ImagePipeline;
+import app.nijimiss.imgsafe.tenant.FairQuotaScheduler;
+import app.nijimiss.imgsafe.tenant.TenantClassifier;
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import okhttp3.Interceptor;
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.time.YearMonth;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static org.slf4j.Logger.ROOT_LOGGER_NAME;
 
@@ -60,26 +84,222 @@ public class Main {
             log.debug("Boot with debug mode");
         }
 
+        if (config.getSettings().getPipeline().getExecutionMode() == ExecutionMode.VIRTUAL
+                && !ImagePipeline.isVirtualThreadAvailable()) {
+            log.error("execution_mode \"virtual\" requires Java 21 or later, but this JVM is Java {}. Use execution_mode \"pipeline\" instead.",
+                    Runtime.version().feature());
+            System.exit(1);
+        }
+
         // Create API clients
-        MisskeyApiClient misskey = new MisskeyApiClient(config.getAuthentication().getInstanceHostname(), config.getAuthentication().getInstanceKey());
-        CloudVisionApiClient vision = new CloudVisionApiClient(config.getAuthentication().getGoogleAPIKey(), config.getSettings().getLimitPerMonth());
-        WebhookManager webhookManage = config.getSettings().getWebhook().isEnable() ? new WebhookManager(config.getSettings().getWebhook().getUrl(),
-                config.getSettings().getWebhook().getTemplate()) : null;
+        HttpClientFactory httpClientFactory = new HttpClientFactory(config.getSettings().getHttp());
+        httpClientFactory.startStatsLogging(600000);
+        registerHttpMetrics(httpClientFactory);
+        // Misskey・Vision APIの障害や制限に合わせて送信を抑える (エンドポイントごとに管理するため、複数のインスタンスで共有できる)
+        val resilienceConfig = config.getSettings().getResilience();
+        Interceptor[] misskeyInterceptors = resilienceConfig.isEnable()
+                ? new Interceptor[]{new ResilienceInterceptor("misskey", resilienceConfig.getMisskey())} : new Interceptor[0];
+        Interceptor[] visionInterceptors = resilienceConfig.isEnable()
+                ? new Interceptor[]{new ResilienceInterceptor("vision", resilienceConfig.getVision())} : new Interceptor[0];
+        val instances = config.getInstances() != null ? config.getInstances() : List.<ImgSafeConfig.Instance>of();
+        VisionQuota visionQuota;
+        Map<String, CheckpointStore> checkpoints = Map.of();
+        if (instances.isEmpty()) {
+            visionQuota = new VisionQuota(config.getSettings().getLimitPerMonth(), ImgSafeTemp.getQuotaUsage());
+            ImgSafeTemp.bindQuota(visionQuota);
+        } else {
+            // 複数のインスタンスの場合は、インスタンスごとのチェックポイントに保存した利用量の合計を全体の利用量とする
+            checkpoints = openCheckpoints(instances);
+            visionQuota = new VisionQuota(config.getSettings().getLimitPerMonth(), totalUsage(checkpoints.values()));
+        }
+        registerQuotaMetrics(visionQuota);
+        CloudVisionApiClient vision = new CloudVisionApiClient(config.getAuthentication().getGoogleAPIKey(), visionQuota,
+                httpClientFactory.newClient(visionInterceptors));
+        ImageDownloader imageDownloader = new ImageDownloader(httpClientFactory.newClient());
+
+        // TODO: 2022/11/05 Vision API Connection check.
+
+        ImageClassifier classifier = new VisionClassifier(vision);
+        val classifierType = config.getSettings().getClassifier();
+        if (classifierType == ClassifierType.LOCAL || classifierType == ClassifierType.CASCADE) {
+            if (!isOnnxRuntimeAvailable()) {
+                log.error("The local classifier requires ONNX Runtime. Use the jar built with shadowJarWithOnnx.");
+                System.exit(1);
+            }
+            try {
+                ImageClassifier localClassifier = new OnnxNsfwClassifier(config.getSettings().getLocalClassifier());
+                if (classifierType == ClassifierType.CASCADE) {
+                    val cascadeConfig = config.getSettings().getCascade();
+                    val cascade = new CascadeClassifier(localClassifier, classifier,
+                            cascadeConfig.getLowerThreshold(), cascadeConfig.getUpperThreshold());
+                    cascade.startStatsLogging(600000);
+                    registerCascadeMetrics(cascade);
+                    classifier = cascade;
+                } else {
+                    classifier = localClassifier;
+                }
+            } catch (IOException e) {
+                log.error("Failed to load the local classifier.", e);
+                System.exit(1);
+            }
+        }
+
+        // 判定結果のキャッシュは全てのインスタンスで共有し、同じ画像の再投稿を他のインスタンスでも再利用する
+        VerdictCache verdictCache = null;
+        val cacheConfig = config.getSettings().getVerdictCache();
+        if (cacheConfig.isEnable()) {
+            verdictCache = new VerdictCache(new File(cacheConfig.getFile()),
+                    cacheConfig.getMaxEntries(), TimeUnit.DAYS.toMillis(cacheConfig.getTtlDays()));
+            verdictCache.startAutoSave(60000);
+            ImgSafeMetrics.REGISTRY.gauge("imgsafe_verdict_cache_entries", "Entries in the verdict cache.", verdictCache::size);
+            ImgSafeMetrics.REGISTRY.counterFunction("imgsafe_verdict_cache_lookups_total", "Verdict cache lookups.",
+                    "result", "hit", verdictCache::getHits);
+            ImgSafeMetrics.REGISTRY.counterFunction("imgsafe_verdict_cache_lookups_total", "Verdict cache lookups.",
+                    "result", "miss", verdictCache::getMisses);
+        }
+
+        NearDuplicateIndex nearDuplicateIndex = null;
+        val nearDuplicateConfig = config.getSettings().getNearDuplicate();
+        if (nearDuplicateConfig.isEnable()) {
+            nearDuplicateIndex = new NearDuplicateIndex(nearDuplicateConfig.getMaxDistance(),
+                    nearDuplicateConfig.getMaxEntries());
+            ImgSafeMetrics.REGISTRY.gauge("imgsafe_near_duplicate_entries", "Perceptual hashes in the near-duplicate index.",
+                    nearDuplicateIndex::size);
+            ImgSafeMetrics.REGISTRY.counterFunction("imgsafe_near_duplicate_lookups_total", "Near-duplicate index lookups.",
+                    "result", "hit", nearDuplicateIndex::getHits);
+            ImgSafeMetrics.REGISTRY.counterFunction("imgsafe_near_duplicate_lookups_total", "Near-duplicate index lookups.",
+                    "result", "miss", nearDuplicateIndex::getMisses);
+            ImgSafeMetrics.REGISTRY.counterFunction("imgsafe_near_duplicate_lookups_total", "Near-duplicate index lookups.",
+                    "result", "ignored", nearDuplicateIndex::getIgnored);
+        }
+
+        val launcher = new InstanceLauncher(config.getSettings(), new InstanceLauncher.Shared(httpClientFactory,
+                misskeyInterceptors, visionQuota, imageDownloader, verdictCache, nearDuplicateIndex));
+        if (instances.isEmpty()) {
+            val authentication = config.getAuthentication();
+            launcher.start(authentication.getInstanceHostname(), authentication.getInstanceHostname(),
+                    authentication.getInstanceKey(), compileRules(config.getSettings(), null),
+                    config.getSettings().getWebhook(), ImgSafeTemp.getStore(), classifier, false);
+        } else {
+            // Vision APIの上限は全てのインスタンスで共有し、利用しているインスタンスの間で公平に配分する
+            FairQuotaScheduler quotaScheduler = new FairQuotaScheduler(visionQuota);
+            for (val instance : instances) {
+                val checkpoint = checkpoints.get(instance.getName());
+                val tenant = quotaScheduler.register(instance.getName(), instance.getQuotaWeight(), checkpoint.getQuotaUsage());
+                checkpoint.bindQuota(tenant.getUsage());
+                ImgSafeMetrics.REGISTRY.gauge("imgsafe_vision_quota_instance_used", "Vision API units used this month by each instance.",
+                        "instance", instance.getName(), tenant.getUsage()::getUsed);
+
+                launcher.start(instance.getName(), instance.getInstanceHostname(), instance.getInstanceKey(),
+                        compileRules(config.getSettings(), instance),
+                        webhookOf(instance, config.getSettings().getWebhook()),
+                        checkpoint, new TenantClassifier(classifier, quotaScheduler, tenant), true);
+            }
+        }
+
+        val metricsConfig = config.getSettings().getMetrics();
+        if (metricsConfig.isEnable()) {
+            try {
+                new MetricsServer(ImgSafeMetrics.REGISTRY, metricsConfig.getBindAddress(), metricsConfig.getPort(),
+                        metricsConfig.getPath()).start();
+            } catch (IOException e) {
+                log.error("Failed to start the metrics server.", e);
+                System.exit(1);
+            }
+        }
+    }
+
+    private static Map<String, CheckpointStore> openCheckpoints(List<ImgSafeConfig.Instance> instances) {
+        Map<String, CheckpointStore> checkpoints = new LinkedHashMap<>();
+        for (val instance : instances) {
+            if (StringUtils.isAnyBlank(instance.getName(), instance.getInstanceHostname(), instance.getInstanceKey())
+                    || checkpoints.containsKey(instance.getName())) {
+                log.error("Each instance needs a unique name, instance_hostname and instance_key.");
+                System.exit(1);
+            }
 
+            CheckpointStore checkpoint = new CheckpointStore(new File(StringUtils.defaultIfEmpty(instance.getCheckpointFile(),
+                    "ImgSafe-" + instance.getName() + ".json")));
+            checkpoint.startAutoFlush(1000);
+            checkpoints.put(instance.getName(), checkpoint);
+        }
+        return checkpoints;
+    }
+
+    // 前月以前の利用量は数えない
+    private static VisionQuota.Usage totalUsage(Collection<CheckpointStore> checkpoints) {
+        val month = YearMonth.now();
+        int used = 0;
+        for (val checkpoint : checkpoints) {
+            val usage = checkpoint.getQuotaUsage();
+            if (usage != null && usage.month().equals(month))
+                used += usage.used();
+        }
+        return new VisionQuota.Usage(month, used);
+    }
+
+    private static JudgingRules compileRules(ImgSafeConfig.Settings settings, ImgSafeConfig.Instance instance) {
         try {
-            Meta meta = misskey.getMeta();
-            log.info("API connection: Misskey... OK (v{})", meta.version());
-        } catch (IOException e) {
-            log.error("\"API connection: Misskey... Failed", e);
+            return instance != null ? JudgingRules.compile(settings, instance) : JudgingRules.compile(settings);
+        } catch (IllegalArgumentException e) {
+            log.error("Invalid judging rules: {}", e.getMessage());
             System.exit(1);
+            return null;
+        }
+    }
+
+    // インスタンスで指定されていないテンプレートは全体の設定を使う
+    private static ImgSafeConfig.Webhook webhookOf(ImgSafeConfig.Instance instance, ImgSafeConfig.Webhook defaults) {
+        val webhook = instance.getWebhook();
+        if (webhook == null || defaults == null)
+            return webhook != null ? webhook : defaults;
+
+        webhook.setTemplate(ObjectUtils.defaultIfNull(webhook.getTemplate(), defaults.getTemplate()));
+        webhook.setDigestTemplate(ObjectUtils.defaultIfNull(webhook.getDigestTemplate(), defaults.getDigestTemplate()));
+        webhook.setDigestEntryTemplate(ObjectUtils.defaultIfNull(webhook.getDigestEntryTemplate(), defaults.getDigestEntryTemplate()));
+        return webhook;
+    }
+
+    // ONNX Runtimeは通常のjarに同梱していないため、ローカルの分類器を読み込む前に確認する
+    private static boolean isOnnxRuntimeAvailable() {
+        try {
+            Class.forName("ai.onnxruntime.OrtEnvironment", false, Main.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
         }
+    }
 
-        // TODO: 2022/11/05 Vision API Connection check.
+    private static void registerHttpMetrics(HttpClientFactory httpClientFactory) {
+        val registry = ImgSafeMetrics.REGISTRY;
+        registry.gauge("imgsafe_http_connections", "Connections in the shared HTTP connection pool.",
+                "state", "idle", () -> httpClientFactory.getStats().idleConnections());
+        registry.gauge("imgsafe_http_connections", "Connections in the shared HTTP connection pool.",
+                "state", "active", () -> httpClientFactory.getStats().activeConnections());
+        registry.counterFunction("imgsafe_http_connections_opened_total", "New HTTP connections.", null, null,
+                () -> httpClientFactory.getStats().connectionsOpened());
+        registry.counterFunction("imgsafe_http_connections_acquired_total", "HTTP connections acquired, including reused ones.", null, null,
+                () -> httpClientFactory.getStats().connectionsAcquired());
+    }
+
+    private static void registerQuotaMetrics(VisionQuota visionQuota) {
+        val registry = ImgSafeMetrics.REGISTRY;
+        registry.gauge("imgsafe_vision_quota_limit", "Monthly Vision API limit. 0 means unlimited.", visionQuota::getLimit);
+        registry.gauge("imgsafe_vision_quota_used", "Vision API units used this month.", visionQuota::getUsed);
+        registry.gauge("imgsafe_vision_quota_remaining", "Vision API units left this month.",
+                () -> visionQuota.getLimit() > 0 ? visionQuota.getRemaining() : Double.POSITIVE_INFINITY);
+    }
 
-        log.info("Starting ImageCheckTask...");
-        TimerTask imageCheckTask = new ImageCheckTask(misskey, vision, webhookManage, config.getSettings().getJudgingScore());
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(imageCheckTask, 0, 600000); // 10分ごとにチェック
+    private static void registerCascadeMetrics(CascadeClassifier cascade) {
+        val registry = ImgSafeMetrics.REGISTRY;
+        registry.counterFunction("imgsafe_cascade_decisions_total", "Images decided by each classifier of the cascade.",
+                "classifier", "local", () -> cascade.getStats().localDecided());
+        registry.counterFunction("imgsafe_cascade_decisions_total", "Images decided by each classifier of the cascade.",
+                "classifier", "remote", () -> cascade.getStats().remoteDecided());
+        registry.counterFunction("imgsafe_cascade_fallbacks_total", "Uncertain images decided locally because the remote classifier was unavailable.",
+                null, null, () -> cascade.getStats().fallbacks());
+        registry.counterFunction("imgsafe_cascade_remote_errors_total", "Remote classifier requests of the cascade that failed with an error.",
+                null, null, () -> cascade.getStats().remoteErrors());
     }
 
     private static String getSystemInfo() {
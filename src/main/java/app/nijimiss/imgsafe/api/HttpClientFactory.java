@@ -0,0 +1,107 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.api;
+
+import app.nijimiss.imgsafe.ImgSafeConfig;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.*;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.jetbrains.annotations.NotNull;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// 全てのAPIクライアントと画像のダウンロードで接続プールを共有し、TCP/TLSのハンドシェイクを減らす
+@Slf4j
+public class HttpClientFactory {
+    private final ConnectionPool connectionPool;
+    private final OkHttpClient baseClient;
+
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsAcquired = new LongAdder();
+
+    public HttpClientFactory(ImgSafeConfig.Http config) {
+        connectionPool = new ConnectionPool(config.getMaxIdleConnections(), config.getKeepAliveSeconds(), TimeUnit.SECONDS);
+
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(config.getMaxRequests());
+        dispatcher.setMaxRequestsPerHost(config.getMaxRequestsPerHost());
+
+        baseClient = new OkHttpClient.Builder()
+                .connectionPool(connectionPool)
+                .dispatcher(dispatcher)
+                .protocols(List.of(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectTimeout(config.getConnectTimeoutSeconds(), TimeUnit.SECONDS)
+                .readTimeout(config.getReadTimeoutSeconds(), TimeUnit.SECONDS)
+                .writeTimeout(config.getWriteTimeoutSeconds(), TimeUnit.SECONDS)
+                .eventListener(new StatsEventListener())
+                .build();
+    }
+
+    public OkHttpClient newClient(Interceptor... interceptors) {
+        OkHttpClient.Builder builder = baseClient.newBuilder(); // 接続プールとディスパッチャは共有される
+        for (Interceptor interceptor : interceptors)
+            builder.addInterceptor(interceptor);
+        return builder.build();
+    }
+
+    public Stats getStats() {
+        int total = connectionPool.connectionCount();
+        int idle = connectionPool.idleConnectionCount();
+        long opened = connectionsOpened.sum();
+        long acquired = connectionsAcquired.sum();
+        double reuseRatio = acquired == 0 ? 0 : 1.0 - (double) opened / acquired;
+        return new Stats(idle, total - idle, opened, acquired, reuseRatio);
+    }
+
+    public void startStatsLogging(long intervalMillis) {
+        Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+                        .namingPattern("imgsafe-http-stats")
+                        .daemon(true)
+                        .build())
+                .scheduleWithFixedDelay(() -> log.debug("HTTP connection pool: {}", getStats()),
+                        intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public record Stats(int idleConnections, int activeConnections, long connectionsOpened, long connectionsAcquired,
+                        double reuseRatio) {
+        @Override
+        public String toString() {
+            return "idle=" + idleConnections +
+                    ", active=" + activeConnections +
+                    ", opened=" + connectionsOpened +
+                    ", acquired=" + connectionsAcquired +
+                    ", reuse=" + String.format("%.1f%%", reuseRatio * 100);
+        }
+    }
+
+    private class StatsEventListener extends EventListener {
+        @Override
+        public void connectStart(@NotNull Call call, @NotNull InetSocketAddress inetSocketAddress, @NotNull Proxy proxy) {
+            connectionsOpened.increment();
+        }
+
+        @Override
+        public void connectionAcquired(@NotNull Call call, @NotNull Connection connection) {
+            connectionsAcquired.increment();
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package app.nijimiss.imgsafe.api.misskey;
 
+import app.nijimiss.imgsafe.api.resilience.RetryAfter;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.json.JsonReadFeature;
@@ -38,7 +39,6 @@ import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
-import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
@@ -70,15 +70,24 @@ public class MisskeyApiClient {
     private final String token;
 
     public MisskeyApiClient(String hostname, String token) {
-        this.hostname = hostname.startsWith("https://") ? hostname : "https://" + hostname;
+        this(hostname, token, new OkHttpClient());
+    }
+
+    public MisskeyApiClient(String hostname, String token, OkHttpClient httpClient) {
+        // 検証用のローカルサーバーではhttpも使えるようにする
+        this.hostname = hostname.startsWith("https://") || hostname.startsWith("http://") ? hostname : "https://" + hostname;
         if (StringUtils.isEmpty(token))
             throw new IllegalArgumentException();
         this.token = token;
 
-        okHttpClient = new OkHttpClient.Builder()
+        okHttpClient = httpClient.newBuilder()
                 .addInterceptor(new HttpLoggingInterceptor(log::debug))
                 .build();
-        mapper = JsonMapper.builder()
+        mapper = createMapper();
+    }
+
+    static ObjectMapper createMapper() {
+        ObjectMapper mapper = JsonMapper.builder()
                 .enable(JsonReadFeature.ALLOW_UNQUOTED_FIELD_NAMES)
                 .enable(JsonReadFeature.ALLOW_TRAILING_COMMA)
                 .enable(JsonReadFeature.ALLOW_SINGLE_QUOTES)
@@ -95,6 +104,15 @@ public class MisskeyApiClient {
             }
         });
         mapper.registerModule(module); // OffsetDateTimeをdeserializeするために必要
+        return mapper;
+    }
+
+    public String getHost() {
+        return Objects.requireNonNull(HttpUrl.parse(hostname)).host();
+    }
+
+    public MisskeyStreamingClient createStreamingClient(String channel, int queueCapacity, MisskeyStreamingClient.Listener listener) {
+        return new MisskeyStreamingClient(okHttpClient, mapper, hostname, token, channel, queueCapacity, listener);
     }
 
     public Meta getMeta() throws IOException {
@@ -102,10 +120,11 @@ public class MisskeyApiClient {
                 .url(hostname + "/api/admin/meta")
                 .post(RequestBody.create("{\"i\":\"" + token + "\"}", MediaType.get("application/json; charset=utf-8")))
                 .build();
-        Response response = okHttpClient.newCall(request).execute();
-        if (!response.isSuccessful())
-            throw new IOException("Unexpected code " + response);
-        return mapper.readValue(Objects.requireNonNull(response.body()).string(), Meta.class);
+        try (Response response = okHttpClient.newCall(request).execute()) {
+            if (!response.isSuccessful())
+                throw new IOException("Unexpected code " + response);
+            return mapper.readValue(Objects.requireNonNull(response.body()).string(), Meta.class);
+        }
     }
 
     public @NotNull List<File> getFiles(int limit, @Nullable String sinceId) throws IOException {
@@ -117,11 +136,11 @@ public class MisskeyApiClient {
                 .build();
 
         try (Response response = okHttpClient.newCall(request).execute()) {
-            if (response.code() == 200) {
-                return mapper.readValue(response.body().string(), new TypeReference<>() {
-                });
-            }
-            return Collections.emptyList();
+            // 空のリストを返すと新しいファイルがないと区別できないため、失敗は例外にする
+            if (response.code() != 200)
+                throw new IOException("Unexpected code " + response);
+            return mapper.readValue(response.body().string(), new TypeReference<>() {
+            });
         }
     }
 
@@ -137,20 +156,34 @@ public class MisskeyApiClient {
             if (response.code() == 200) {
                 return mapper.readValue(response.body().string(), File.class);
             }
+            // ファイルが存在しない場合のみnullを返し、一時的な失敗で検査を飛ばさない
+            if (response.code() == 429 || response.code() >= 500)
+                throw new IOException("Unexpected code " + response);
             return null;
         }
     }
 
     public boolean updateFile(File file, boolean isSensitive) throws IOException {
+        return requestFileUpdate(file.id(), isSensitive).isSuccess();
+    }
+
+    // 再送の判断ができるよう、応答のステータスとRetry-Afterをそのまま返す
+    public UpdateResult requestFileUpdate(String fileId, boolean isSensitive) throws IOException {
         HttpUrl.Builder builder = Objects.requireNonNull(HttpUrl.parse(hostname + API_ENDPOINT_FILE_UPDATE)).newBuilder();
         Request request = new Request.Builder()
                 .url(builder.build())
-                .post(RequestBody.create(mapper.writeValueAsString(new UpdateFileRequestBody(token, file.id(), isSensitive)),
+                .post(RequestBody.create(mapper.writeValueAsString(new UpdateFileRequestBody(token, fileId, isSensitive)),
                         MediaType.get("application/json; charset=utf-8")))
                 .build();
 
         try (Response response = okHttpClient.newCall(request).execute()) {
-            return response.code() == 204;
+            return new UpdateResult(response.code(), RetryAfter.parseMillis(response.header("Retry-After")));
+        }
+    }
+
+    public record UpdateResult(int code, long retryAfterMillis) {
+        public boolean isSuccess() {
+            return code >= 200 && code < 300;
         }
     }
 
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.api.misskey;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import okhttp3.*;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.*;
+
+@Slf4j
+public class MisskeyStreamingClient {
+    private static final String CONNECTION_ID = "imgsafe";
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 1000;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 60000;
+
+    private final OkHttpClient okHttpClient;
+    private final ObjectMapper mapper;
+    private final String streamingUrl;
+    private final String channel;
+    private final Listener listener;
+    private final ScheduledExecutorService reconnectScheduler;
+    private final BlockingQueue<File> received; // 受信スレッドを止めないよう、検査への投入は別のスレッドで行う
+    private final ExecutorService dispatcher;
+
+    private WebSocket webSocket;
+    private long reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+    private boolean connectedBefore;
+    private boolean closed;
+
+    MisskeyStreamingClient(OkHttpClient okHttpClient, ObjectMapper mapper, String hostname, String token, String channel,
+                           int queueCapacity, Listener listener) {
+        this.okHttpClient = okHttpClient.newBuilder()
+                .pingInterval(30, TimeUnit.SECONDS) // 無通信で切断されないようにする
+                .readTimeout(0, TimeUnit.MILLISECONDS)
+                .build();
+        this.mapper = mapper;
+        this.streamingUrl = hostname + "/streaming?i=" + token;
+        this.channel = channel;
+        this.listener = listener;
+        this.reconnectScheduler = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+                .namingPattern("imgsafe-streaming")
+                .daemon(true)
+                .build());
+        this.received = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.dispatcher = Executors.newSingleThreadExecutor(new BasicThreadFactory.Builder()
+                .namingPattern("imgsafe-streaming-dispatch")
+                .daemon(true)
+                .build());
+        dispatcher.execute(this::dispatchLoop);
+    }
+
+    public int getQueueSize() {
+        return received.size();
+    }
+
+    public synchronized void connect() {
+        if (closed)
+            return;
+
+        Request request = new Request.Builder()
+                .url(streamingUrl)
+                .build();
+        webSocket = okHttpClient.newWebSocket(request, new StreamingListener());
+    }
+
+    public synchronized void close() {
+        closed = true;
+        if (webSocket != null)
+            webSocket.close(1000, null);
+        reconnectScheduler.shutdownNow();
+        dispatcher.shutdownNow();
+    }
+
+    private synchronized void onOpen(WebSocket socket) {
+        if (socket != webSocket)
+            return;
+
+        reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+        try {
+            socket.send(mapper.writeValueAsString(Map.of(
+                    "type", "connect",
+                    "body", Map.of("channel", channel, "id", CONNECTION_ID))));
+        } catch (Exception e) {
+            log.error("Failed to subscribe to the {} channel.", channel, e);
+            socket.cancel();
+            return;
+        }
+
+        log.info("Connected to Misskey streaming API. (channel: {})", channel);
+        listener.onConnected(connectedBefore);
+        connectedBefore = true;
+    }
+
+    private synchronized void scheduleReconnect(WebSocket socket) {
+        if (closed || socket != webSocket)
+            return;
+
+        webSocket = null;
+        long delay = reconnectDelay;
+        reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MILLIS);
+        log.debug("Reconnecting to Misskey streaming API in {} ms.", delay);
+        reconnectScheduler.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void onMessage(String text) {
+        try {
+            JsonNode message = mapper.readTree(text);
+            val body = message.path("body");
+            if (!"channel".equals(message.path("type").asText()) || !CONNECTION_ID.equals(body.path("id").asText()))
+                return;
+            if (!"note".equals(body.path("type").asText()))
+                return;
+
+            for (JsonNode fileNode : body.path("body").path("files")) {
+                val file = mapper.treeToValue(fileNode, File.class);
+                // 検査が追いつかない間も受信は止めず、入りきらないファイルはポーリングで回収する
+                if (!received.offer(file))
+                    listener.onDropped(file);
+            }
+        } catch (Exception e) {
+            log.warn("Failed to handle a streaming message.", e);
+        }
+    }
+
+    private void dispatchLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            File file;
+            try {
+                file = received.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            try {
+                listener.onFile(file);
+            } catch (RuntimeException e) {
+                log.warn("Failed to handle a streamed file {}.", file.id(), e);
+            }
+        }
+    }
+
+    public interface Listener {
+        // 受信スレッドとは別のスレッドから呼ばれるため、検査の待機で受信が止まることはない
+        void onFile(File file);
+
+        // 投入待ちのファイルが上限に達し、受信したファイルを破棄した
+        void onDropped(File file);
+
+        // 再接続時は切断中に投稿されたファイルを取りこぼしている可能性がある
+        void onConnected(boolean reconnected);
+    }
+
+    private class StreamingListener extends WebSocketListener {
+        @Override
+        public void onOpen(@NotNull WebSocket webSocket, @NotNull Response response) {
+            MisskeyStreamingClient.this.onOpen(webSocket);
+        }
+
+        @Override
+        public void onMessage(@NotNull WebSocket webSocket, @NotNull String text) {
+            MisskeyStreamingClient.this.onMessage(text);
+        }
+
+        @Override
+        public void onClosing(@NotNull WebSocket webSocket, int code, @NotNull String reason) {
+            webSocket.close(1000, null);
+        }
+
+        @Override
+        public void onClosed(@NotNull WebSocket webSocket, int code, @NotNull String reason) {
+            log.warn("Misskey streaming connection closed. ({} {})", code, reason);
+            scheduleReconnect(webSocket);
+        }
+
+        @Override
+        public void onFailure(@NotNull WebSocket webSocket, @NotNull Throwable t, @Nullable Response response) {
+            log.warn("Misskey streaming connection failed.", t);
+            scheduleReconnect(webSocket);
+        }
+    }
+}
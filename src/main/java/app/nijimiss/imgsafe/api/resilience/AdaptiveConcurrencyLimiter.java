@@ -0,0 +1,64 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package app.nijimiss.imgsafe.api.resilience;
+
+// AIMD: 成功するたびに同時実行数の上限を少しずつ上げ、過負荷の応答を受けたら半分に下げる
+public class AdaptiveConcurrencyLimiter {
+    private static final double DECREASE_RATIO = 0.5;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private double limit;
+    private int inFlight;
+    private long decreasedAt = System.nanoTime();
+
+    public AdaptiveConcurrencyLimiter(int minLimit, int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = this.maxLimit;
+    }
+
+    // 戻り値は開始時刻で、releaseに渡す
+    public synchronized long acquire() throws InterruptedException {
+        while (inFlight >= (int) limit)
+            wait();
+        inFlight++;
+        return System.nanoTime();
+    }
+
+    public synchronized void release(long startedAt, boolean overloaded) {
+        inFlight--;
+        if (!overloaded) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        } else if (startedAt - decreasedAt >= 0) {
+            // 同時に送っていた要求がまとめて失敗しても、下げるのは1回だけにする
+            limit = Math.max(minLimit, limit * DECREASE_RATIO);
+            decreasedAt = System.nanoTime();
+        }
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+}
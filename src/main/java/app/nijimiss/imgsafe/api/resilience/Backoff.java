@@ -0,0 +1,46 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.api.resilience;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+// 再送までの待機時間。上限に達するまで倍に伸ばし、その半分から全体の間で揺らして再送が集中しないようにする
+public class Backoff {
+    private final long initialMillis;
+    private final long maxMillis;
+
+    public Backoff(long initialMillis, long maxMillis) {
+        this.initialMillis = Math.max(1, initialMillis);
+        this.maxMillis = Math.max(this.initialMillis, maxMillis);
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    public long delayMillis(int failures) {
+        long delay = initialMillis << Math.min(Math.max(0, failures), 30);
+        delay = Math.min(maxMillis, delay <= 0 ? maxMillis : delay);
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+
+    // 時間をおいて再送すれば成功する可能性がある応答
+    public static boolean isRetryable(int code) {
+        return code == 408 || code == 429 || code >= 500;
+    }
+}
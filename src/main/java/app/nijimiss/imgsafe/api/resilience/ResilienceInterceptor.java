@@ -0,0 +1,125 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package app.nijimiss.imgsafe.api.resilience;
+
+import app.nijimiss.imgsafe.ImgSafeConfig;
+import app.nijimiss.imgsafe.metrics.ImgSafeMetrics;
+import lombok.val;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// APIの各エンドポイント (ホストとパス) ごとに、送信ペースの制限・遮断・同時実行数の調整を行う
+public class ResilienceInterceptor implements Interceptor {
+    private final String service;
+    private final ImgSafeConfig.Endpoint config;
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    public ResilienceInterceptor(String service, ImgSafeConfig.Endpoint config) {
+        this.service = service;
+        this.config = config;
+    }
+
+    @NotNull
+    @Override
+    public Response intercept(@NotNull Chain chain) throws IOException {
+        val url = chain.request().url();
+        return endpoints.computeIfAbsent(service + ":" + url.host() + url.encodedPath(), Endpoint::new).proceed(chain);
+    }
+
+    private class Endpoint {
+        private final String name;
+        private final TokenBucket bucket;
+        private final CircuitBreaker breaker;
+        private final AdaptiveConcurrencyLimiter limiter;
+
+        private Endpoint(String name) {
+            this.name = name;
+            this.bucket = config.getRatePerSecond() > 0 ? new TokenBucket(config.getRatePerSecond(), config.getBurst()) : null;
+            this.breaker = new CircuitBreaker(name, config.getFailureThreshold(), TimeUnit.SECONDS.toMillis(config.getOpenSeconds()));
+            this.limiter = new AdaptiveConcurrencyLimiter(config.getMinConcurrency(), config.getMaxConcurrency());
+
+            val registry = ImgSafeMetrics.REGISTRY;
+            registry.gauge("imgsafe_endpoint_concurrency_limit", "Current adaptive concurrency limit of each API endpoint.",
+                    "endpoint", name, limiter::getLimit);
+            registry.gauge("imgsafe_endpoint_in_flight", "Requests in flight to each API endpoint.",
+                    "endpoint", name, limiter::getInFlight);
+            registry.gauge("imgsafe_endpoint_circuit_state", "Circuit breaker state of each API endpoint. (0: closed, 1: half-open, 2: open)",
+                    "endpoint", name, () -> breaker.getState().ordinal());
+        }
+
+        private Response proceed(Chain chain) throws IOException {
+            if (!breaker.tryAcquire()) {
+                ImgSafeMetrics.ENDPOINT_REJECTED.inc(name);
+                throw new CircuitOpenException(name, breaker.getRetryAfterMillis());
+            }
+
+            long startedAt;
+            try {
+                startedAt = limiter.acquire();
+            } catch (InterruptedException e) {
+                breaker.onIgnored();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + name);
+            }
+
+            boolean overloaded = false;
+            Boolean failed = null; // nullの場合は遮断の判断に使わない
+            try {
+                if (bucket != null)
+                    bucket.acquire();
+
+                val response = chain.proceed(chain.request());
+                if (response.code() == 429) {
+                    // 送信ペースの問題なので遮断はせず、指定された間は送信を止める
+                    overloaded = true;
+                    long retryAfter = RetryAfter.parseMillis(response.header("Retry-After"));
+                    if (bucket != null && retryAfter > 0)
+                        bucket.pause(Math.min(retryAfter, TimeUnit.SECONDS.toMillis(config.getOpenSeconds())));
+                } else {
+                    overloaded = response.code() >= 500;
+                    failed = overloaded;
+                }
+                return response;
+            } catch (IOException e) {
+                // タイムアウト以外の中断は送信先の問題ではない
+                if (!(e instanceof InterruptedIOException) || e instanceof SocketTimeoutException) {
+                    overloaded = true;
+                    failed = true;
+                }
+                throw e;
+            } finally {
+                limiter.release(startedAt, overloaded);
+                if (failed == null) {
+                    breaker.onIgnored();
+                } else if (failed) {
+                    breaker.onFailure();
+                } else {
+                    breaker.onSuccess();
+                }
+            }
+        }
+    }
+}
@@ -16,14 +16,11 @@
 
 package app.nijimiss.imgsafe.api.vision;
 
-import app.nijimiss.imgsafe.ImgSafeTemp;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.gson.Gson;
-import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
+import lombok.val;
 import okhttp3.*;
 import okhttp3.logging.HttpLoggingInterceptor;
 import org.apache.commons.lang3.StringUtils;
@@ -38,101 +35,81 @@ public class CloudVisionApiClient {
 
     private final OkHttpClient okHttpClient;
     private final ObjectMapper mapper;
+    private final String apiAddress;
 
     private final String token;
-    private final int limit;
+    private final VisionQuota quota;
 
     public CloudVisionApiClient(String token) {
         this(token, 1000);
     }
 
     public CloudVisionApiClient(String token, int limit) {
+        this(token, limit, new OkHttpClient());
+    }
+
+    public CloudVisionApiClient(String token, int limit, OkHttpClient httpClient) {
+        this(token, new VisionQuota(limit), httpClient);
+    }
+
+    public CloudVisionApiClient(String token, VisionQuota quota, OkHttpClient httpClient) {
+        this(token, quota, httpClient, API_ADDRESS);
+    }
+
+    public CloudVisionApiClient(String token, VisionQuota quota, OkHttpClient httpClient, String apiAddress) {
         if (StringUtils.isEmpty(token))
             throw new IllegalArgumentException();
         this.token = token;
-        this.limit = limit;
+        this.quota = quota;
+        this.apiAddress = apiAddress;
 
-        okHttpClient = new OkHttpClient.Builder()
+        okHttpClient = httpClient.newBuilder()
                 .addInterceptor(new HttpLoggingInterceptor(log::debug))
                 .build();
         mapper = new ObjectMapper();
     }
 
-    public VisionSafeSearchResult safeSearch(VisionSafeSearchRequests requests) throws IOException {
-        if (ImgSafeTemp.getRequestedCount() >= limit)
-            throw new IllegalStateException("API Limit Exceeded");
+    public VisionQuota getQuota() {
+        return quota;
+    }
+
+    public String getHost() {
+        return Objects.requireNonNull(HttpUrl.parse(apiAddress)).host();
+    }
 
-        HttpUrl.Builder builder = Objects.requireNonNull(HttpUrl.parse(API_ADDRESS)).newBuilder();
+    public VisionSafeSearchResult safeSearch(List<ImageSource> images) throws IOException {
+        return execute(new SafeSearchRequestBody(images), images.size());
+    }
+
+    private VisionSafeSearchResult execute(RequestBody body, int units) throws IOException {
+        // 料金は画像単位で計上されるため、バッチの画像数をまとめて予約する
+        val reservation = quota.tryReserve(units);
+        if (reservation == null)
+            throw new QuotaExceededException(quota.getNextReset());
+
+        HttpUrl.Builder builder = Objects.requireNonNull(HttpUrl.parse(apiAddress)).newBuilder();
         builder.addQueryParameter("key", token);
         builder.addQueryParameter("alt", "json");
 
-        Gson gson = new Gson(); // TODO: 2022/04/07 そのうちJacksonに移行する
         Request request = new Request.Builder()
                 .url(builder.build())
-                .post(RequestBody.create(gson.toJson(requests),
-                        MediaType.get("application/json; charset=utf-8")))
+                .post(body)
                 .build();
 
+        boolean charged = false;
         try (Response response = okHttpClient.newCall(request).execute()) {
-            ImgSafeTemp.setRequestedCount(ImgSafeTemp.getRequestedCount() + 1);
-
-            if (response.code() == 200) {
-                return mapper.readValue(response.body().string(), new TypeReference<>() {
-                });
-            }
-            return new VisionSafeSearchResult(List.of());
+            // 失敗した画像をエラーとして扱うと検査済みになるため、例外にして次回に再試行させる
+            if (response.code() != 200)
+                throw new IOException("Unexpected code " + response);
+            charged = true;
+            return mapper.readValue(response.body().byteStream(), VisionSafeSearchResult.class);
         } catch (JsonProcessingException e) {
-            log.warn("An error was returned for this image.", e);
-            return new VisionSafeSearchResult(List.of());
-        }
-    }
-
-
-    public static final class VisionSafeSearchRequests {
-        private final List<VisionSafeSearchRequestBody> requests;
-
-        public VisionSafeSearchRequests(
-                List<VisionSafeSearchRequestBody> requests) {
-            this.requests = requests;
-        }
-
-        public List<VisionSafeSearchRequestBody> getRequests() {
-            return requests;
-        }
-    }
-
-    // TODO: 2022/04/07 どうにかしたい。
-    @ToString
-    public static class VisionSafeSearchRequestBody {
-        private final VisionSafeSearchRequestImage image;
-        private final List<VisionSafeSearchRequestFeatures> features;
-
-        public VisionSafeSearchRequestBody(VisionSafeSearchRequestImage image) {
-            this.image = image;
-            features = List.of(new VisionSafeSearchRequestFeatures());
-        }
-    }
-
-    @ToString
-    public static final class VisionSafeSearchRequestImage {
-        private final String content;
-
-        public VisionSafeSearchRequestImage(
-                String content) {
-            this.content = content;
-        }
-
-        public String getContent() {
-            return content;
-        }
-    }
-
-    @ToString
-    public static class VisionSafeSearchRequestFeatures {
-        private final String type = "SAFE_SEARCH_DETECTION";
-
-        public String getType() {
-            return type;
+            // 課金済みでも、空の結果を返すと全ての画像が検査済みとして扱われるため、失敗として再試行させる
+            throw new IOException("Vision API returned a malformed response.", e);
+        } finally {
+            // 通信に失敗したリクエストや遮断中で送らなかったリクエストは課金されないので予約を返却する
+            if (!charged)
+                quota.refund(reservation);
         }
     }
 }
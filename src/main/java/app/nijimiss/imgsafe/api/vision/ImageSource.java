@@ -0,0 +1,104 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.api.vision;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public interface ImageSource {
+    int IN_MEMORY_THRESHOLD = 1024 * 1024; // これより大きい画像は一時ファイルに退避する
+
+    long contentLength();
+
+    InputStream openStream() throws IOException;
+
+    default long encodedLength() {
+        return (contentLength() + 2) / 3 * 4; // Base64 (パディングあり)
+    }
+
+    default void release() {
+    }
+
+    static ImageSource ofBytes(byte[] data) {
+        return new ImageSource() {
+            @Override
+            public long contentLength() {
+                return data.length;
+            }
+
+            @Override
+            public InputStream openStream() {
+                return new ByteArrayInputStream(data);
+            }
+        };
+    }
+
+    static ImageSource ofFile(Path path) {
+        return new TemporaryFileSource(path);
+    }
+
+    static ImageSource spool(InputStream input) throws IOException {
+        val output = new DeferredFileOutputStream(IN_MEMORY_THRESHOLD, "imgsafe-", ".img", null);
+        try (input; output) {
+            IOUtils.copy(input, output);
+        } catch (IOException e) {
+            if (!output.isInMemory())
+                Files.deleteIfExists(output.getFile().toPath());
+            throw e;
+        }
+
+        return output.isInMemory() ? ofBytes(output.getData()) : ofFile(output.getFile().toPath());
+    }
+
+    @Slf4j
+    final class TemporaryFileSource implements ImageSource {
+        private final Path path;
+        private final long length;
+
+        private TemporaryFileSource(Path path) {
+            this.path = path;
+            this.length = path.toFile().length();
+        }
+
+        @Override
+        public long contentLength() {
+            return length;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return Files.newInputStream(path);
+        }
+
+        @Override
+        public void release() {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.warn("Failed to delete temporary image file {}.", path, e);
+            }
+        }
+    }
+}
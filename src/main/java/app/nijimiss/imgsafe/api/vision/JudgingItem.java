@@ -16,10 +16,17 @@
 
 package app.nijimiss.imgsafe.api.vision;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+
 public enum JudgingItem {
+    @JsonProperty("adult")
     ADULT,
+    @JsonProperty("spoof")
     SPOOF,
+    @JsonProperty("medical")
     MEDICAL,
+    @JsonProperty("violence")
     VIOLENCE,
+    @JsonProperty("racy")
     RACY
 }
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.api.vision;
+
+import java.time.Instant;
+
+public class QuotaExceededException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    private final Instant resetAt;
+
+    public QuotaExceededException(Instant resetAt) {
+        super("API Limit Exceeded");
+        this.resetAt = resetAt;
+    }
+
+    public Instant getResetAt() {
+        return resetAt;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.api.vision;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+// 画像をBase64に変換しながらJSONリクエストを直接ソケットへ書き込む
+public class SafeSearchRequestBody extends RequestBody {
+    private static final MediaType MEDIA_TYPE = MediaType.get("application/json; charset=utf-8");
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final byte[] REQUESTS_START = "{\"requests\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] IMAGE_START = "{\"image\":{\"content\":\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] IMAGE_END = "\"},\"features\":[{\"type\":\"SAFE_SEARCH_DETECTION\"}]}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] REQUESTS_END = "]}".getBytes(StandardCharsets.UTF_8);
+
+    private final List<ImageSource> images;
+
+    public SafeSearchRequestBody(List<ImageSource> images) {
+        this.images = List.copyOf(images);
+    }
+
+    @Override
+    public MediaType contentType() {
+        return MEDIA_TYPE;
+    }
+
+    @Override
+    public long contentLength() {
+        long length = REQUESTS_START.length + REQUESTS_END.length + Math.max(0, images.size() - 1);
+        for (ImageSource image : images)
+            length += IMAGE_START.length + image.encodedLength() + IMAGE_END.length;
+        return length;
+    }
+
+    @Override
+    public void writeTo(@NotNull BufferedSink sink) throws IOException {
+        sink.write(REQUESTS_START);
+        for (int i = 0; i < images.size(); i++) {
+            if (i > 0)
+                sink.writeByte(',');
+            sink.write(IMAGE_START);
+
+            // エンコーダーのcloseで末尾のパディングを出力するが、ソケット側は閉じない
+            try (InputStream input = images.get(i).openStream();
+                 OutputStream encoder = Base64.getEncoder().wrap(CloseShieldOutputStream.wrap(sink.outputStream()))) {
+                IOUtils.copy(input, encoder, BUFFER_SIZE);
+            }
+
+            sink.write(IMAGE_END);
+        }
+        sink.write(REQUESTS_END);
+    }
+}
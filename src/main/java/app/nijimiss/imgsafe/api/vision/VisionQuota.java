@@ -0,0 +1,137 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.api.vision;
+
+import lombok.val;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Vision APIの月間利用量。複数のワーカーから同時に予約されてもロックせずに上限を守る
+public class VisionQuota {
+    private final int limit; // 0以下の場合は無制限
+    private final Clock clock;
+    private final AtomicReference<Usage> usage;
+    private volatile Runnable listener = () -> {
+    };
+    private volatile Guard guard;
+
+    public VisionQuota(int limit) {
+        this(limit, null, Clock.systemDefaultZone());
+    }
+
+    public VisionQuota(int limit, Usage initial) {
+        this(limit, initial, Clock.systemDefaultZone());
+    }
+
+    public VisionQuota(int limit, Usage initial, Clock clock) {
+        this.limit = limit;
+        this.clock = clock;
+        this.usage = new AtomicReference<>(initial != null ? initial : new Usage(YearMonth.now(clock), 0));
+    }
+
+    // 利用量が変わるたびに呼ばれる。永続化は呼び出し先でまとめて行う
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    // 全体の上限とは別に、予約ごとの可否を判断させる (複数のインスタンスでの配分など)
+    public void setGuard(Guard guard) {
+        this.guard = guard;
+    }
+
+    public Reservation tryReserve(int units) {
+        if (units <= 0)
+            throw new IllegalArgumentException("units must be positive");
+
+        val guard = this.guard;
+        if (guard != null && !guard.tryReserve(units))
+            return null;
+
+        while (true) {
+            val current = usage.get();
+            val month = YearMonth.now(clock);
+            // 月が変わっていれば利用量を0から数え直す
+            int used = current.month().equals(month) ? current.used() : 0;
+            if (limit > 0 && used + units > limit) {
+                if (guard != null)
+                    guard.refund(new Reservation(month, units));
+                return null;
+            }
+
+            if (usage.compareAndSet(current, new Usage(month, used + units))) {
+                listener.run();
+                return new Reservation(month, units);
+            }
+        }
+    }
+
+    public void refund(Reservation reservation) {
+        val guard = this.guard;
+        if (guard != null)
+            guard.refund(reservation);
+
+        while (true) {
+            val current = usage.get();
+            // 予約後に月が変わった場合は既にリセットされているので返却しない
+            if (!current.month().equals(reservation.month()))
+                return;
+
+            val next = new Usage(current.month(), Math.max(0, current.used() - reservation.units()));
+            if (usage.compareAndSet(current, next)) {
+                listener.run();
+                return;
+            }
+        }
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public Usage getUsage() {
+        return usage.get();
+    }
+
+    public int getUsed() {
+        val current = usage.get();
+        return current.month().equals(YearMonth.now(clock)) ? current.used() : 0;
+    }
+
+    public int getRemaining() {
+        return limit > 0 ? Math.max(0, limit - getUsed()) : Integer.MAX_VALUE;
+    }
+
+    public Instant getNextReset() {
+        return YearMonth.now(clock).plusMonths(1).atDay(1).atStartOfDay(clock.getZone()).toInstant();
+    }
+
+    public record Usage(YearMonth month, int used) {
+    }
+
+    // 予約と返却は同じスレッドから呼ばれる
+    public interface Guard {
+        boolean tryReserve(int units);
+
+        void refund(Reservation reservation);
+    }
+
+    public record Reservation(YearMonth month, int units) {
+    }
+}
@@ -16,12 +16,21 @@
 
 package app.nijimiss.imgsafe.api.vision;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
 import java.util.List;
 
+@JsonIgnoreProperties(ignoreUnknown = true)
 public record VisionSafeSearchResult(
         List<VisionSafeSearchResultResponse> responses) {
 
+    @JsonIgnoreProperties(ignoreUnknown = true)
     public record VisionSafeSearchResultResponse(
-            SafeSearchAnnotation safeSearchAnnotation) {
+            SafeSearchAnnotation safeSearchAnnotation,
+            Status error) {
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public record Status(int code, String message) {
     }
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.cache;
+
+import java.util.Arrays;
+
+// 64bitハッシュをハミング距離で検索する多重索引。ハッシュをmaxDistance+1個のブロックに分けると、
+// 距離がmaxDistance以内のハッシュは鳩の巣原理によりいずれかのブロックが完全に一致するため、一致するブロックの候補だけを調べればよい
+public class MultiIndexHash<V> {
+    private static final int NONE = -1;
+    private static final int MIN_BUCKET_BITS = 4;
+    private static final int MAX_BUCKET_BITS = 24;
+    private static final long MIX = 0x9E3779B97F4A7C15L;
+    private static final long[] NO_HASHES = new long[0];
+    private static final int[] NO_INDEXES = new int[0];
+
+    private final int maxDistance;
+    private final int blocks;
+    private final int[] blockShift;
+    private final long[] blockMask;
+    private final int[] bucketBits;
+    // ブロックごと・バケットごとに、ハッシュと要素の位置を連続した配列で保持し、候補を順に読むだけで比較できるようにする
+    private final long[][][] bucketHashes;
+    private final int[][][] bucketIndexes;
+    private final int[][] bucketSizes;
+
+    private Object[] values;
+    private int size;
+
+    public MultiIndexHash(int maxDistance, int expectedSize) {
+        if (maxDistance < 0 || maxDistance > 63)
+            throw new IllegalArgumentException("maxDistance must be between 0 and 63");
+        this.maxDistance = maxDistance;
+        this.blocks = maxDistance + 1;
+
+        int capacity = Math.max(16, expectedSize);
+        int sizeBits = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        blockShift = new int[blocks];
+        blockMask = new long[blocks];
+        bucketBits = new int[blocks];
+        bucketHashes = new long[blocks][][];
+        bucketIndexes = new int[blocks][][];
+        bucketSizes = new int[blocks][];
+
+        // 64bitをできるだけ均等に分ける (距離4の場合は13, 13, 13, 13, 12bit)
+        int shift = 0;
+        for (int block = 0; block < blocks; block++) {
+            int width = 64 / blocks + (block < 64 % blocks ? 1 : 0);
+            blockShift[block] = shift;
+            blockMask[block] = width == 64 ? -1L : (1L << width) - 1;
+            // ブロックが広い場合は要素数に見合う数のバケットに畳み込む
+            bucketBits[block] = Math.min(width, Math.max(MIN_BUCKET_BITS, Math.min(sizeBits, MAX_BUCKET_BITS)));
+            int buckets = 1 << bucketBits[block];
+            bucketHashes[block] = new long[buckets][];
+            bucketIndexes[block] = new int[buckets][];
+            Arrays.fill(bucketHashes[block], NO_HASHES);
+            Arrays.fill(bucketIndexes[block], NO_INDEXES);
+            bucketSizes[block] = new int[buckets];
+            shift += width;
+        }
+        values = new Object[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void add(long hash, V value) {
+        // 同一ハッシュは新しい結果で上書きする
+        int first = bucketOf(0, hash);
+        long[] firstHashes = bucketHashes[0][first];
+        for (int i = 0, n = bucketSizes[0][first]; i < n; i++) {
+            if (firstHashes[i] == hash) {
+                values[bucketIndexes[0][first][i]] = value;
+                return;
+            }
+        }
+
+        if (size == values.length)
+            values = Arrays.copyOf(values, size * 2);
+
+        int index = size++;
+        values[index] = value;
+        for (int block = 0; block < blocks; block++) {
+            int bucket = bucketOf(block, hash);
+            int count = bucketSizes[block][bucket];
+            if (count == bucketHashes[block][bucket].length) {
+                int grown = Math.max(4, count + (count >> 1));
+                bucketHashes[block][bucket] = Arrays.copyOf(bucketHashes[block][bucket], grown);
+                bucketIndexes[block][bucket] = Arrays.copyOf(bucketIndexes[block][bucket], grown);
+            }
+            bucketHashes[block][bucket][count] = hash;
+            bucketIndexes[block][bucket][count] = index;
+            bucketSizes[block][bucket] = count + 1;
+        }
+    }
+
+    // 距離がmaxDistance以内で最も近い値を返す
+    @SuppressWarnings("unchecked")
+    public V findNearest(long hash) {
+        int best = NONE;
+        int bestDistance = maxDistance + 1;
+        for (int block = 0; block < blocks; block++) {
+            int bucket = bucketOf(block, hash);
+            long[] candidates = bucketHashes[block][bucket];
+            for (int i = 0, n = bucketSizes[block][bucket]; i < n; i++) {
+                int distance = PerceptualHash.distance(hash, candidates[i]);
+                if (distance < bestDistance) {
+                    best = bucketIndexes[block][bucket][i];
+                    bestDistance = distance;
+                    if (distance == 0)
+                        return (V) values[best];
+                }
+            }
+        }
+        return best != NONE ? (V) values[best] : null;
+    }
+
+    private int bucketOf(int block, long hash) {
+        long key = (hash >>> blockShift[block]) & blockMask[block];
+        int bits = bucketBits[block];
+        if (Long.bitCount(blockMask[block]) == bits)
+            return (int) key;
+        return (int) ((key * MIX) >>> (64 - bits));
+    }
+}
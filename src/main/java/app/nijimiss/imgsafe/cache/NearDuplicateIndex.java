@@ -0,0 +1,115 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.cache;
+
+import app.nijimiss.imgsafe.api.vision.SafeSearchAnnotation;
+import lombok.val;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// 近い画像の判定結果を再利用する。異なる画像を近いと誤って判定すると、その画像は検査されずに通過するため注意が必要
+public class NearDuplicateIndex {
+    private final int maxDistance;
+    private final int generationSize;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<SafeSearchAnnotation, SafeSearchAnnotation> interned = new HashMap<>(); // 判定結果の組み合わせは高々6^5通り
+
+    private MultiIndexHash<SafeSearchAnnotation> current;
+    private MultiIndexHash<SafeSearchAnnotation> previous;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder ignored = new LongAdder();
+
+    public NearDuplicateIndex(int maxDistance, int maxEntries) {
+        if (maxDistance < 0 || maxDistance > 63)
+            throw new IllegalArgumentException("maxDistance must be between 0 and 63");
+        if (maxEntries < 2)
+            throw new IllegalArgumentException("maxEntries must be at least 2");
+        this.maxDistance = maxDistance;
+        this.generationSize = maxEntries / 2;
+        this.current = new MultiIndexHash<>(maxDistance, generationSize);
+        this.previous = new MultiIndexHash<>(maxDistance, 16);
+    }
+
+    public SafeSearchAnnotation find(long hash) {
+        if (!PerceptualHash.isDistinctive(hash)) {
+            ignored.increment();
+            return null;
+        }
+
+        SafeSearchAnnotation found;
+        lock.readLock().lock();
+        try {
+            found = current.findNearest(hash);
+            if (found == null)
+                found = previous.findNearest(hash);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (found != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return found;
+    }
+
+    public void add(long hash, SafeSearchAnnotation annotation) {
+        if (!PerceptualHash.isDistinctive(hash))
+            return;
+
+        lock.writeLock().lock();
+        try {
+            // 索引からの削除は難しいため、世代ごとに作り直して古いハッシュから捨てる
+            if (current.size() >= generationSize) {
+                previous = current;
+                current = new MultiIndexHash<>(maxDistance, generationSize);
+            }
+
+            val value = interned.computeIfAbsent(annotation, key -> key);
+            current.add(hash, value);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return current.size() + previous.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getIgnored() {
+        return ignored.sum();
+    }
+}
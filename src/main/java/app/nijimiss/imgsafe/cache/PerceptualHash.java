@@ -0,0 +1,91 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.cache;
+
+import app.nijimiss.imgsafe.api.vision.ImageSource;
+import lombok.val;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+
+public final class PerceptualHash {
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+    private static final int DECODE_MIN_EDGE = 64; // ハッシュ計算にはこの程度の解像度があれば十分
+    private static final int MIN_DISTINCTIVE_BITS = 8;
+
+    private PerceptualHash() {
+        throw new UnsupportedOperationException();
+    }
+
+    // デコードできない形式の場合はnullを返す
+    public static Long compute(ImageSource source) throws IOException {
+        try (InputStream input = source.openStream();
+             ImageInputStream imageInput = ImageIO.createImageInputStream(input)) {
+            val readers = ImageIO.getImageReaders(imageInput);
+            if (!readers.hasNext())
+                return null;
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInput, true, true);
+                int step = Math.max(1, Math.min(reader.getWidth(0), reader.getHeight(0)) / DECODE_MIN_EDGE);
+                val param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0); // 大きな画像を全画素デコードしない
+                return dHash(reader.read(0, param));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    public static long dHash(BufferedImage image) {
+        val gray = new BufferedImage(HASH_WIDTH, HASH_HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+        val graphics = gray.createGraphics();
+        try {
+            graphics.drawImage(image.getScaledInstance(HASH_WIDTH, HASH_HEIGHT, Image.SCALE_AREA_AVERAGING), 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        val raster = gray.getRaster();
+        long hash = 0;
+        for (int y = 0; y < HASH_HEIGHT; y++) {
+            for (int x = 0; x < HASH_WIDTH - 1; x++) {
+                hash <<= 1;
+                if (raster.getSample(x, y, 0) < raster.getSample(x + 1, y, 0))
+                    hash |= 1;
+            }
+        }
+        return hash;
+    }
+
+    // 単色や緩やかなグラデーションの画像は内容に関わらずほぼ全て0 (または1) のハッシュになるため、近傍の判定に使わない
+    public static boolean isDistinctive(long hash) {
+        int bits = Long.bitCount(hash);
+        return bits >= MIN_DISTINCTIVE_BITS && bits <= 64 - MIN_DISTINCTIVE_BITS;
+    }
+
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+}
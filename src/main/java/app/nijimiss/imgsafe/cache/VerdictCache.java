@@ -0,0 +1,174 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.cache;
+
+import app.nijimiss.imgsafe.api.vision.SafeSearchAnnotation;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+@Slf4j
+public class VerdictCache {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final File cacheFile;
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Entry> entries; // アクセス順に並ぶため、先頭が最も古い
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private boolean dirty;
+
+    public VerdictCache(File cacheFile, int maxEntries, long ttlMillis) {
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("maxEntries must be positive");
+        this.cacheFile = cacheFile;
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > VerdictCache.this.maxEntries;
+            }
+        };
+
+        load();
+    }
+
+    public synchronized SafeSearchAnnotation get(String md5, long size) {
+        if (StringUtils.isEmpty(md5)) {
+            misses.increment();
+            return null;
+        }
+
+        val key = key(md5, size);
+        val entry = entries.get(key);
+        if (entry == null || isExpired(entry)) {
+            if (entry != null) {
+                entries.remove(key);
+                dirty = true;
+            }
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+        return entry.annotation();
+    }
+
+    public synchronized void put(String md5, long size, SafeSearchAnnotation annotation) {
+        if (StringUtils.isEmpty(md5) || annotation == null)
+            return;
+
+        entries.put(key(md5, size), new Entry(key(md5, size), annotation, System.currentTimeMillis()));
+        dirty = true;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public void startAutoSave(long intervalMillis) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+                .namingPattern("imgsafe-verdict-cache")
+                .daemon(true)
+                .build());
+        scheduler.scheduleWithFixedDelay(this::save, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::save, "imgsafe-verdict-cache-shutdown"));
+    }
+
+    public void save() {
+        List<Entry> snapshot;
+        synchronized (this) {
+            if (!dirty)
+                return;
+            entries.values().removeIf(this::isExpired);
+            snapshot = new ArrayList<>(entries.values());
+            dirty = false;
+        }
+
+        // 書き込み途中で停止してもキャッシュが壊れないよう、一時ファイルに書いてから置き換える
+        val tempFile = new File(cacheFile.getPath() + ".tmp");
+        try {
+            MAPPER.writeValue(tempFile, snapshot);
+            Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("Verdict cache saved: {} entries, {} hits, {} misses.", snapshot.size(), getHits(), getMisses());
+        } catch (IOException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            log.error("The verdict cache could not be saved successfully.", e);
+        }
+    }
+
+    private void load() {
+        if (!cacheFile.exists())
+            return;
+
+        try {
+            List<Entry> loaded = MAPPER.readValue(cacheFile, new TypeReference<>() {
+            });
+            synchronized (this) {
+                for (Entry entry : loaded) {
+                    if (!isExpired(entry))
+                        entries.put(entry.key(), entry);
+                }
+            }
+            log.info("Loaded {} cached verdicts.", entries.size());
+        } catch (IOException e) {
+            log.error("The verdict cache could not be loaded successfully.", e);
+        }
+    }
+
+    private boolean isExpired(Entry entry) {
+        return ttlMillis > 0 && System.currentTimeMillis() - entry.storedAt() > ttlMillis;
+    }
+
+    private static String key(String md5, long size) {
+        return md5 + ":" + size;
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public record Entry(String key, SafeSearchAnnotation annotation, long storedAt) {
+    }
+}
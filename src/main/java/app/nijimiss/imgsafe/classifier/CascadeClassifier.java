@@ -0,0 +1,188 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.classifier;
+
+import app.nijimiss.imgsafe.api.vision.ImageSource;
+import app.nijimiss.imgsafe.api.resilience.CircuitOpenException;
+import app.nijimiss.imgsafe.api.vision.QuotaExceededException;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// まず手元のモデルで判定し、判断の難しい画像だけをリモートの分類器 (Vision API) に送る
+@Slf4j
+public class CascadeClassifier implements ImageClassifier {
+    private final ImageClassifier local;
+    private final ImageClassifier remote;
+    private final double lowerThreshold;
+    private final double upperThreshold;
+
+    private final LongAdder localDecided = new LongAdder();
+    private final LongAdder remoteDecided = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder remoteErrors = new LongAdder();
+    private final LongAdder localImages = new LongAdder();
+    private final LongAdder localNanos = new LongAdder();
+    private final LongAdder remoteImages = new LongAdder();
+    private final LongAdder remoteNanos = new LongAdder();
+
+    public CascadeClassifier(ImageClassifier local, ImageClassifier remote, double lowerThreshold, double upperThreshold) {
+        if (lowerThreshold < 0 || upperThreshold > 1 || lowerThreshold > upperThreshold)
+            throw new IllegalArgumentException("Thresholds must satisfy 0 <= lower <= upper <= 1");
+        this.local = local;
+        this.remote = remote;
+        this.lowerThreshold = lowerThreshold;
+        this.upperThreshold = upperThreshold;
+    }
+
+    @Override
+    public String getName() {
+        return local.getName() + " -> " + remote.getName();
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return local.getMaxBatchSize();
+    }
+
+    @Override
+    public long getMaxBatchBytes() {
+        return Math.min(local.getMaxBatchBytes(), remote.getMaxBatchBytes());
+    }
+
+    @Override
+    public List<Classification> classify(List<ImageSource> images) throws IOException {
+        if (images.isEmpty())
+            return List.of();
+
+        long started = System.nanoTime();
+        val results = new ArrayList<>(local.classify(images));
+        localNanos.add(System.nanoTime() - started);
+        localImages.add(images.size());
+
+        // 閾値の間に入った画像と、手元で判定できなかった画像をリモートに回す
+        List<Integer> uncertain = new ArrayList<>();
+        for (int i = 0; i < images.size(); i++) {
+            val result = results.get(i);
+            if (!result.isSuccess() || !result.hasScore()
+                    || (result.score() >= lowerThreshold && result.score() < upperThreshold)) {
+                uncertain.add(i);
+            } else {
+                localDecided.increment();
+            }
+        }
+
+        int chunkSize = Math.max(1, remote.getMaxBatchSize());
+        for (int from = 0; from < uncertain.size(); from += chunkSize) {
+            val chunk = uncertain.subList(from, Math.min(uncertain.size(), from + chunkSize));
+            if (remote.getRemainingQuota() < chunk.size()) {
+                fallback(results, uncertain.subList(from, uncertain.size()));
+                break;
+            }
+
+            List<ImageSource> chunkImages = new ArrayList<>(chunk.size());
+            for (int index : chunk)
+                chunkImages.add(images.get(index));
+
+            List<Classification> remoteResults;
+            started = System.nanoTime();
+            try {
+                remoteResults = remote.classify(chunkImages);
+            } catch (QuotaExceededException | CircuitOpenException e) {
+                fallback(results, uncertain.subList(from, uncertain.size()));
+                break;
+            } catch (IOException e) {
+                // 通信エラーでもバッチ全体は失敗させず、手元の結果を使う
+                log.warn("Remote classifier {} failed ({}). Uncertain images are decided locally.", remote.getName(), e.getMessage());
+                remoteErrors.increment();
+                fallback(results, uncertain.subList(from, uncertain.size()));
+                break;
+            } finally {
+                remoteNanos.add(System.nanoTime() - started);
+                remoteImages.add(chunk.size());
+            }
+
+            for (int i = 0; i < chunk.size(); i++) {
+                val remoteResult = i < remoteResults.size() ? remoteResults.get(i) : null;
+                if (remoteResult != null && remoteResult.isSuccess()) {
+                    results.set(chunk.get(i), remoteResult);
+                    remoteDecided.increment();
+                } else if (results.get(chunk.get(i)).isSuccess()) {
+                    // リモートで判定できなかった場合は手元の結果を使う
+                    fallbacks.increment();
+                } else if (remoteResult != null) {
+                    results.set(chunk.get(i), remoteResult);
+                }
+            }
+        }
+        return results;
+    }
+
+    public Stats getStats() {
+        long decidedLocally = localDecided.sum();
+        long decidedRemotely = remoteDecided.sum();
+        long fallback = fallbacks.sum();
+        long total = decidedLocally + decidedRemotely + fallback;
+        return new Stats(decidedLocally, decidedRemotely, fallback, remoteErrors.sum(),
+                total > 0 ? (double) (decidedLocally + fallback) / total : 0,
+                average(localNanos.sum(), localImages.sum()),
+                average(remoteNanos.sum(), remoteImages.sum()));
+    }
+
+    public void startStatsLogging(long intervalMillis) {
+        Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+                        .namingPattern("imgsafe-cascade-stats")
+                        .daemon(true)
+                        .build())
+                .scheduleWithFixedDelay(() -> log.info("Classification cascade: {}", getStats()),
+                        intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // リモートの上限に達している間は手元の判定結果をそのまま使う
+    private void fallback(List<Classification> results, List<Integer> indexes) {
+        for (int index : indexes) {
+            if (results.get(index).isSuccess())
+                fallbacks.increment();
+        }
+        log.debug("{} uncertain images were decided locally because the remote classifier is unavailable.", indexes.size());
+    }
+
+    private static double average(long nanos, long images) {
+        return images > 0 ? nanos / 1e6 / images : 0;
+    }
+
+    public record Stats(long localDecided, long remoteDecided, long fallbacks, long remoteErrors, double localRatio,
+                        double localMillisPerImage, double remoteMillisPerImage) {
+        @Override
+        public String toString() {
+            return "local=" + localDecided +
+                    ", remote=" + remoteDecided +
+                    ", fallback=" + fallbacks +
+                    ", remoteErrors=" + remoteErrors +
+                    ", resolvedLocally=" + String.format("%.1f%%", localRatio * 100) +
+                    ", localLatency=" + String.format("%.1fms/image", localMillisPerImage) +
+                    ", remoteLatency=" + String.format("%.1fms/image", remoteMillisPerImage);
+        }
+    }
+}
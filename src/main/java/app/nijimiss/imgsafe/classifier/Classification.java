@@ -0,0 +1,43 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.classifier;
+
+import app.nijimiss.imgsafe.api.vision.SafeSearchAnnotation;
+import app.nijimiss.imgsafe.store.VerdictSource;
+
+// scoreは分類器が確率を出力する場合の不適切な画像である確率 (0-1)。出力しない場合はNaN
+public record Classification(SafeSearchAnnotation annotation, VerdictSource source, double score, String error) {
+    public static Classification success(SafeSearchAnnotation annotation, VerdictSource source) {
+        return new Classification(annotation, source, Double.NaN, null);
+    }
+
+    public static Classification success(SafeSearchAnnotation annotation, VerdictSource source, double score) {
+        return new Classification(annotation, source, score, null);
+    }
+
+    public static Classification failure(VerdictSource source, String error) {
+        return new Classification(null, source, Double.NaN, error);
+    }
+
+    public boolean hasScore() {
+        return !Double.isNaN(score);
+    }
+
+    public boolean isSuccess() {
+        return annotation != null && error == null;
+    }
+}
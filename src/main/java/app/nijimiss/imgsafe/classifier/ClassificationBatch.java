@@ -0,0 +1,100 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.classifier;
+
+import app.nijimiss.imgsafe.api.vision.ImageSource;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// 分類器の上限に収まるように画像をまとめる
+@Slf4j
+public class ClassificationBatch<K> {
+    private final int maxImages;
+    private final long maxPayloadBytes;
+
+    private final List<K> keys = new ArrayList<>();
+    private final List<ImageSource> images = new ArrayList<>();
+    private long payloadBytes;
+
+    public ClassificationBatch(int maxImages, long maxPayloadBytes) {
+        if (maxImages <= 0)
+            throw new IllegalArgumentException("maxImages must be positive");
+        if (maxPayloadBytes <= 0)
+            throw new IllegalArgumentException("maxPayloadBytes must be positive");
+        this.maxImages = maxImages;
+        this.maxPayloadBytes = maxPayloadBytes;
+    }
+
+    public boolean canAccept(long contentBytes) {
+        // 空のバッチは上限を超える画像でも単独で送信できるようにする
+        return keys.isEmpty() || (keys.size() < maxImages && payloadBytes + contentBytes <= maxPayloadBytes);
+    }
+
+    public void add(K key, ImageSource image) {
+        keys.add(key);
+        images.add(image);
+        payloadBytes += image.encodedLength();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public List<K> keys() {
+        return List.copyOf(keys);
+    }
+
+    public List<Result<K>> send(ImageClassifier classifier) throws IOException {
+        if (keys.isEmpty())
+            return List.of();
+
+        try {
+            val classifications = classifier.classify(images);
+            boolean matched = classifications.size() == keys.size();
+            if (!matched)
+                log.warn("{} returned {} results for {} images.", classifier.getName(), classifications.size(), keys.size());
+
+            List<Result<K>> results = new ArrayList<>(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                results.add(new Result<>(keys.get(i), matched ? classifications.get(i) : null));
+            }
+            return results;
+        } finally {
+            clear();
+        }
+    }
+
+    public void clear() {
+        keys.clear();
+        images.clear();
+        payloadBytes = 0;
+    }
+
+    public record Result<K>(K key, Classification classification) {
+        public boolean isSuccess() {
+            return classification != null && classification.isSuccess();
+        }
+    }
+}
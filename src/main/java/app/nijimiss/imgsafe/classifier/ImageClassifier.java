@@ -0,0 +1,48 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.classifier;
+
+import app.nijimiss.imgsafe.api.vision.ImageSource;
+
+import java.io.IOException;
+import java.util.List;
+
+// 画像の判定を行うバックエンド。結果はCloud VisionのSafeSearchと同じ形式に揃える
+public interface ImageClassifier {
+    String getName();
+
+    // 1回の呼び出しでまとめて判定できる画像数
+    int getMaxBatchSize();
+
+    // まとめて送る画像の合計サイズの上限 (Base64エンコード後)
+    default long getMaxBatchBytes() {
+        return Long.MAX_VALUE;
+    }
+
+    // 利用数に上限がある場合の残り。上限がなければInteger.MAX_VALUE
+    default int getRemainingQuota() {
+        return Integer.MAX_VALUE;
+    }
+
+    // リモートのAPIを利用する場合は接続先のホスト名。ホスト単位の同時接続数の制限に使う
+    default String getHost() {
+        return null;
+    }
+
+    // 結果は入力と同じ順序で返す
+    List<Classification> classify(List<ImageSource> images) throws IOException;
+}
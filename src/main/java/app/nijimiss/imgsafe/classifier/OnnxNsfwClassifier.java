@@ -0,0 +1,285 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.classifier;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import app.nijimiss.imgsafe.ImgSafeConfig;
+import app.nijimiss.imgsafe.api.vision.ImageSource;
+import app.nijimiss.imgsafe.api.vision.LikelinessLevel;
+import app.nijimiss.imgsafe.api.vision.SafeSearchAnnotation;
+import app.nijimiss.imgsafe.store.VerdictSource;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+// ONNX形式のNSFW判定モデルをCPU上で実行する。Vision APIのような利用数の上限や通信の待ち時間がない
+@Slf4j
+public class OnnxNsfwClassifier implements ImageClassifier, AutoCloseable {
+    private final OrtEnvironment environment;
+    private final OrtSession session;
+    private final String inputName;
+
+    private final int inputSize;
+    private final boolean channelsFirst;
+    private final boolean bgr;
+    private final float pixelMean;
+    private final float pixelScale;
+    private final int batchSize;
+    private final int[] adultIndexes;
+    private final int[] racyIndexes;
+
+    public OnnxNsfwClassifier(ImgSafeConfig.LocalClassifier config) throws IOException {
+        val labels = config.getLabels();
+        this.adultIndexes = indexesOf(labels, config.getAdultLabels());
+        this.racyIndexes = indexesOf(labels, config.getRacyLabels());
+        this.inputSize = config.getInputSize();
+        this.channelsFirst = config.isChannelsFirst();
+        this.bgr = config.isBgr();
+        this.pixelMean = config.getPixelMean();
+        this.pixelScale = config.getPixelScale();
+        this.batchSize = Math.max(1, config.getBatchSize());
+
+        try {
+            environment = OrtEnvironment.getEnvironment();
+            // 1回の推論を全コアで並列に処理する
+            val options = new OrtSession.SessionOptions();
+            options.setIntraOpNumThreads(config.getThreads() > 0 ? config.getThreads() : Runtime.getRuntime().availableProcessors());
+            options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
+            session = environment.createSession(config.getModel(), options);
+            inputName = session.getInputNames().iterator().next();
+        } catch (OrtException e) {
+            throw new IOException("The local classifier model could not be loaded: " + config.getModel(), e);
+        }
+        log.info("Local classifier loaded: {} (input {}x{}, labels {})", config.getModel(), inputSize, inputSize, labels);
+    }
+
+    @Override
+    public String getName() {
+        return "local model";
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public List<Classification> classify(List<ImageSource> images) throws IOException {
+        if (images.isEmpty())
+            return List.of();
+
+        // デコードと縮小は画像ごとに独立しているため並列に行う
+        int pixels = inputSize * inputSize * 3;
+        val inputs = new float[images.size()][];
+        IntStream.range(0, images.size()).parallel().forEach(i -> inputs[i] = toInput(images.get(i)));
+
+        int decoded = 0;
+        for (float[] input : inputs) {
+            if (input != null)
+                decoded++;
+        }
+
+        float[][] scores = new float[0][];
+        if (decoded > 0) {
+            val buffer = FloatBuffer.allocate(decoded * pixels);
+            for (float[] input : inputs) {
+                if (input != null)
+                    buffer.put(input);
+            }
+            buffer.rewind();
+
+            long[] shape = channelsFirst
+                    ? new long[]{decoded, 3, inputSize, inputSize}
+                    : new long[]{decoded, inputSize, inputSize, 3};
+            try (OnnxTensor tensor = OnnxTensor.createTensor(environment, buffer, shape);
+                 OrtSession.Result result = session.run(Map.of(inputName, tensor))) {
+                scores = (float[][]) result.get(0).getValue();
+            } catch (OrtException | ClassCastException e) {
+                throw new IOException("Local classification failed.", e);
+            }
+        }
+
+        List<Classification> classifications = new ArrayList<>(images.size());
+        int row = 0;
+        for (float[] input : inputs) {
+            if (input == null) {
+                classifications.add(Classification.failure(VerdictSource.LOCAL, "The image could not be decoded."));
+                continue;
+            }
+            val probabilities = probabilities(scores[row++]);
+            classifications.add(Classification.success(toAnnotation(probabilities), VerdictSource.LOCAL,
+                    sum(probabilities, adultIndexes)));
+        }
+        return classifications;
+    }
+
+    @Override
+    public void close() {
+        try {
+            session.close();
+        } catch (OrtException e) {
+            log.warn("The local classifier could not be closed successfully.", e);
+        }
+    }
+
+    public static LikelinessLevel toLikeliness(double probability) {
+        if (probability < 0.1)
+            return LikelinessLevel.VERY_UNLIKELY;
+        if (probability < 0.3)
+            return LikelinessLevel.UNLIKELY;
+        if (probability < 0.6)
+            return LikelinessLevel.POSSIBLE;
+        if (probability < 0.85)
+            return LikelinessLevel.LIKELY;
+        return LikelinessLevel.VERY_LIKELY;
+    }
+
+    private SafeSearchAnnotation toAnnotation(float[] probabilities) {
+        // モデルが判定しない項目はUNKNOWNとし、判定の閾値に影響させない
+        return new SafeSearchAnnotation(
+                toLikeliness(sum(probabilities, adultIndexes)),
+                LikelinessLevel.UNKNOWN,
+                LikelinessLevel.UNKNOWN,
+                LikelinessLevel.UNKNOWN,
+                toLikeliness(sum(probabilities, racyIndexes)));
+    }
+
+    // 入力できない画像はnullを返す
+    private float[] toInput(ImageSource source) {
+        BufferedImage image;
+        try {
+            image = decode(source);
+        } catch (IOException | RuntimeException e) {
+            log.debug("Could not decode an image for the local classifier.", e);
+            return null;
+        }
+        if (image == null)
+            return null;
+
+        val resized = new BufferedImage(inputSize, inputSize, BufferedImage.TYPE_INT_RGB);
+        val graphics = resized.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, inputSize, inputSize, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        int plane = inputSize * inputSize;
+        float[] input = new float[plane * 3];
+        int[] rgb = resized.getRGB(0, 0, inputSize, inputSize, null, 0, inputSize);
+        for (int i = 0; i < plane; i++) {
+            float r = ((rgb[i] >> 16) & 0xFF);
+            float g = ((rgb[i] >> 8) & 0xFF);
+            float b = (rgb[i] & 0xFF);
+            float first = bgr ? b : r;
+            float third = bgr ? r : b;
+            if (channelsFirst) {
+                input[i] = (first - pixelMean) * pixelScale;
+                input[plane + i] = (g - pixelMean) * pixelScale;
+                input[plane * 2 + i] = (third - pixelMean) * pixelScale;
+            } else {
+                input[i * 3] = (first - pixelMean) * pixelScale;
+                input[i * 3 + 1] = (g - pixelMean) * pixelScale;
+                input[i * 3 + 2] = (third - pixelMean) * pixelScale;
+            }
+        }
+        return input;
+    }
+
+    private BufferedImage decode(ImageSource source) throws IOException {
+        try (InputStream input = source.openStream();
+             ImageInputStream imageInput = ImageIO.createImageInputStream(input)) {
+            val readers = ImageIO.getImageReaders(imageInput);
+            if (!readers.hasNext())
+                return null;
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInput, true, true);
+                int step = Math.max(1, Math.min(reader.getWidth(0), reader.getHeight(0)) / (inputSize * 2));
+                val param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0); // 入力サイズの2倍程度まで間引いて読み込む
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // 出力が確率になっていないモデルの場合はソフトマックスを適用する
+    private static float[] probabilities(float[] scores) {
+        double total = 0;
+        boolean normalized = true;
+        for (float score : scores) {
+            if (score < 0 || score > 1)
+                normalized = false;
+            total += score;
+        }
+        if (normalized && Math.abs(total - 1) < 0.01)
+            return scores;
+
+        float max = Float.NEGATIVE_INFINITY;
+        for (float score : scores)
+            max = Math.max(max, score);
+        double sum = 0;
+        double[] exp = new double[scores.length];
+        for (int i = 0; i < scores.length; i++) {
+            exp[i] = Math.exp(scores[i] - max);
+            sum += exp[i];
+        }
+        float[] result = new float[scores.length];
+        for (int i = 0; i < scores.length; i++)
+            result[i] = (float) (exp[i] / sum);
+        return result;
+    }
+
+    private static double sum(float[] probabilities, int[] indexes) {
+        double sum = 0;
+        for (int index : indexes) {
+            if (index < probabilities.length)
+                sum += probabilities[index];
+        }
+        return Math.min(1, sum);
+    }
+
+    private static int[] indexesOf(List<String> labels, List<String> targets) {
+        return targets.stream()
+                .mapToInt(target -> {
+                    int index = labels.indexOf(target);
+                    if (index < 0)
+                        throw new IllegalArgumentException("Unknown label: " + target + " (labels: " + labels + ")");
+                    return index;
+                })
+                .toArray();
+    }
+}
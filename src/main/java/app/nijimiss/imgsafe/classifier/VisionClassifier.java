@@ -0,0 +1,96 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.classifier;
+
+import app.nijimiss.imgsafe.api.vision.CloudVisionApiClient;
+import app.nijimiss.imgsafe.api.vision.ImageSource;
+import app.nijimiss.imgsafe.metrics.ImgSafeMetrics;
+import app.nijimiss.imgsafe.store.VerdictSource;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+@Slf4j
+public class VisionClassifier implements ImageClassifier {
+    public static final int MAX_IMAGES = 16; // Cloud Vision APIの1リクエストあたりの上限
+    public static final long MAX_PAYLOAD_BYTES = 8L * 1024 * 1024; // JSONリクエストの上限(10MB)に余裕を持たせる
+
+    private final CloudVisionApiClient client;
+
+    public VisionClassifier(CloudVisionApiClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public String getName() {
+        return "Vision API";
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return MAX_IMAGES;
+    }
+
+    @Override
+    public long getMaxBatchBytes() {
+        return MAX_PAYLOAD_BYTES;
+    }
+
+    @Override
+    public int getRemainingQuota() {
+        return client.getQuota().getRemaining();
+    }
+
+    @Override
+    public String getHost() {
+        return client.getHost();
+    }
+
+    @Override
+    public List<Classification> classify(List<ImageSource> images) throws IOException {
+        if (images.isEmpty())
+            return List.of();
+
+        // 呼び出し側でClassificationBatchにより上限を守っているため、ここでは分割しない
+        if (images.size() > MAX_IMAGES)
+            throw new IllegalArgumentException("At most " + MAX_IMAGES + " images can be sent at once");
+
+        // Base64への変換はリクエストの送信中に行われるため、この時間に含まれる
+        long started = System.nanoTime();
+        val responses = client.safeSearch(images).responses();
+        ImgSafeMetrics.observe(ImgSafeMetrics.STAGE_VISION, started);
+
+        boolean matched = responses != null && responses.size() == images.size();
+        if (!matched)
+            log.warn("Vision API returned {} responses for {} images.", responses == null ? 0 : responses.size(), images.size());
+
+        List<Classification> classifications = new ArrayList<>(images.size());
+        for (int i = 0; i < images.size(); i++) {
+            val response = matched ? responses.get(i) : null;
+            if (response != null && response.safeSearchAnnotation() != null && response.error() == null) {
+                classifications.add(Classification.success(response.safeSearchAnnotation(), VerdictSource.VISION));
+            } else {
+                classifications.add(Classification.failure(VerdictSource.VISION,
+                        response != null && response.error() != null ? response.error().message() : "no response"));
+            }
+        }
+        return classifications;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.judge;
+
+import app.nijimiss.imgsafe.api.vision.JudgingItem;
+import app.nijimiss.imgsafe.api.vision.LikelinessLevel;
+import app.nijimiss.imgsafe.api.vision.SafeSearchAnnotation;
+import lombok.val;
+
+// 5項目 x 6段階の全ての組み合わせ (7776通り) について事前に判定しておき、判定時は表を引くだけにする
+public final class DecisionTable {
+    private static final LikelinessLevel[] LEVELS = LikelinessLevel.values();
+    private static final int ITEMS = JudgingItem.values().length;
+    private static final int SIZE = (int) Math.pow(LEVELS.length, ITEMS);
+
+    private final long[] bits = new long[(SIZE + 63) / 64];
+
+    private DecisionTable() {
+    }
+
+    public static DecisionTable compile(JudgingCondition condition) {
+        val table = new DecisionTable();
+        LikelinessLevel[] levels = new LikelinessLevel[ITEMS];
+        for (int index = 0; index < SIZE; index++) {
+            int rest = index;
+            for (int item = 0; item < ITEMS; item++) {
+                levels[item] = LEVELS[rest % LEVELS.length];
+                rest /= LEVELS.length;
+            }
+            if (condition.test(levels))
+                table.bits[index >>> 6] |= 1L << index;
+        }
+        return table;
+    }
+
+    public boolean matches(SafeSearchAnnotation annotation) {
+        int index = indexOf(annotation);
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private static int indexOf(SafeSearchAnnotation annotation) {
+        // JudgingItemの順に6進数の各桁として並べる
+        int n = LEVELS.length;
+        return ordinal(annotation.adult())
+                + n * (ordinal(annotation.spoof())
+                + n * (ordinal(annotation.medical())
+                + n * (ordinal(annotation.violence())
+                + n * ordinal(annotation.racy()))));
+    }
+
+    private static int ordinal(LikelinessLevel level) {
+        return level != null ? level.ordinal() : LikelinessLevel.UNKNOWN.ordinal();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.judge;
+
+import app.nijimiss.imgsafe.ImgSafeConfig;
+import app.nijimiss.imgsafe.api.misskey.File;
+import app.nijimiss.imgsafe.api.vision.JudgingItem;
+import app.nijimiss.imgsafe.api.vision.SafeSearchAnnotation;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// 設定の判定条件を起動時に一度だけ解析し、ユーザーやフォルダごとの上書きとあわせて保持する
+@Slf4j
+public class JudgingRules {
+    private final DecisionTable defaultTable;
+    private final Map<String, DecisionTable> userTables;
+    private final Map<String, DecisionTable> folderTables;
+
+    public JudgingRules(DecisionTable defaultTable, Map<String, DecisionTable> userTables, Map<String, DecisionTable> folderTables) {
+        this.defaultTable = defaultTable;
+        this.userTables = Map.copyOf(userTables);
+        this.folderTables = Map.copyOf(folderTables);
+    }
+
+    public static JudgingRules compile(ImgSafeConfig.Settings settings) {
+        return compile(settings.getJudgingItem(), settings.getJudgingScore(), settings.getJudgingRule(),
+                settings.getJudgingOverrides());
+    }
+
+    // インスタンスで指定されていない項目は全体の設定を使う
+    public static JudgingRules compile(ImgSafeConfig.Settings settings, ImgSafeConfig.Instance instance) {
+        return compile(ObjectUtils.defaultIfNull(instance.getJudgingItem(), settings.getJudgingItem()),
+                ObjectUtils.defaultIfNull(instance.getJudgingScore(), settings.getJudgingScore()),
+                ObjectUtils.defaultIfNull(instance.getJudgingRule(), settings.getJudgingRule()),
+                ObjectUtils.defaultIfNull(instance.getJudgingOverrides(), settings.getJudgingOverrides()));
+    }
+
+    private static JudgingRules compile(List<JudgingItem> judgingItem, int judgingScore, String judgingRule,
+                                        List<ImgSafeConfig.JudgingOverride> judgingOverrides) {
+        JudgingCondition condition;
+        if (StringUtils.isNotBlank(judgingRule)) {
+            condition = RuleParser.parse(judgingRule);
+        } else {
+            // 条件式がない場合は従来通り、judging_itemのいずれかがjudging_score以上なら対象とする
+            condition = anyAtLeast(judgingItem, judgingScore);
+        }
+
+        Map<String, DecisionTable> userTables = new HashMap<>();
+        Map<String, DecisionTable> folderTables = new HashMap<>();
+        for (val override : judgingOverrides) {
+            boolean hasUser = StringUtils.isNotEmpty(override.getUserId());
+            boolean hasFolder = StringUtils.isNotEmpty(override.getFolderId());
+            if (hasUser == hasFolder)
+                throw new IllegalArgumentException("A judging override needs exactly one of user_id or folder_id.");
+
+            val table = DecisionTable.compile(RuleParser.parse(override.getRule()));
+            if (hasUser) {
+                userTables.put(override.getUserId(), table);
+            } else {
+                folderTables.put(override.getFolderId(), table);
+            }
+        }
+
+        log.debug("Judging rules compiled: {} user overrides, {} folder overrides.", userTables.size(), folderTables.size());
+        return new JudgingRules(DecisionTable.compile(condition), userTables, folderTables);
+    }
+
+    public static JudgingCondition anyAtLeast(List<JudgingItem> items, int score) {
+        int[] indexes = items.stream().mapToInt(JudgingItem::ordinal).toArray();
+        return levels -> {
+            for (int index : indexes) {
+                if (levels[index].getLevel() >= score)
+                    return true;
+            }
+            return false;
+        };
+    }
+
+    // ユーザーの設定、フォルダの設定、全体の設定の順に優先する
+    public boolean isSensitive(File file, SafeSearchAnnotation annotation) {
+        DecisionTable table = null;
+        if (!userTables.isEmpty() && file.userId() != null)
+            table = userTables.get(file.userId());
+        if (table == null && !folderTables.isEmpty() && file.folderId() != null)
+            table = folderTables.get(file.folderId());
+        return (table != null ? table : defaultTable).matches(annotation);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.judge;
+
+import app.nijimiss.imgsafe.api.vision.JudgingItem;
+import app.nijimiss.imgsafe.api.vision.LikelinessLevel;
+import lombok.val;
+
+import java.util.Locale;
+
+// "adult >= LIKELY || (racy >= VERY_LIKELY && violence >= 10)" のような条件式を解析する
+// 比較の右辺にはLikelinessLevelの名前か、judging_scoreと同じ数値のスコアを書ける
+public class RuleParser {
+    private final String source;
+    private int position;
+
+    private RuleParser(String source) {
+        this.source = source;
+    }
+
+    public static JudgingCondition parse(String rule) {
+        if (rule == null || rule.isBlank())
+            throw new IllegalArgumentException("The judging rule is empty.");
+
+        val parser = new RuleParser(rule);
+        val condition = parser.parseOr();
+        parser.skipWhitespace();
+        if (parser.position < rule.length())
+            throw parser.error("Unexpected character '" + rule.charAt(parser.position) + "'");
+        return condition;
+    }
+
+    private JudgingCondition parseOr() {
+        JudgingCondition left = parseAnd();
+        while (consume("||")) {
+            val l = left;
+            val r = parseAnd();
+            left = levels -> l.test(levels) || r.test(levels);
+        }
+        return left;
+    }
+
+    private JudgingCondition parseAnd() {
+        JudgingCondition left = parseUnary();
+        while (consume("&&")) {
+            val l = left;
+            val r = parseUnary();
+            left = levels -> l.test(levels) && r.test(levels);
+        }
+        return left;
+    }
+
+    private JudgingCondition parseUnary() {
+        if (consume("!")) {
+            val operand = parseUnary();
+            return levels -> !operand.test(levels);
+        }
+        if (consume("(")) {
+            val inner = parseOr();
+            if (!consume(")"))
+                throw error("')' expected");
+            return inner;
+        }
+
+        val name = readWord();
+        if (name.equalsIgnoreCase("true"))
+            return levels -> true;
+        if (name.equalsIgnoreCase("false"))
+            return levels -> false;
+        return parseComparison(name);
+    }
+
+    private JudgingCondition parseComparison(String name) {
+        JudgingItem item;
+        try {
+            item = JudgingItem.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw error("Unknown judging item '" + name + "'");
+        }
+
+        String operator;
+        if (consume(">=")) {
+            operator = ">=";
+        } else if (consume("<=")) {
+            operator = "<=";
+        } else if (consume("==")) {
+            operator = "==";
+        } else if (consume("!=")) {
+            operator = "!=";
+        } else if (consume(">")) {
+            operator = ">";
+        } else if (consume("<")) {
+            operator = "<";
+        } else {
+            throw error("Comparison operator expected after '" + name + "'");
+        }
+
+        int threshold = readScore();
+        int index = item.ordinal();
+        return switch (operator) {
+            case ">=" -> levels -> levels[index].getLevel() >= threshold;
+            case "<=" -> levels -> levels[index].getLevel() <= threshold;
+            case "==" -> levels -> levels[index].getLevel() == threshold;
+            case "!=" -> levels -> levels[index].getLevel() != threshold;
+            case ">" -> levels -> levels[index].getLevel() > threshold;
+            default -> levels -> levels[index].getLevel() < threshold;
+        };
+    }
+
+    private int readScore() {
+        skipWhitespace();
+        int start = position;
+        if (position < source.length() && source.charAt(position) == '-')
+            position++;
+        while (position < source.length() && Character.isDigit(source.charAt(position)))
+            position++;
+        if (position > start && !(position == start + 1 && source.charAt(start) == '-'))
+            return Integer.parseInt(source.substring(start, position));
+
+        position = start;
+        val name = readWord();
+        try {
+            return LikelinessLevel.valueOf(name.toUpperCase(Locale.ROOT)).getLevel();
+        } catch (IllegalArgumentException e) {
+            throw error("Unknown likeliness level '" + name + "'");
+        }
+    }
+
+    private String readWord() {
+        skipWhitespace();
+        int start = position;
+        while (position < source.length()
+                && (Character.isLetterOrDigit(source.charAt(position)) || source.charAt(position) == '_'))
+            position++;
+        if (start == position)
+            throw error(position < source.length() ? "Unexpected character '" + source.charAt(position) + "'" : "Unexpected end of rule");
+        return source.substring(start, position);
+    }
+
+    private boolean consume(String token) {
+        skipWhitespace();
+        if (!source.startsWith(token, position))
+            return false;
+        // "!=" を "!" として読まないようにする
+        if (token.equals("!") && source.startsWith("!=", position))
+            return false;
+        position += token.length();
+        return true;
+    }
+
+    private void skipWhitespace() {
+        while (position < source.length() && Character.isWhitespace(source.charAt(position)))
+            position++;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + position + " in judging rule: " + source);
+    }
+}
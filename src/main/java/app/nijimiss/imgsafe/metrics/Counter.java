@@ -0,0 +1,52 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// 複数のスレッドから頻繁に加算されるため、LongAdderでスレッドごとに分散して数える
+public class Counter {
+    private final String labelName;
+    private final LongAdder unlabeled = new LongAdder();
+    private final Map<String, LongAdder> children = new ConcurrentHashMap<>();
+
+    Counter(String labelName) {
+        this.labelName = labelName;
+    }
+
+    public void inc() {
+        unlabeled.increment();
+    }
+
+    public void inc(String labelValue) {
+        children.computeIfAbsent(labelValue, key -> new LongAdder()).increment();
+    }
+
+    String getLabelName() {
+        return labelName;
+    }
+
+    long get() {
+        return unlabeled.sum();
+    }
+
+    Map<String, LongAdder> getChildren() {
+        return children;
+    }
+}
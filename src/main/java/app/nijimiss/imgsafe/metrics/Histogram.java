@@ -0,0 +1,86 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// 各区間の件数は累積せずに数え、出力する時点で累積値に変換する
+public class Histogram {
+    private final String labelName;
+    private final double[] buckets; // 秒
+    private final long[] bucketNanos;
+    private final Map<String, Child> children = new ConcurrentHashMap<>();
+
+    Histogram(String labelName, double[] buckets) {
+        this.labelName = labelName;
+        this.buckets = buckets.clone();
+        this.bucketNanos = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++)
+            bucketNanos[i] = (long) (buckets[i] * 1e9);
+    }
+
+    public void observe(String labelValue, long nanos) {
+        children.computeIfAbsent(labelValue, key -> new Child(buckets.length + 1)).observe(bucketNanos, nanos);
+    }
+
+    String getLabelName() {
+        return labelName;
+    }
+
+    double[] getBuckets() {
+        return buckets;
+    }
+
+    Map<String, Child> getChildren() {
+        return children;
+    }
+
+    static final class Child {
+        private final LongAdder[] counts;
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Child(int size) {
+            counts = new LongAdder[size];
+            for (int i = 0; i < size; i++)
+                counts[i] = new LongAdder();
+        }
+
+        private void observe(long[] bucketNanos, long nanos) {
+            int index = 0;
+            while (index < bucketNanos.length && nanos > bucketNanos[index])
+                index++;
+            counts[index].increment();
+            sumNanos.add(nanos);
+        }
+
+        long[] cumulativeCounts() {
+            long[] cumulative = new long[counts.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                total += counts[i].sum();
+                cumulative[i] = total;
+            }
+            return cumulative;
+        }
+
+        double sumSeconds() {
+            return sumNanos.sum() / 1e9;
+        }
+    }
+}
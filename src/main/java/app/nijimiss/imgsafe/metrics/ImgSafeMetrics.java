@@ -0,0 +1,57 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.metrics;
+
+// 処理の各所から直接記録できるよう、共通のレジストリと計測項目をまとめておく
+public class ImgSafeMetrics {
+    public static final MetricsRegistry REGISTRY = new MetricsRegistry();
+
+    public static final String STAGE_GET_FILES = "get_files";
+    public static final String STAGE_GET_FILE = "get_file";
+    public static final String STAGE_DOWNLOAD = "download";
+    public static final String STAGE_ENCODE = "encode";
+    public static final String STAGE_CLASSIFY = "classify";
+    public static final String STAGE_VISION = "vision";
+    public static final String STAGE_UPDATE_FILE = "update_file";
+    public static final String STAGE_WEBHOOK = "webhook";
+
+    public static final Histogram STAGE_DURATION = REGISTRY.histogram("imgsafe_stage_duration_seconds",
+            "Time spent in each processing stage.", "stage");
+    public static final Counter IMAGES_CHECKED = REGISTRY.counter("imgsafe_images_checked_total",
+            "Images with a verdict, by where the verdict came from.", "source");
+    public static final Counter IMAGES_FLAGGED = REGISTRY.counter("imgsafe_images_flagged_total",
+            "Images marked as sensitive.");
+    public static final Counter IMAGES_SKIPPED = REGISTRY.counter("imgsafe_images_skipped_total",
+            "Files that were not checked, by reason.", "reason");
+    public static final Counter IMAGE_RETRIES = REGISTRY.counter("imgsafe_image_retries_total",
+            "Files retried after failing in a processing stage.");
+    public static final Counter FLAG_UPDATES = REGISTRY.counter("imgsafe_flag_updates_total",
+            "Requests to mark files as sensitive on Misskey, by outcome.", "result");
+    public static final Counter ENDPOINT_REJECTED = REGISTRY.counter("imgsafe_endpoint_rejected_total",
+            "Requests failed without being sent because the circuit breaker of the endpoint was open.", "endpoint");
+    public static final Counter STREAMED_FILES_DROPPED = REGISTRY.counter("imgsafe_streamed_files_dropped_total",
+            "Streamed files dropped because the pipeline could not keep up. They are checked by the next poll.");
+    public static final Counter WEBHOOK_EVENTS = REGISTRY.counter("imgsafe_webhook_events_total",
+            "Webhook notifications by outcome.", "result");
+
+    private ImgSafeMetrics() {
+    }
+
+    public static void observe(String stage, long startedNanos) {
+        STAGE_DURATION.observe(stage, System.nanoTime() - startedNanos);
+    }
+}
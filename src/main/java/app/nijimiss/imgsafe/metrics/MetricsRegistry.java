@@ -0,0 +1,172 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.metrics;
+
+import lombok.val;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.DoubleSupplier;
+
+// Prometheusのテキスト形式 (0.0.4) で出力する
+public class MetricsRegistry {
+    public static final double[] DEFAULT_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    public synchronized Counter counter(String name, String help) {
+        return counter(name, help, null);
+    }
+
+    public synchronized Counter counter(String name, String help, String labelName) {
+        val counter = new Counter(labelName);
+        register(name, help, "counter").counter = counter;
+        return counter;
+    }
+
+    public synchronized Histogram histogram(String name, String help, String labelName) {
+        val histogram = new Histogram(labelName, DEFAULT_BUCKETS);
+        register(name, help, "histogram").histogram = histogram;
+        return histogram;
+    }
+
+    public synchronized void gauge(String name, String help, DoubleSupplier supplier) {
+        gauge(name, help, null, null, supplier);
+    }
+
+    // 同じ名前で複数回登録すると、ラベルの値ごとに1つのメトリクスとして出力する
+    public synchronized void gauge(String name, String help, String labelName, String labelValue, DoubleSupplier supplier) {
+        sampled(name, help, "gauge", labelName, labelValue, supplier);
+    }
+
+    // 他のコンポーネントが数えている累積値を、取得時に読み出して出力する
+    public synchronized void counterFunction(String name, String help, String labelName, String labelValue, DoubleSupplier supplier) {
+        sampled(name, help, "counter", labelName, labelValue, supplier);
+    }
+
+    private void sampled(String name, String help, String type, String labelName, String labelValue, DoubleSupplier supplier) {
+        val family = families.get(name);
+        if (family != null && !family.type.equals(type))
+            throw new IllegalArgumentException("Metric " + name + " is already registered as " + family.type);
+        (family != null ? family : register(name, help, type)).samples.add(new Sample(labelName, labelValue, supplier));
+    }
+
+    private Family register(String name, String help, String type) {
+        if (families.containsKey(name))
+            throw new IllegalArgumentException("Metric " + name + " is already registered.");
+        val family = new Family(name, help, type);
+        families.put(name, family);
+        return family;
+    }
+
+    public void write(Writer writer) throws IOException {
+        List<Family> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(families.values());
+        }
+
+        StringBuilder builder = new StringBuilder(4096);
+        for (Family family : snapshot) {
+            builder.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            builder.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            if (family.counter != null) {
+                writeCounter(builder, family.name, family.counter);
+            } else if (family.histogram != null) {
+                writeHistogram(builder, family.name, family.histogram);
+            } else {
+                for (Sample sample : family.samples) {
+                    double value;
+                    try {
+                        value = sample.supplier.getAsDouble();
+                    } catch (RuntimeException e) {
+                        continue; // 取得に失敗した値は出力しない
+                    }
+                    line(builder, family.name, label(sample.labelName, sample.labelValue), value);
+                }
+            }
+        }
+        writer.write(builder.toString());
+    }
+
+    private static void writeCounter(StringBuilder builder, String name, Counter counter) {
+        if (counter.getLabelName() == null) {
+            line(builder, name, "", counter.get());
+            return;
+        }
+        new TreeMap<>(counter.getChildren()).forEach((labelValue, adder) ->
+                line(builder, name, label(counter.getLabelName(), labelValue), adder.sum()));
+    }
+
+    private static void writeHistogram(StringBuilder builder, String name, Histogram histogram) {
+        val buckets = histogram.getBuckets();
+        new TreeMap<>(histogram.getChildren()).forEach((labelValue, child) -> {
+            String labelPrefix = histogram.getLabelName() + "=\"" + escape(labelValue) + "\",";
+            long[] cumulative = child.cumulativeCounts();
+            for (int i = 0; i < buckets.length; i++)
+                line(builder, name + "_bucket", "{" + labelPrefix + "le=\"" + format(buckets[i]) + "\"}", cumulative[i]);
+            line(builder, name + "_bucket", "{" + labelPrefix + "le=\"+Inf\"}", cumulative[buckets.length]);
+            String labels = label(histogram.getLabelName(), labelValue);
+            line(builder, name + "_sum", labels, child.sumSeconds());
+            line(builder, name + "_count", labels, cumulative[buckets.length]);
+        });
+    }
+
+    private static String label(String labelName, String labelValue) {
+        return labelName == null ? "" : "{" + labelName + "=\"" + escape(labelValue) + "\"}";
+    }
+
+    private static void line(StringBuilder builder, String name, String labels, double value) {
+        builder.append(name).append(labels).append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        if (Double.isNaN(value))
+            return "NaN";
+        if (Double.isInfinite(value))
+            return value > 0 ? "+Inf" : "-Inf";
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            return Long.toString((long) value);
+        return Double.toString(value);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class Family {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final List<Sample> samples = new ArrayList<>();
+        private Counter counter;
+        private Histogram histogram;
+
+        private Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private record Sample(String labelName, String labelValue, DoubleSupplier supplier) {
+    }
+}
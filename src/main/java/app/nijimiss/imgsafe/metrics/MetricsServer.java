@@ -0,0 +1,80 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+// JDK標準のHTTPサーバーでPrometheusからの取得に応答する
+@Slf4j
+public class MetricsServer {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final MetricsRegistry registry;
+    private final HttpServer server;
+    private final String path;
+
+    public MetricsServer(MetricsRegistry registry, String bindAddress, int port, String path) throws IOException {
+        this.registry = registry;
+        this.path = path;
+        server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        server.createContext(path, this::handle);
+        server.setExecutor(Executors.newSingleThreadExecutor(new BasicThreadFactory.Builder()
+                .namingPattern("imgsafe-metrics")
+                .daemon(true)
+                .build()));
+    }
+
+    public void start() {
+        server.start();
+        log.info("Metrics are available at http://{}:{}{}", server.getAddress().getHostString(), server.getAddress().getPort(), path);
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+            try (Writer writer = new OutputStreamWriter(buffer, StandardCharsets.UTF_8)) {
+                registry.write(writer);
+            }
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, buffer.size());
+            try (OutputStream output = exchange.getResponseBody()) {
+                buffer.writeTo(output);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.pipeline;
+
+import app.nijimiss.imgsafe.api.misskey.MisskeyApiClient;
+import app.nijimiss.imgsafe.judge.JudgingRules;
+import app.nijimiss.imgsafe.metrics.ImgSafeMetrics;
+import app.nijimiss.imgsafe.store.CheckAction;
+import app.nijimiss.imgsafe.store.CheckResult;
+import app.nijimiss.imgsafe.store.CheckResultStore;
+import app.nijimiss.imgsafe.webhook.WebhookDispatcher;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.util.Locale;
+
+// 判定結果に従ってセンシティブ指定・通知・記録を行う
+@Slf4j
+final class ActionStage {
+    private final ImagePipeline pipeline;
+    private final MisskeyApiClient misskey;
+    private final HostConcurrencyLimiter hostLimiter;
+    private final JudgingRules judgingRules;
+    private final WebhookDispatcher webhookDispatcher;
+
+    private CheckResultStore resultStore;
+    private FlagUpdater flagUpdater;
+
+    ActionStage(ImagePipeline pipeline, MisskeyApiClient misskey, HostConcurrencyLimiter hostLimiter,
+                JudgingRules judgingRules, WebhookDispatcher webhookDispatcher) {
+        this.pipeline = pipeline;
+        this.misskey = misskey;
+        this.hostLimiter = hostLimiter;
+        this.judgingRules = judgingRules;
+        this.webhookDispatcher = webhookDispatcher;
+    }
+
+    void setResultStore(CheckResultStore resultStore) {
+        this.resultStore = resultStore;
+    }
+
+    void setFlagUpdater(FlagUpdater flagUpdater) {
+        this.flagUpdater = flagUpdater;
+    }
+
+    void act(PipelineItem item) throws IOException {
+        boolean sensitive = judgingRules.isSensitive(item.file, item.annotation);
+        if (!sensitive) {
+            ImgSafeMetrics.IMAGES_CHECKED.inc(item.source.name().toLowerCase(Locale.ROOT));
+            record(item, CheckAction.NONE);
+            pipeline.finish(item, true);
+            return;
+        }
+
+        if (flagUpdater != null) {
+            countFlagged(item);
+            // 反映の結果が出るまで検査中として扱う
+            flagUpdater.submit(item.file.id(), outcome -> pipeline.process(item, null, () -> flagged(item, outcome)));
+            return;
+        }
+
+        // 反映に失敗した場合は再試行するため、反映してから数える
+        long started = System.nanoTime();
+        hostLimiter.call(misskey.getHost(), () -> misskey.updateFile(item.file, true));
+        ImgSafeMetrics.observe(ImgSafeMetrics.STAGE_UPDATE_FILE, started);
+        countFlagged(item);
+        flagged(item, FlagUpdater.Outcome.UPDATED);
+    }
+
+    private static void countFlagged(PipelineItem item) {
+        ImgSafeMetrics.IMAGES_CHECKED.inc(item.source.name().toLowerCase(Locale.ROOT));
+        ImgSafeMetrics.IMAGES_FLAGGED.inc();
+    }
+
+    private void flagged(PipelineItem item, FlagUpdater.Outcome outcome) {
+        log.debug("Image {} is sensitive.", item.fullFileInfo.name());
+        if (outcome == FlagUpdater.Outcome.REJECTED) {
+            record(item, CheckAction.FLAG_REJECTED);
+            pipeline.finish(item, true);
+            return;
+        }
+        if (outcome == FlagUpdater.Outcome.UPDATED)
+            log.debug("Marked as sensitive on Misskey.");
+
+        // 通知の送信は待たず、失敗しても検査は続ける
+        if (webhookDispatcher != null)
+            webhookDispatcher.dispatch(item.file, item.file.userId(), item.annotation);
+
+        record(item, outcome == FlagUpdater.Outcome.UPDATED ? CheckAction.FLAGGED : CheckAction.FLAG_DEFERRED);
+        pipeline.finish(item, true);
+    }
+
+    private void record(PipelineItem item, CheckAction action) {
+        if (resultStore != null)
+            resultStore.record(new CheckResult(item.file.id(), item.file.md5(), item.file.userId(), item.annotation,
+                    action, item.source, item.file.createdAt(), OffsetDateTime.now()));
+    }
+}
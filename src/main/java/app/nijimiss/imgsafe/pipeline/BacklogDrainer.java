@@ -0,0 +1,133 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.pipeline;
+
+import app.nijimiss.imgsafe.api.misskey.MisskeyApiClient;
+import app.nijimiss.imgsafe.api.vision.VisionQuota;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+// 上限が回復したらバックログのファイルを一定のペースでパイプラインへ戻す
+@Slf4j
+public class BacklogDrainer {
+    private static final long TICK_MILLIS = 1000;
+
+    private final VisionBacklog backlog;
+    private final VisionQuota quota;
+    private final IntSupplier remainingQuota;
+    private final MisskeyApiClient misskey;
+    private final ImagePipeline pipeline;
+    private final int drainRatePerMinute;
+    private final ScheduledExecutorService executor;
+
+    private double allowance;
+
+    // remainingQuotaはこのバックログで利用できる残り (複数のインスタンスの場合はそのインスタンスへの配分の残り)
+    public BacklogDrainer(VisionBacklog backlog, VisionQuota quota, IntSupplier remainingQuota, MisskeyApiClient misskey,
+                          ImagePipeline pipeline, int drainRatePerMinute) {
+        if (drainRatePerMinute <= 0)
+            throw new IllegalArgumentException("drainRatePerMinute must be positive");
+        this.backlog = backlog;
+        this.quota = quota;
+        this.remainingQuota = remainingQuota;
+        this.misskey = misskey;
+        this.pipeline = pipeline;
+        this.drainRatePerMinute = drainRatePerMinute;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+                .namingPattern("imgsafe-backlog-drainer")
+                .daemon(true)
+                .build());
+    }
+
+    public void start(long statsIntervalMillis) {
+        executor.scheduleWithFixedDelay(this::drain, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(() -> {
+            if (backlog.size() > 0)
+                log.info("Vision backlog: {} files, estimated drain time {}.", backlog.size(), getEstimatedDrainTime());
+        }, statsIntervalMillis, statsIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public boolean isParked() {
+        return remainingQuota.getAsInt() == 0;
+    }
+
+    public int getBacklogSize() {
+        return backlog.size();
+    }
+
+    public Duration getEstimatedDrainTime() {
+        int size = backlog.size();
+        if (size == 0)
+            return Duration.ZERO;
+
+        // 上限に達している間は次のリセットまで待ち、その後は設定したペースで消化する
+        Duration wait = isParked() ? Duration.between(Instant.now(), quota.getNextReset()) : Duration.ZERO;
+        Duration drain = Duration.ofMillis((long) Math.ceil(size * 60000.0 / drainRatePerMinute));
+        return wait.isNegative() ? drain : wait.plus(drain);
+    }
+
+    private void drain() {
+        if (backlog.pendingCount() == 0 || pipeline.isAborted()) {
+            allowance = 0;
+            return;
+        }
+
+        int remaining = remainingQuota.getAsInt();
+        if (remaining == 0) {
+            allowance = 0;
+            return;
+        }
+
+        allowance = Math.min(allowance + drainRatePerMinute * TICK_MILLIS / 60000.0, Math.max(1, drainRatePerMinute));
+        int count = (int) Math.min(Math.floor(allowance), remaining);
+        if (count <= 0)
+            return;
+        allowance -= count;
+
+        val fileIds = backlog.take(count);
+        for (int i = 0; i < fileIds.size(); i++) {
+            val fileId = fileIds.get(i);
+            try {
+                val file = misskey.getFile(fileId);
+                if (file == null) {
+                    log.warn("File {} in the vision backlog could not be fetched.", fileId);
+                    backlog.complete(fileId);
+                    continue;
+                }
+                pipeline.submitUntracked(file);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Failed to resubmit files from the vision backlog.", e);
+                // 残りは次回に回す
+                fileIds.subList(i, fileIds.size()).forEach(backlog::release);
+                return;
+            }
+        }
+    }
+}
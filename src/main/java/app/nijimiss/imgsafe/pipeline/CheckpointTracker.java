@@ -0,0 +1,73 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.pipeline;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+public class CheckpointTracker {
+    private final Consumer<String> committer;
+    private final LinkedHashMap<String, Boolean> pending = new LinkedHashMap<>(); // 登録順 -> 完了済みか
+    private long stalledSince; // チェックポイントが最後に進んだ時刻 (System.nanoTime)
+
+    public CheckpointTracker(Consumer<String> committer) {
+        this.committer = committer;
+    }
+
+    public synchronized void register(String fileId) {
+        if (pending.isEmpty())
+            stalledSince = System.nanoTime();
+        pending.putIfAbsent(fileId, false);
+    }
+
+    public synchronized void complete(String fileId) {
+        if (!pending.containsKey(fileId))
+            return;
+        pending.put(fileId, true);
+
+        // 先頭から連続して完了しているファイルまでチェックポイントを進める
+        String committable = null;
+        Iterator<Map.Entry<String, Boolean>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Boolean> entry = iterator.next();
+            if (!entry.getValue())
+                break;
+            committable = entry.getKey();
+            iterator.remove();
+        }
+        if (committable != null) {
+            stalledSince = System.nanoTime();
+            committer.accept(committable);
+        }
+    }
+
+    public synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    // 未完了のファイルがある間、チェックポイントが進んでいない時間
+    public synchronized long getLagMillis() {
+        return pending.isEmpty() ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stalledSince);
+    }
+
+    public synchronized void reset() {
+        pending.clear();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.pipeline;
+
+import app.nijimiss.imgsafe.api.vision.QuotaExceededException;
+import app.nijimiss.imgsafe.classifier.ClassificationBatch;
+import app.nijimiss.imgsafe.classifier.ImageClassifier;
+import app.nijimiss.imgsafe.metrics.ImgSafeMetrics;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// ダウンロードした画像をまとめて分類器へ送る
+@Slf4j
+final class ClassifyStage {
+    private static final long BATCH_LINGER_MILLIS = 200;
+
+    private final ImagePipeline pipeline;
+    private final ImageClassifier classifier;
+    private final HostConcurrencyLimiter hostLimiter;
+    private final StageExecutors executors;
+    private final int batchSize;
+    private final int workers;
+    private final BlockingQueue<PipelineItem> queue;
+    private final ExecutorService workerPool;
+
+    ClassifyStage(ImagePipeline pipeline, ImageClassifier classifier, HostConcurrencyLimiter hostLimiter,
+                  StageExecutors executors, int batchSize, int capacity, int workers) {
+        this.pipeline = pipeline;
+        this.classifier = classifier;
+        this.hostLimiter = hostLimiter;
+        this.executors = executors;
+        this.batchSize = batchSize;
+        this.workers = Math.max(1, workers);
+        this.queue = new ArrayBlockingQueue<>(Math.max(capacity, batchSize));
+        this.workerPool = Executors.newFixedThreadPool(this.workers, StageExecutors.threadFactory("classify"));
+    }
+
+    void start() {
+        for (int i = 0; i < workers; i++)
+            workerPool.execute(this::classifyLoop);
+    }
+
+    void put(PipelineItem item) throws InterruptedException {
+        queue.put(item);
+    }
+
+    void shutdownNow() {
+        workerPool.shutdownNow();
+    }
+
+    void awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        workerPool.awaitTermination(timeout, unit);
+    }
+
+    void clear() {
+        queue.clear();
+    }
+
+    private void classifyLoop() {
+        PipelineItem carry = null;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                PipelineItem item = carry != null ? carry : queue.take();
+                carry = null;
+                if (pipeline.isClassifierParked()) {
+                    pipeline.park(item);
+                    continue;
+                }
+
+                // 残りの利用可能数を超える画像はまとめない
+                int limit = Math.max(1, Math.min(batchSize, classifier.getRemainingQuota()));
+                val batch = new ClassificationBatch<PipelineItem>(limit, classifier.getMaxBatchBytes());
+                batch.add(item, item.image);
+
+                // 後続の画像が届くまで少し待ち、できるだけ1回のリクエストにまとめる
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_LINGER_MILLIS);
+                while (batch.size() < limit) {
+                    val next = queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    if (!batch.canAccept(next.image.encodedLength())) {
+                        carry = next;
+                        break;
+                    }
+                    batch.add(next, next.image);
+                }
+
+                executors.executeClassify(() -> classify(batch));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void classify(ClassificationBatch<PipelineItem> batch) {
+        val items = batch.keys();
+        if (pipeline.isAborted()) {
+            batch.clear();
+            items.forEach(item -> pipeline.finish(item, false));
+            return;
+        }
+
+        List<ClassificationBatch.Result<PipelineItem>> results;
+        try {
+            log.debug("Classifying {} images with {}...", items.size(), classifier.getName());
+            val host = classifier.getHost();
+            long started = System.nanoTime();
+            results = host != null ? hostLimiter.call(host, () -> batch.send(classifier)) : batch.send(classifier);
+            ImgSafeMetrics.observe(ImgSafeMetrics.STAGE_CLASSIFY, started);
+        } catch (QuotaExceededException e) {
+            if (!pipeline.hasBacklog()) {
+                pipeline.abort(e);
+                items.forEach(item -> pipeline.finish(item, false));
+                return;
+            }
+            log.info("{} limit exceeded. Files are queued until {}.", classifier.getName(), e.getResetAt());
+            items.forEach(pipeline::park);
+            return;
+        } catch (IOException | RuntimeException e) {
+            pipeline.abort(e);
+            items.forEach(item -> pipeline.finish(item, false));
+            return;
+        }
+
+        for (val result : results) {
+            val item = result.key();
+            item.releaseImage();
+
+            if (!result.isSuccess()) {
+                log.warn("Image {} was ignored because an error was returned. ({})", item.file.name(),
+                        result.classification() != null ? result.classification().error() : "no response");
+                ImgSafeMetrics.IMAGES_SKIPPED.inc("classification_error");
+                pipeline.finish(item, true);
+                continue;
+            }
+
+            log.debug("Safe search result: {}", result.classification().annotation());
+            item.annotation = result.classification().annotation();
+            item.source = result.classification().source();
+            pipeline.classified(item);
+        }
+    }
+}
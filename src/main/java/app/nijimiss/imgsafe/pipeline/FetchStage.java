@@ -0,0 +1,131 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.pipeline;
+
+import app.nijimiss.imgsafe.api.ImageDownloader;
+import app.nijimiss.imgsafe.api.misskey.File;
+import app.nijimiss.imgsafe.api.misskey.MisskeyApiClient;
+import app.nijimiss.imgsafe.api.vision.ImageSource;
+import app.nijimiss.imgsafe.cache.PerceptualHash;
+import app.nijimiss.imgsafe.metrics.ImgSafeMetrics;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import okhttp3.HttpUrl;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+// ファイル情報の取得と画像のダウンロード・縮小
+@Slf4j
+final class FetchStage {
+    private final MisskeyApiClient misskey;
+    private final ImageDownloader downloader;
+    private final HostConcurrencyLimiter hostLimiter;
+
+    private ImagePreprocessor preprocessor;
+    private boolean preferThumbnail;
+
+    FetchStage(MisskeyApiClient misskey, ImageDownloader downloader, HostConcurrencyLimiter hostLimiter) {
+        this.misskey = misskey;
+        this.downloader = downloader;
+        this.hostLimiter = hostLimiter;
+    }
+
+    void setPreprocessor(ImagePreprocessor preprocessor) {
+        this.preprocessor = preprocessor;
+    }
+
+    void setPreferThumbnail(boolean preferThumbnail) {
+        this.preferThumbnail = preferThumbnail;
+    }
+
+    File fetchMetadata(File file) throws IOException {
+        long started = System.nanoTime();
+        val fullFileInfo = hostLimiter.call(misskey.getHost(), () -> misskey.getFile(file.id()));
+        ImgSafeMetrics.observe(ImgSafeMetrics.STAGE_GET_FILE, started);
+        return fullFileInfo;
+    }
+
+    // 画像が見つからない場合はFileNotFoundException
+    ImageSource download(File file) throws IOException {
+        log.debug("Checking image: {}", file.name());
+        log.debug("Downloading image...");
+
+        long started = System.nanoTime();
+        ImageSource image = useThumbnail(file) ? downloadThumbnail(file) : null;
+        if (image == null)
+            image = downloadImage(StringUtils.defaultIfEmpty(file.webpublicUrl(), file.url()));
+        ImgSafeMetrics.observe(ImgSafeMetrics.STAGE_DOWNLOAD, started);
+
+        return preprocessor != null ? preprocess(file, image) : image;
+    }
+
+    private boolean useThumbnail(File file) {
+        if (!preferThumbnail || StringUtils.isEmpty(file.thumbnailUrl()))
+            return false;
+        // 元の画像が十分に小さい場合は縮小されたサムネイルを使わない
+        val properties = file.properties();
+        return preprocessor == null || properties == null || properties.width() <= 0 || properties.height() <= 0
+                || Math.max(properties.width(), properties.height()) > preprocessor.getMaxEdge();
+    }
+
+    // Misskeyのサムネイルは多くの場合WebPで、縮小も類似画像の判定もできないため、読み込める形式の場合のみ使う
+    private ImageSource downloadThumbnail(File file) throws IOException {
+        val url = HttpUrl.parse(file.thumbnailUrl());
+        if (url != null && StringUtils.endsWithIgnoreCase(url.encodedPath(), ".webp"))
+            return null;
+
+        ImageSource thumbnail;
+        try {
+            thumbnail = downloadImage(file.thumbnailUrl());
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        if (ImagePreprocessor.isDecodable(thumbnail))
+            return thumbnail;
+
+        log.debug("The thumbnail of image {} is not in a readable format. The original is used instead.", file.name());
+        thumbnail.release();
+        return null;
+    }
+
+    private ImageSource downloadImage(String url) throws IOException {
+        return hostLimiter.call(HostConcurrencyLimiter.hostOf(url), () -> downloader.download(url));
+    }
+
+    private ImageSource preprocess(File file, ImageSource image) {
+        long started = System.nanoTime();
+        try {
+            return preprocessor.process(image);
+        } catch (IOException | RuntimeException e) {
+            log.debug("Could not downscale image {}. The original is sent instead.", file.name(), e);
+            return image;
+        } finally {
+            ImgSafeMetrics.observe(ImgSafeMetrics.STAGE_ENCODE, started);
+        }
+    }
+
+    static Long computePerceptualHash(File file, ImageSource image) {
+        try {
+            return PerceptualHash.compute(image);
+        } catch (IOException | RuntimeException e) {
+            log.debug("Could not compute a perceptual hash for image {}.", file.name(), e);
+            return null;
+        }
+    }
+}
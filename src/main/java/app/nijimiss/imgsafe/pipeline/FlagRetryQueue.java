@@ -0,0 +1,118 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package app.nijimiss.imgsafe.pipeline;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Misskeyに反映できなかったセンシティブ指定。チェックポイントは先に進めるため、再起動しても失われないようファイルに保存する
+@Slf4j
+public class FlagRetryQueue {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final File retryFile;
+    private final LinkedHashSet<String> pending = new LinkedHashSet<>(); // 追加順
+    private boolean dirty;
+
+    public FlagRetryQueue(File retryFile) {
+        this.retryFile = retryFile;
+        load();
+    }
+
+    public synchronized void addAll(Collection<String> fileIds) {
+        if (pending.addAll(fileIds))
+            dirty = true;
+    }
+
+    public synchronized List<String> take(int max) {
+        List<String> taken = new ArrayList<>(Math.min(max, pending.size()));
+        val iterator = pending.iterator();
+        while (iterator.hasNext() && taken.size() < max) {
+            taken.add(iterator.next());
+            iterator.remove();
+        }
+        if (!taken.isEmpty())
+            dirty = true;
+        return taken;
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    public void startAutoSave(long intervalMillis) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+                .namingPattern("imgsafe-flag-retry")
+                .daemon(true)
+                .build());
+        scheduler.scheduleWithFixedDelay(this::save, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void save() {
+        List<String> snapshot;
+        synchronized (this) {
+            if (!dirty)
+                return;
+            snapshot = new ArrayList<>(pending);
+            dirty = false;
+        }
+
+        val tempFile = new File(retryFile.getPath() + ".tmp");
+        try {
+            MAPPER.writeValue(tempFile, snapshot);
+            Files.move(tempFile.toPath(), retryFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("Flag retry queue saved: {} files.", snapshot.size());
+        } catch (IOException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            log.error("The flag retry queue could not be saved successfully.", e);
+        }
+    }
+
+    private void load() {
+        if (!retryFile.exists() || retryFile.length() == 0)
+            return;
+
+        try {
+            List<String> loaded = MAPPER.readValue(retryFile, new TypeReference<>() {
+            });
+            synchronized (this) {
+                pending.addAll(loaded);
+            }
+            log.info("Loaded {} files waiting to be marked as sensitive.", loaded.size());
+        } catch (IOException e) {
+            log.error("The flag retry queue could not be loaded successfully.", e);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package app.nijimiss.imgsafe.pipeline;
+
+import app.nijimiss.imgsafe.ImgSafeConfig;
+import app.nijimiss.imgsafe.api.misskey.MisskeyApiClient;
+import app.nijimiss.imgsafe.api.resilience.Backoff;
+import app.nijimiss.imgsafe.metrics.ImgSafeMetrics;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// センシティブ指定の反映を専用のワーカーで行う。Misskeyから429が返された場合は全ワーカーで送信を止める
+@Slf4j
+public class FlagUpdater {
+    private final MisskeyApiClient misskey;
+    private final FlagRetryQueue retryQueue;
+    private final BlockingQueue<Request> queue;
+    private final int workers;
+    private final int maxAttempts;
+    private final Backoff backoff;
+    private final long retryIntervalMillis;
+
+    private final ExecutorService workerPool;
+    private final ScheduledExecutorService retryScheduler;
+    private final Set<Request> updating = ConcurrentHashMap.newKeySet(); // キューから取り出して反映中の要求
+    private final AtomicLong pausedUntil = new AtomicLong();
+    private volatile boolean running = true;
+
+    public FlagUpdater(MisskeyApiClient misskey, FlagRetryQueue retryQueue, ImgSafeConfig.FlagUpdate config) {
+        this.misskey = misskey;
+        this.retryQueue = retryQueue;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, config.getQueueCapacity()));
+        this.workers = Math.max(1, config.getConcurrency());
+        this.maxAttempts = Math.max(1, config.getMaxAttempts());
+        this.backoff = new Backoff(config.getInitialBackoffMillis(), config.getMaxBackoffMillis());
+        this.retryIntervalMillis = TimeUnit.SECONDS.toMillis(Math.max(1, config.getRetryIntervalSeconds()));
+
+        workerPool = Executors.newFixedThreadPool(workers, new BasicThreadFactory.Builder()
+                .namingPattern("imgsafe-flag-update-%d")
+                .daemon(true)
+                .build());
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+                .namingPattern("imgsafe-flag-requeue")
+                .daemon(true)
+                .build());
+    }
+
+    public void start() {
+        for (int i = 0; i < workers; i++)
+            workerPool.execute(this::workLoop);
+        retryScheduler.scheduleWithFixedDelay(this::requeueRetries, retryIntervalMillis, retryIntervalMillis, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "imgsafe-flag-update-shutdown"));
+    }
+
+    // キューが一杯の場合は呼び出し元を待たせ、検査の速度を反映できる速度に合わせる
+    public void submit(String fileId, Consumer<Outcome> callback) {
+        val request = new Request(fileId, callback);
+        if (running) {
+            try {
+                queue.put(request);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        retryQueue.addAll(List.of(fileId));
+        complete(request, Outcome.DEFERRED);
+    }
+
+    public int getQueueSize() {
+        return queue.size() + updating.size();
+    }
+
+    public int getRetryQueueSize() {
+        return retryQueue.size();
+    }
+
+    // 反映していない指定は再送キューに移し、次回の起動時に反映する
+    public void shutdown() {
+        running = false;
+        retryScheduler.shutdownNow();
+        workerPool.shutdownNow();
+        List<String> remaining = new ArrayList<>();
+        updating.forEach(request -> remaining.add(request.fileId));
+        List<Request> queued = new ArrayList<>();
+        queue.drainTo(queued);
+        queued.forEach(request -> remaining.add(request.fileId));
+        retryQueue.addAll(remaining);
+        retryQueue.save();
+    }
+
+    private void workLoop() {
+        while (running) {
+            Request request;
+            try {
+                request = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            updating.add(request);
+            Outcome outcome;
+            try {
+                outcome = update(request.fileId);
+            } catch (InterruptedException e) {
+                // shutdownと並行するため、反映中の一覧から外す前に再送キューへ移す
+                Thread.currentThread().interrupt();
+                retryQueue.addAll(List.of(request.fileId));
+                complete(request, Outcome.DEFERRED);
+                return;
+            } catch (RuntimeException e) {
+                // 想定外の例外でもワーカーは止めず、後で再送する
+                log.error("Failed to mark file {} as sensitive. It will be retried later.", request.fileId, e);
+                outcome = Outcome.DEFERRED;
+            } finally {
+                updating.remove(request);
+            }
+
+            if (outcome == Outcome.DEFERRED)
+                retryQueue.addAll(List.of(request.fileId));
+            complete(request, outcome);
+        }
+    }
+
+    private Outcome update(String fileId) throws InterruptedException {
+        for (int attempt = 0; attempt < maxAttempts; attempt++) {
+            awaitResume();
+
+            long started = System.nanoTime();
+            try {
+                val result = misskey.requestFileUpdate(fileId, true);
+                ImgSafeMetrics.observe(ImgSafeMetrics.STAGE_UPDATE_FILE, started);
+                if (result.isSuccess())
+                    return Outcome.UPDATED;
+                if (result.code() == 429) {
+                    pause(result.retryAfterMillis() > 0 ? result.retryAfterMillis() : backoff.delayMillis(attempt));
+                    continue;
+                }
+                if (!Backoff.isRetryable(result.code())) {
+                    log.warn("File {} could not be marked as sensitive. (status {})", fileId, result.code());
+                    return Outcome.REJECTED;
+                }
+                log.debug("Marking file {} as sensitive failed with status {}.", fileId, result.code());
+            } catch (IOException e) {
+                ImgSafeMetrics.observe(ImgSafeMetrics.STAGE_UPDATE_FILE, started);
+                log.debug("Marking file {} as sensitive failed: {}", fileId, e.getMessage());
+            }
+
+            if (attempt + 1 < maxAttempts)
+                Thread.sleep(backoff.delayMillis(attempt));
+        }
+
+        log.warn("File {} could not be marked as sensitive after {} attempts. It will be retried later.", fileId, maxAttempts);
+        return Outcome.DEFERRED;
+    }
+
+    // 指定された時間が長すぎる場合も最大の待機時間で打ち切る
+    private void pause(long millis) {
+        long until = System.currentTimeMillis() + Math.min(millis, backoff.getMaxMillis());
+        if (pausedUntil.getAndAccumulate(until, Math::max) < until)
+            log.info("Misskey rate limit reached. Updates are paused for {} ms.", Math.min(millis, backoff.getMaxMillis()));
+    }
+
+    private void awaitResume() throws InterruptedException {
+        long wait;
+        while ((wait = pausedUntil.get() - System.currentTimeMillis()) > 0)
+            Thread.sleep(wait);
+    }
+
+    // 新しい指定の反映を妨げないよう、キューの空きの半分までを再送に使う
+    private void requeueRetries() {
+        if (System.currentTimeMillis() < pausedUntil.get())
+            return;
+
+        val fileIds = retryQueue.take(queue.remainingCapacity() / 2);
+        List<String> rejected = new ArrayList<>();
+        for (val fileId : fileIds) {
+            if (!queue.offer(new Request(fileId, null)))
+                rejected.add(fileId);
+        }
+        retryQueue.addAll(rejected);
+        if (fileIds.size() > rejected.size())
+            log.debug("Retrying {} files waiting to be marked as sensitive.", fileIds.size() - rejected.size());
+    }
+
+    private void complete(Request request, Outcome outcome) {
+        ImgSafeMetrics.FLAG_UPDATES.inc(outcome.name().toLowerCase(Locale.ROOT));
+        if (request.callback == null)
+            return;
+        try {
+            request.callback.accept(outcome);
+        } catch (RuntimeException e) {
+            log.error("Failed to handle the result of marking file {} as sensitive.", request.fileId, e);
+        }
+    }
+
+    public enum Outcome {
+        UPDATED, // 反映できた
+        REJECTED, // 再送しても成功しない応答 (ファイルが削除済みなど)
+        DEFERRED // 再送キューに移し、後で反映する
+    }
+
+    // 同じファイルの要求が重複しても区別できるよう、同一性で比較する
+    private static final class Request {
+        private final String fileId;
+        private final Consumer<Outcome> callback;
+
+        private Request(String fileId, Consumer<Outcome> callback) {
+            this.fileId = fileId;
+            this.callback = callback;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.pipeline;
+
+import lombok.val;
+import okhttp3.HttpUrl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+public class HostConcurrencyLimiter {
+    private final int permitsPerHost;
+    private final Map<String, Semaphore> semaphores = new ConcurrentHashMap<>();
+
+    public HostConcurrencyLimiter(int permitsPerHost) {
+        if (permitsPerHost <= 0)
+            throw new IllegalArgumentException("permitsPerHost must be positive");
+        this.permitsPerHost = permitsPerHost;
+    }
+
+    public <T> T call(String host, RemoteCall<T> call) throws IOException {
+        val semaphore = semaphores.computeIfAbsent(host, key -> new Semaphore(permitsPerHost, true));
+        try {
+            semaphore.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + host);
+        }
+
+        try {
+            return call.call();
+        } finally {
+            semaphore.release();
+        }
+    }
+
+    public int availablePermits(String host) {
+        val semaphore = semaphores.get(host);
+        return semaphore != null ? semaphore.availablePermits() : permitsPerHost;
+    }
+
+    public static String hostOf(String url) {
+        val parsed = HttpUrl.parse(url);
+        return parsed != null ? parsed.host() : url;
+    }
+
+    @FunctionalInterface
+    public interface RemoteCall<T> {
+        T call() throws IOException;
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.pipeline;
+
+import app.nijimiss.imgsafe.ImgSafeConfig;
+import app.nijimiss.imgsafe.api.ImageDownloader;
+import app.nijimiss.imgsafe.cache.NearDuplicateIndex;
+import app.nijimiss.imgsafe.cache.VerdictCache;
+import app.nijimiss.imgsafe.api.misskey.File;
+import app.nijimiss.imgsafe.api.misskey.MisskeyApiClient;
+import app.nijimiss.imgsafe.classifier.ImageClassifier;
+import app.nijimiss.imgsafe.judge.JudgingRules;
+import app.nijimiss.imgsafe.metrics.ImgSafeMetrics;
+import app.nijimiss.imgsafe.store.CheckResultStore;
+import app.nijimiss.imgsafe.store.VerdictSource;
+import app.nijimiss.imgsafe.webhook.WebhookDispatcher;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// 投入されたファイルを各段階へ順に渡し、完了・中断とチェックポイントを管理する
+@Slf4j
+public class ImagePipeline {
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+    private final ImageClassifier classifier;
+    private final int batchSize;
+    private final CheckpointTracker tracker;
+
+    private final StageExecutors executors;
+    private final FetchStage fetchStage;
+    private final ClassifyStage classifyStage;
+    private final ActionStage actionStage;
+    private final RetryPolicy retryPolicy;
+
+    private VerdictCache verdictCache;
+    private NearDuplicateIndex nearDuplicateIndex;
+    private VisionBacklog backlog;
+    private Listener listener;
+
+    // 検査中・検査済みのストリーミングのファイル。ポーリングで同じファイルに到達しても二重に検査しない
+    private final UntrackedFiles untrackedFiles = new UntrackedFiles();
+    // 終了時に、キューに残ったファイルが保持している一時ファイルを削除するため、完了していないファイルを全て保持する
+    private final Set<PipelineItem> active = ConcurrentHashMap.newKeySet();
+
+    private final Object idleLock = new Object();
+    private int inFlight; // チェックポイントの順序に含めたファイルのみ数える
+    private volatile Exception failure;
+
+    public ImagePipeline(MisskeyApiClient misskey,
+                         ImageClassifier classifier,
+                         WebhookDispatcher webhookDispatcher,
+                         ImageDownloader downloader,
+                         JudgingRules judgingRules,
+                         int batchSize,
+                         ImgSafeConfig.Pipeline config,
+                         CheckpointTracker tracker) {
+        this.classifier = classifier;
+        this.batchSize = Math.max(1, Math.min(batchSize, classifier.getMaxBatchSize()));
+        this.tracker = tracker;
+
+        val hostLimiter = new HostConcurrencyLimiter(Math.max(1, config.getMaxRequestsPerHost()));
+        executors = new StageExecutors(config);
+        fetchStage = new FetchStage(misskey, downloader, hostLimiter);
+        classifyStage = new ClassifyStage(this, classifier, hostLimiter, executors, this.batchSize,
+                Math.max(1, config.getQueueCapacity()), config.getClassifyWorkers());
+        actionStage = new ActionStage(this, misskey, hostLimiter, judgingRules, webhookDispatcher);
+        retryPolicy = new RetryPolicy(config.getMaxAttempts(), config.getInitialBackoffMillis());
+        classifyStage.start();
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setVerdictCache(VerdictCache verdictCache) {
+        this.verdictCache = verdictCache;
+    }
+
+    public void setNearDuplicateIndex(NearDuplicateIndex nearDuplicateIndex) {
+        this.nearDuplicateIndex = nearDuplicateIndex;
+    }
+
+    public void setPreprocessor(ImagePreprocessor preprocessor) {
+        fetchStage.setPreprocessor(preprocessor);
+    }
+
+    public void setPreferThumbnail(boolean preferThumbnail) {
+        fetchStage.setPreferThumbnail(preferThumbnail);
+    }
+
+    public void setResultStore(CheckResultStore resultStore) {
+        actionStage.setResultStore(resultStore);
+    }
+
+    // 設定すると分類器の上限に達した際にパイプラインを止めず、未検査のファイルをバックログへ回す
+    public void setBacklog(VisionBacklog backlog) {
+        this.backlog = backlog;
+    }
+
+    // 設定するとセンシティブ指定の反映を更新キューに任せ、失敗した場合も後で再送する
+    public void setFlagUpdater(FlagUpdater flagUpdater) {
+        actionStage.setFlagUpdater(flagUpdater);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void submit(File file) {
+        // ストリーミングで検査中・検査済みのファイルはポーリングで再度検査しない
+        if (untrackedFiles.contains(file.id())) {
+            ImgSafeMetrics.IMAGES_SKIPPED.inc("already_checked");
+            skip(file.id());
+            return;
+        }
+        submit(file, true);
+    }
+
+    // チェックポイントの順序に含めずに検査する (ストリーミングで受け取ったファイルなど)
+    public void submitUntracked(File file) {
+        if (!untrackedFiles.begin(file.id()))
+            return;
+        submit(file, false);
+    }
+
+    private void submit(File file, boolean tracked) {
+        if (isAborted()) {
+            if (backlog != null)
+                backlog.release(file.id());
+            if (!tracked)
+                untrackedFiles.end(file.id(), false);
+            return;
+        }
+
+        try {
+            executors.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort(new RejectedExecutionException(e));
+            if (!tracked)
+                untrackedFiles.end(file.id(), false);
+            return;
+        }
+
+        if (tracked) {
+            tracker.register(file.id());
+            synchronized (idleLock) {
+                inFlight++;
+            }
+        }
+
+        val item = new PipelineItem(file, tracked);
+        active.add(item);
+        try {
+            // 同じ内容のファイルは過去の判定結果を再利用し、ダウンロードもしない
+            val cached = verdictCache != null ? verdictCache.get(file.md5(), file.size()) : null;
+            if (cached != null) {
+                log.debug("Image {} matched a cached verdict.", file.name());
+                item.fullFileInfo = file;
+                item.annotation = cached;
+                item.source = VerdictSource.CACHE;
+                execute(executors.getAction(), item, () -> actionStage.act(item));
+                return;
+            }
+
+            // 類似画像の照合にはダウンロードが必要なため、それ以外はここで待機させる
+            if (nearDuplicateIndex == null && isClassifierParked()) {
+                park(item);
+                return;
+            }
+
+            execute(executors.getMetadata(), item, () -> fetchMetadata(item));
+        } catch (RejectedExecutionException e) {
+            abort(e);
+            finish(item, false);
+        }
+    }
+
+    // 画像を含まないページなど、検査せずにチェックポイントを進めてよいファイル
+    public void skip(String fileId) {
+        if (isAborted())
+            return;
+
+        tracker.register(fileId);
+        tracker.complete(fileId);
+    }
+
+    // ポーリングで投入したファイルの完了のみ待ち、ストリーミングやバックログから投入したファイルは待たない
+    public void awaitIdle() throws InterruptedException {
+        synchronized (idleLock) {
+            while (inFlight > 0)
+                idleLock.wait();
+        }
+    }
+
+    public boolean isAborted() {
+        return failure != null;
+    }
+
+    public void throwIfFailed() throws IOException {
+        val e = failure;
+        if (e instanceof IOException ioException)
+            throw ioException;
+        if (e instanceof RuntimeException runtimeException)
+            throw runtimeException;
+    }
+
+    public void reset() {
+        failure = null;
+        tracker.reset();
+    }
+
+    public void shutdown() {
+        executors.shutdownNow();
+        classifyStage.shutdownNow();
+        retryPolicy.shutdownNow();
+
+        // 実行中の処理が終わるのを少し待ち、キューに残ったファイルや送信待ちのバッチの画像を削除する
+        try {
+            executors.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            classifyStage.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        active.forEach(PipelineItem::releaseImage);
+        classifyStage.clear();
+    }
+
+    private void fetchMetadata(PipelineItem item) throws IOException {
+        val fullFileInfo = fetchStage.fetchMetadata(item.file);
+        if (fullFileInfo == null) {
+            log.warn("Image {} could not be fetched.", item.file.name());
+            ImgSafeMetrics.IMAGES_SKIPPED.inc("not_fetched");
+            finish(item, true);
+            return;
+        }
+
+        item.fullFileInfo = fullFileInfo;
+        execute(executors.getDownload(), item, () -> download(item));
+    }
+
+    private void download(PipelineItem item) throws IOException {
+        try {
+            item.image = fetchStage.download(item.fullFileInfo);
+        } catch (FileNotFoundException e) {
+            log.warn("Image {} is not found.", item.fullFileInfo.name());
+            ImgSafeMetrics.IMAGES_SKIPPED.inc("not_found");
+            finish(item, true);
+            return;
+        }
+
+        if (nearDuplicateIndex != null) {
+            item.perceptualHash = FetchStage.computePerceptualHash(item.fullFileInfo, item.image);
+            val similar = item.perceptualHash != null ? nearDuplicateIndex.find(item.perceptualHash) : null;
+            if (similar != null) {
+                log.debug("Image {} is similar to a previously checked image.", item.fullFileInfo.name());
+                item.releaseImage();
+                item.annotation = similar;
+                item.source = VerdictSource.NEAR_DUPLICATE;
+                execute(executors.getAction(), item, () -> actionStage.act(item));
+                return;
+            }
+        }
+
+        if (isClassifierParked()) {
+            park(item);
+            return;
+        }
+
+        try {
+            classifyStage.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+        }
+    }
+
+    // 分類器が判定したファイルの結果を再利用できるよう記録し、反映の段階へ渡す
+    void classified(PipelineItem item) {
+        if (verdictCache != null)
+            verdictCache.put(item.file.md5(), item.file.size(), item.annotation);
+        if (nearDuplicateIndex != null && item.perceptualHash != null)
+            nearDuplicateIndex.add(item.perceptualHash, item.annotation);
+        try {
+            execute(executors.getAction(), item, () -> actionStage.act(item));
+        } catch (RejectedExecutionException e) {
+            abort(e);
+            finish(item, false);
+        }
+    }
+
+    boolean hasBacklog() {
+        return backlog != null;
+    }
+
+    // 分類器の上限 (複数のインスタンスの場合は配分) に達していて、新しい画像をバックログへ回す状態か
+    boolean isClassifierParked() {
+        return backlog != null && classifier.getRemainingQuota() == 0;
+    }
+
+    // バックログに記録した時点でチェックポイントを進めてよい
+    void park(PipelineItem item) {
+        backlog.add(item.file.id());
+        ImgSafeMetrics.IMAGES_SKIPPED.inc("backlog");
+        finish(item, true);
+    }
+
+    private void execute(ExecutorService stage, PipelineItem item, Step step) {
+        stage.execute(() -> process(item, stage, step));
+    }
+
+    // stageがnullの場合は再試行しない
+    void process(PipelineItem item, ExecutorService stage, Step step) {
+        if (isAborted()) {
+            finish(item, false);
+            return;
+        }
+
+        try {
+            step.run();
+        } catch (IOException | RuntimeException e) {
+            if (RetryPolicy.isPipelineFailure(e)) {
+                abort(e);
+                finish(item, false);
+            } else {
+                retryOrSkip(item, stage, step, e);
+            }
+        }
+    }
+
+    // ファイルごとの失敗は同じ段階から再試行し、上限に達したファイルは飛ばして次のファイルへ進む
+    private void retryOrSkip(PipelineItem item, ExecutorService stage, Step step, Exception e) {
+        item.releaseImage();
+        item.attempts++;
+        if (stage != null && retryPolicy.canRetry(item.attempts)) {
+            long delay = retryPolicy.delayMillis(item.attempts);
+            log.debug("Image {} failed (attempt {} of {}). Retrying in {} ms.", item.file.name(), item.attempts,
+                    retryPolicy.getMaxAttempts(), delay, e);
+            ImgSafeMetrics.IMAGE_RETRIES.inc();
+            try {
+                retryPolicy.schedule(() -> {
+                    try {
+                        execute(stage, item, step);
+                    } catch (RejectedExecutionException rejected) {
+                        abort(rejected);
+                        finish(item, false);
+                    }
+                }, delay);
+                return;
+            } catch (RejectedExecutionException rejected) {
+                abort(rejected);
+                finish(item, false);
+                return;
+            }
+        }
+
+        log.warn("Image {} ({}) was skipped after {} failed attempts: {}", item.file.name(), item.file.id(), item.attempts, e.toString());
+        log.debug("Last failure of image {}.", item.file.id(), e);
+        ImgSafeMetrics.IMAGES_SKIPPED.inc("failed");
+        finish(item, true);
+    }
+
+    void abort(Exception e) {
+        if (failure == null) {
+            failure = e;
+            log.debug("Pipeline aborted.", e);
+        }
+    }
+
+    void finish(PipelineItem item, boolean checked) {
+        item.releaseImage();
+        active.remove(item);
+        if (backlog != null) {
+            if (checked) {
+                backlog.complete(item.file.id());
+            } else {
+                backlog.release(item.file.id());
+            }
+        }
+        if (item.tracked) {
+            if (checked)
+                tracker.complete(item.file.id());
+        } else {
+            untrackedFiles.end(item.file.id(), checked);
+        }
+
+        if (listener != null)
+            listener.onFinished(item.file, checked, System.nanoTime() - item.submittedAt);
+
+        executors.release();
+
+        if (item.tracked) {
+            synchronized (idleLock) {
+                inFlight--;
+                idleLock.notifyAll();
+            }
+        }
+    }
+
+    public static boolean isVirtualThreadAvailable() {
+        return StageExecutors.isVirtualThreadAvailable();
+    }
+
+    interface Step {
+        void run() throws IOException;
+    }
+
+    public interface Listener {
+        // checkedは検査を完了したか (中断された場合はfalse)。elapsedNanosは投入からの経過時間
+        void onFinished(File file, boolean checked, long elapsedNanos);
+    }
+}
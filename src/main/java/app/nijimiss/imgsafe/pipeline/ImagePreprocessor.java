@@ -0,0 +1,128 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.pipeline;
+
+import app.nijimiss.imgsafe.api.vision.ImageSource;
+import lombok.val;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// SafeSearchの判定に原寸は不要なため、送信前に縮小してJPEGに変換する
+public class ImagePreprocessor {
+    private final int maxEdge;
+    private final float jpegQuality;
+
+    public ImagePreprocessor(int maxEdge, float jpegQuality) {
+        if (maxEdge <= 0)
+            throw new IllegalArgumentException("maxEdge must be positive");
+        if (jpegQuality <= 0 || jpegQuality > 1)
+            throw new IllegalArgumentException("jpegQuality must be between 0 and 1");
+        this.maxEdge = maxEdge;
+        this.jpegQuality = jpegQuality;
+    }
+
+    public int getMaxEdge() {
+        return maxEdge;
+    }
+
+    public static boolean isDecodable(ImageSource source) throws IOException {
+        try (InputStream input = source.openStream();
+             ImageInputStream imageInput = ImageIO.createImageInputStream(input)) {
+            return imageInput != null && ImageIO.getImageReaders(imageInput).hasNext();
+        }
+    }
+
+    // デコードできない形式や十分に小さい画像は元のまま返す
+    public ImageSource process(ImageSource source) throws IOException {
+        BufferedImage decoded;
+        try (InputStream input = source.openStream();
+             ImageInputStream imageInput = ImageIO.createImageInputStream(input)) {
+            val readers = ImageIO.getImageReaders(imageInput);
+            if (!readers.hasNext())
+                return source;
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInput, true, true);
+                int longEdge = Math.max(reader.getWidth(0), reader.getHeight(0));
+                if (longEdge <= maxEdge)
+                    return source;
+
+                // 目標サイズの2倍程度まで間引いて読み込み、巨大な画像を全画素デコードしない
+                int step = Math.max(1, longEdge / (maxEdge * 2));
+                val param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                decoded = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        val encoded = encodeJpeg(resize(decoded));
+        source.release();
+        return ImageSource.ofBytes(encoded);
+    }
+
+    private BufferedImage resize(BufferedImage image) {
+        double scale = Math.min(1.0, (double) maxEdge / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+        val resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        val graphics = resized.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.setColor(Color.WHITE); // JPEGは透過できないため背景を白で塗る
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return resized;
+    }
+
+    private byte[] encodeJpeg(BufferedImage image) throws IOException {
+        val writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext())
+            throw new IOException("No JPEG encoder is available.");
+
+        val writer = writers.next();
+        val output = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOutput = ImageIO.createImageOutputStream(output)) {
+            writer.setOutput(imageOutput);
+            val param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(jpegQuality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.pipeline;
+
+import app.nijimiss.imgsafe.api.misskey.File;
+import app.nijimiss.imgsafe.api.vision.ImageSource;
+import app.nijimiss.imgsafe.api.vision.SafeSearchAnnotation;
+import app.nijimiss.imgsafe.store.VerdictSource;
+
+// パイプラインを流れる1ファイル分の状態
+final class PipelineItem {
+    final File file;
+    final boolean tracked; // チェックポイントの順序に含めるか
+    final long submittedAt = System.nanoTime();
+    File fullFileInfo;
+    ImageSource image;
+    Long perceptualHash;
+    SafeSearchAnnotation annotation;
+    VerdictSource source;
+    int attempts;
+
+    PipelineItem(File file, boolean tracked) {
+        this.file = file;
+        this.tracked = tracked;
+    }
+
+    synchronized void releaseImage() {
+        if (image != null) {
+            image.release();
+            image = null;
+        }
+    }
+}
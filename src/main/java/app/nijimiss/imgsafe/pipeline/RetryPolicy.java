@@ -0,0 +1,65 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.pipeline;
+
+import app.nijimiss.imgsafe.api.resilience.CircuitOpenException;
+import app.nijimiss.imgsafe.api.vision.QuotaExceededException;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// ファイルごとの失敗を同じ段階から再試行する間隔と回数
+final class RetryPolicy {
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final ScheduledExecutorService scheduler;
+
+    RetryPolicy(int maxAttempts, long initialBackoffMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffMillis = Math.max(0, initialBackoffMillis);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(StageExecutors.threadFactory("retry"));
+    }
+
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    boolean canRetry(int attempts) {
+        return attempts < maxAttempts;
+    }
+
+    long delayMillis(int attempts) {
+        return initialBackoffMillis << Math.min(attempts - 1, 10);
+    }
+
+    void schedule(Runnable task, long delayMillis) {
+        scheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void shutdownNow() {
+        scheduler.shutdownNow();
+    }
+
+    // 上限の超過や遮断、停止中など、後続のファイルも同じく失敗する例外のみパイプライン全体を止める
+    static boolean isPipelineFailure(Exception e) {
+        return e instanceof QuotaExceededException || e instanceof CircuitOpenException
+                || e instanceof RejectedExecutionException || e instanceof InterruptedIOException;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.pipeline;
+
+import app.nijimiss.imgsafe.ImgSafeConfig;
+import lombok.val;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// 実行方式に応じた各段階のスレッドと、同時に処理するファイル数の制限
+final class StageExecutors {
+    private final ExecutorService metadata;
+    private final ExecutorService download;
+    private final ExecutorService action;
+    private final ExecutorService virtualExecutor;
+    private final Semaphore inFlightPermits;
+
+    StageExecutors(ImgSafeConfig.Pipeline config) {
+        int capacity = Math.max(1, config.getQueueCapacity());
+        if (config.getExecutionMode() == ExecutionMode.VIRTUAL) {
+            // 1ファイルにつき1つの仮想スレッドを割り当て、同時実行数はホスト単位のセマフォで制限する
+            virtualExecutor = newVirtualThreadExecutor();
+            inFlightPermits = new Semaphore(Math.max(1, config.getMaxInFlight()));
+            metadata = virtualExecutor;
+            download = virtualExecutor;
+            action = virtualExecutor;
+        } else {
+            virtualExecutor = null;
+            inFlightPermits = null;
+            metadata = newStage("metadata", config.getMetadataWorkers(), capacity);
+            download = newStage("download", config.getDownloadWorkers(), capacity);
+            action = newStage("action", config.getActionWorkers(), capacity);
+        }
+    }
+
+    ExecutorService getMetadata() {
+        return metadata;
+    }
+
+    ExecutorService getDownload() {
+        return download;
+    }
+
+    ExecutorService getAction() {
+        return action;
+    }
+
+    // 仮想スレッドの場合は分類のリクエストもバッチごとのスレッドで送り、まとめる処理を止めない
+    void executeClassify(Runnable task) {
+        if (virtualExecutor != null) {
+            virtualExecutor.execute(task);
+        } else {
+            task.run();
+        }
+    }
+
+    void acquire() throws InterruptedException {
+        if (inFlightPermits != null)
+            inFlightPermits.acquire();
+    }
+
+    void release() {
+        if (inFlightPermits != null)
+            inFlightPermits.release();
+    }
+
+    void shutdownNow() {
+        metadata.shutdownNow();
+        download.shutdownNow();
+        action.shutdownNow();
+    }
+
+    void awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        for (val stage : List.of(metadata, download, action))
+            stage.awaitTermination(timeout, unit);
+    }
+
+    static boolean isVirtualThreadAvailable() {
+        val executor = tryNewVirtualThreadExecutor();
+        if (executor == null)
+            return false;
+        executor.shutdown();
+        return true;
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        // 通常のスレッドで代用すると同時実行数の前提が崩れるため、利用できない場合は起動しない
+        val executor = tryNewVirtualThreadExecutor();
+        if (executor == null)
+            throw new IllegalStateException("execution_mode \"virtual\" requires Java 21 or later, but this JVM is Java "
+                    + Runtime.version().feature() + ". Use execution_mode \"pipeline\" instead.");
+        return executor;
+    }
+
+    private static ExecutorService tryNewVirtualThreadExecutor() {
+        // Java 17でもビルドできるよう、仮想スレッドはリフレクション経由で利用する (Java 19, 20ではプレビュー機能のため例外になる)
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ThreadPoolExecutor newStage(String name, int workers, int capacity) {
+        int threads = Math.max(1, workers);
+        // キューが満杯の場合は呼び出し元をブロックし、前段の処理を抑制する
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(capacity), threadFactory(name), (task, executor) -> {
+            if (executor.isShutdown())
+                throw new RejectedExecutionException("Pipeline stage " + name + " is shut down.");
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+        });
+    }
+
+    static ThreadFactory threadFactory(String name) {
+        return new BasicThreadFactory.Builder()
+                .namingPattern("imgsafe-" + name + "-%d")
+                .daemon(true)
+                .build();
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.pipeline;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// チェックポイントの順序に含めずに検査したファイル (ストリーミングなど) を、ポーリングで二重に検査しないよう記録する
+final class UntrackedFiles {
+    private static final int RECENTLY_CHECKED_CAPACITY = 10000;
+
+    private final Map<String, Boolean> recentlyChecked = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > RECENTLY_CHECKED_CAPACITY;
+        }
+    };
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    // 検査中、または最近検査を完了したファイルか
+    boolean contains(String fileId) {
+        if (inFlight.contains(fileId))
+            return true;
+        synchronized (recentlyChecked) {
+            return recentlyChecked.containsKey(fileId);
+        }
+    }
+
+    // 既に検査中の場合はfalse
+    boolean begin(String fileId) {
+        return inFlight.add(fileId);
+    }
+
+    void end(String fileId, boolean checked) {
+        // 検査済みとして記録してから外し、ポーリングとの間に隙間を作らない
+        if (checked) {
+            synchronized (recentlyChecked) {
+                recentlyChecked.put(fileId, Boolean.TRUE);
+            }
+        }
+        inFlight.remove(fileId);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.pipeline;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Vision APIの上限に達している間に検査できなかったファイル。再起動しても失われないようファイルに保存する
+@Slf4j
+public class VisionBacklog {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final File backlogFile;
+    private final LinkedHashSet<String> pending = new LinkedHashSet<>(); // 追加順
+    private final LinkedHashSet<String> draining = new LinkedHashSet<>(); // 再投入して検査中
+    private boolean dirty;
+
+    public VisionBacklog(File backlogFile) {
+        this.backlogFile = backlogFile;
+        load();
+    }
+
+    public synchronized void add(String fileId) {
+        // 再投入したファイルが再び上限に達した場合は待機に戻す
+        draining.remove(fileId);
+        if (pending.add(fileId))
+            dirty = true;
+    }
+
+    public synchronized List<String> take(int max) {
+        List<String> taken = new ArrayList<>(Math.min(max, pending.size()));
+        val iterator = pending.iterator();
+        while (iterator.hasNext() && taken.size() < max) {
+            val fileId = iterator.next();
+            iterator.remove();
+            draining.add(fileId);
+            taken.add(fileId);
+        }
+        return taken;
+    }
+
+    public synchronized void complete(String fileId) {
+        if (draining.remove(fileId))
+            dirty = true;
+    }
+
+    // 検査を完了できなかったファイルを待機に戻す
+    public synchronized void release(String fileId) {
+        if (draining.remove(fileId))
+            pending.add(fileId);
+    }
+
+    public synchronized int size() {
+        return pending.size() + draining.size();
+    }
+
+    public synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    public void startAutoSave(long intervalMillis) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+                .namingPattern("imgsafe-vision-backlog")
+                .daemon(true)
+                .build());
+        scheduler.scheduleWithFixedDelay(this::save, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::save, "imgsafe-vision-backlog-shutdown"));
+    }
+
+    public void save() {
+        List<String> snapshot;
+        synchronized (this) {
+            if (!dirty)
+                return;
+            // 検査中のファイルも完了するまでは保存しておく
+            snapshot = new ArrayList<>(draining);
+            snapshot.addAll(pending);
+            dirty = false;
+        }
+
+        val tempFile = new File(backlogFile.getPath() + ".tmp");
+        try {
+            MAPPER.writeValue(tempFile, snapshot);
+            Files.move(tempFile.toPath(), backlogFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("Vision backlog saved: {} files.", snapshot.size());
+        } catch (IOException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            log.error("The vision backlog could not be saved successfully.", e);
+        }
+    }
+
+    private void load() {
+        if (!backlogFile.exists() || backlogFile.length() == 0)
+            return;
+
+        try {
+            List<String> loaded = MAPPER.readValue(backlogFile, new TypeReference<>() {
+            });
+            synchronized (this) {
+                pending.addAll(loaded);
+            }
+            log.info("Loaded {} files waiting for Vision API.", loaded.size());
+        } catch (IOException e) {
+            log.error("The vision backlog could not be loaded successfully.", e);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.store;
+
+public enum CheckAction {
+    NONE,
+    FLAGGED,
+    FLAG_DEFERRED, // 判定はセンシティブだが、Misskeyへの反映は再送待ち
+    FLAG_REJECTED // 判定はセンシティブだが、Misskeyが反映を拒否した
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.store;
+
+import app.nijimiss.imgsafe.api.vision.LikelinessLevel;
+import app.nijimiss.imgsafe.api.vision.SafeSearchAnnotation;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.sql.*;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// 判定結果を埋め込みH2データベースへ記録する。書き込みは専用スレッドでまとめてコミットする
+@Slf4j
+public class CheckResultStore implements AutoCloseable {
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS check_result (" +
+                    "id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+                    "file_id VARCHAR(64) NOT NULL, " +
+                    "md5 VARCHAR(32), " +
+                    "user_id VARCHAR(64), " +
+                    "adult VARCHAR(16), " +
+                    "spoof VARCHAR(16), " +
+                    "medical VARCHAR(16), " +
+                    "violence VARCHAR(16), " +
+                    "racy VARCHAR(16), " +
+                    "action VARCHAR(16) NOT NULL, " +
+                    "source VARCHAR(16) NOT NULL, " +
+                    "file_created_at TIMESTAMP WITH TIME ZONE, " +
+                    "checked_at TIMESTAMP WITH TIME ZONE NOT NULL)",
+            "CREATE INDEX IF NOT EXISTS idx_check_result_file_id ON check_result (file_id)",
+            "CREATE INDEX IF NOT EXISTS idx_check_result_md5 ON check_result (md5)",
+            "CREATE INDEX IF NOT EXISTS idx_check_result_user_id ON check_result (user_id, checked_at)"
+    };
+    private static final String INSERT = "INSERT INTO check_result " +
+            "(file_id, md5, user_id, adult, spoof, medical, violence, racy, action, source, file_created_at, checked_at) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SELECT = "SELECT file_id, md5, user_id, adult, spoof, medical, violence, racy, " +
+            "action, source, file_created_at, checked_at FROM check_result ";
+
+    private final Connection writeConnection;
+    private final String jdbcUrl;
+    private final BlockingQueue<CheckResult> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean closed;
+
+    public CheckResultStore(String path) throws SQLException {
+        this.jdbcUrl = "jdbc:h2:" + path;
+        this.writeConnection = DriverManager.getConnection(jdbcUrl);
+        try (Statement statement = writeConnection.createStatement()) {
+            for (String sql : SCHEMA)
+                statement.execute(sql);
+        }
+        writeConnection.setAutoCommit(false);
+
+        writer = new Thread(this::writeLoop, "imgsafe-result-store");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "imgsafe-result-store-shutdown"));
+    }
+
+    // 検査処理を待たせないよう、キューが満杯の場合は記録を諦める
+    public void record(CheckResult result) {
+        if (closed || !queue.offer(result)) {
+            dropped.increment();
+            log.warn("A check result for {} was dropped because the result store is busy.", result.fileId());
+        }
+    }
+
+    public List<CheckResult> findByFileId(String fileId) throws SQLException {
+        return query(SELECT + "WHERE file_id = ? ORDER BY checked_at DESC", fileId, Integer.MAX_VALUE);
+    }
+
+    public List<CheckResult> findByMd5(String md5) throws SQLException {
+        return query(SELECT + "WHERE md5 = ? ORDER BY checked_at DESC", md5, Integer.MAX_VALUE);
+    }
+
+    public List<CheckResult> findByUserId(String userId, int limit) throws SQLException {
+        return query(SELECT + "WHERE user_id = ? ORDER BY checked_at DESC", userId, limit);
+    }
+
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+
+        writer.interrupt();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            writeConnection.close();
+        } catch (SQLException e) {
+            log.error("The result store could not be closed successfully.", e);
+        }
+    }
+
+    private void writeLoop() {
+        List<CheckResult> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+            write(batch);
+            batch.clear();
+        }
+
+        // 終了前に残っている結果を書き出す
+        queue.drainTo(batch);
+        write(batch);
+    }
+
+    private void write(List<CheckResult> batch) {
+        if (batch.isEmpty())
+            return;
+
+        try (PreparedStatement statement = writeConnection.prepareStatement(INSERT)) {
+            for (CheckResult result : batch) {
+                val annotation = result.annotation();
+                statement.setString(1, result.fileId());
+                statement.setString(2, result.md5());
+                statement.setString(3, result.userId());
+                statement.setString(4, annotation != null ? annotation.adult().name() : null);
+                statement.setString(5, annotation != null ? annotation.spoof().name() : null);
+                statement.setString(6, annotation != null ? annotation.medical().name() : null);
+                statement.setString(7, annotation != null ? annotation.violence().name() : null);
+                statement.setString(8, annotation != null ? annotation.racy().name() : null);
+                statement.setString(9, result.action().name());
+                statement.setString(10, result.source().name());
+                statement.setObject(11, result.fileCreatedAt());
+                statement.setObject(12, result.checkedAt());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            writeConnection.commit();
+        } catch (SQLException e) {
+            log.error("Failed to write {} check results.", batch.size(), e);
+            try {
+                writeConnection.rollback();
+            } catch (SQLException rollbackException) {
+                log.error("Failed to roll back the result store.", rollbackException);
+            }
+        }
+    }
+
+    private List<CheckResult> query(String sql, String value, int limit) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(jdbcUrl);
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, value);
+            statement.setMaxRows(limit);
+
+            List<CheckResult> results = new ArrayList<>();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    String adult = resultSet.getString("adult");
+                    SafeSearchAnnotation annotation = adult == null ? null : new SafeSearchAnnotation(
+                            LikelinessLevel.valueOf(adult),
+                            LikelinessLevel.valueOf(resultSet.getString("spoof")),
+                            LikelinessLevel.valueOf(resultSet.getString("medical")),
+                            LikelinessLevel.valueOf(resultSet.getString("violence")),
+                            LikelinessLevel.valueOf(resultSet.getString("racy")));
+                    results.add(new CheckResult(
+                            resultSet.getString("file_id"),
+                            resultSet.getString("md5"),
+                            resultSet.getString("user_id"),
+                            annotation,
+                            CheckAction.valueOf(resultSet.getString("action")),
+                            VerdictSource.valueOf(resultSet.getString("source")),
+                            resultSet.getObject("file_created_at", OffsetDateTime.class),
+                            resultSet.getObject("checked_at", OffsetDateTime.class)));
+                }
+            }
+            return results;
+        }
+    }
+}
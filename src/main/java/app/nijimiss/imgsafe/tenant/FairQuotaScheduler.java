@@ -0,0 +1,137 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package app.nijimiss.imgsafe.tenant;
+
+import app.nijimiss.imgsafe.api.vision.VisionQuota;
+import lombok.val;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+// 複数のインスタンスで1つのVision APIの上限を共有する。
+// 最近利用しているインスタンスの間で、利用していないインスタンスの使用分を除いた上限を重みに応じて分け合う
+public class FairQuotaScheduler implements VisionQuota.Guard {
+    private static final long ACTIVE_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    private final VisionQuota quota;
+    private final List<Tenant> tenants = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Tenant> current = new ThreadLocal<>();
+
+    public FairQuotaScheduler(VisionQuota quota) {
+        this.quota = quota;
+        quota.setGuard(this);
+    }
+
+    // 利用量はインスタンスごとのチェックポイントに保存し、再起動後も配分を引き継ぐ
+    public Tenant register(String name, int weight, VisionQuota.Usage initialUsage) {
+        val tenant = new Tenant(name, Math.max(1, weight), new VisionQuota(0, initialUsage));
+        tenants.add(tenant);
+        return tenant;
+    }
+
+    // 呼び出し中に行われた予約を指定したインスタンスの利用分として数える
+    public <T> T runAs(Tenant tenant, Call<T> call) throws IOException {
+        val previous = current.get();
+        current.set(tenant);
+        try {
+            return call.call();
+        } finally {
+            if (previous != null) {
+                current.set(previous);
+            } else {
+                current.remove();
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean tryReserve(int units) {
+        val tenant = current.get();
+        if (tenant == null)
+            return true;
+
+        tenant.touch();
+        if (units > getRemaining(tenant))
+            return false;
+        tenant.usage.tryReserve(units);
+        return true;
+    }
+
+    @Override
+    public void refund(VisionQuota.Reservation reservation) {
+        val tenant = current.get();
+        if (tenant != null)
+            tenant.usage.refund(reservation);
+    }
+
+    public synchronized int getRemaining(Tenant tenant) {
+        int limit = quota.getLimit();
+        if (limit <= 0)
+            return Integer.MAX_VALUE;
+
+        long now = System.currentTimeMillis();
+        long pool = limit;
+        long activeWeight = 0;
+        for (val other : tenants) {
+            if (other == tenant || other.isActive(now)) {
+                activeWeight += other.weight;
+            } else {
+                pool -= other.usage.getUsed();
+            }
+        }
+        long share = Math.max(0, pool) * tenant.weight / activeWeight;
+        return (int) Math.max(0, Math.min(quota.getRemaining(), share - tenant.usage.getUsed()));
+    }
+
+    @FunctionalInterface
+    public interface Call<T> {
+        T call() throws IOException;
+    }
+
+    public static final class Tenant {
+        private final String name;
+        private final int weight;
+        private final VisionQuota usage;
+        private volatile long lastDemandAt;
+
+        private Tenant(String name, int weight, VisionQuota usage) {
+            this.name = name;
+            this.weight = weight;
+            this.usage = usage;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public VisionQuota getUsage() {
+            return usage;
+        }
+
+        // 検査する画像がある (上限を確認した) 時点で利用中とみなす
+        void touch() {
+            lastDemandAt = System.currentTimeMillis();
+        }
+
+        private boolean isActive(long now) {
+            return now - lastDemandAt < ACTIVE_WINDOW_MILLIS;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package app.nijimiss.imgsafe.tenant;
+
+import app.nijimiss.imgsafe.api.vision.ImageSource;
+import app.nijimiss.imgsafe.classifier.Classification;
+import app.nijimiss.imgsafe.classifier.ImageClassifier;
+
+import java.io.IOException;
+import java.util.List;
+
+// 共有する分類器をインスタンスごとに包み、Vision APIの利用量を配分の範囲に収める
+public class TenantClassifier implements ImageClassifier {
+    private final ImageClassifier delegate;
+    private final FairQuotaScheduler scheduler;
+    private final FairQuotaScheduler.Tenant tenant;
+
+    public TenantClassifier(ImageClassifier delegate, FairQuotaScheduler scheduler, FairQuotaScheduler.Tenant tenant) {
+        this.delegate = delegate;
+        this.scheduler = scheduler;
+        this.tenant = tenant;
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return delegate.getMaxBatchSize();
+    }
+
+    @Override
+    public long getMaxBatchBytes() {
+        return delegate.getMaxBatchBytes();
+    }
+
+    @Override
+    public int getRemainingQuota() {
+        int remaining = delegate.getRemainingQuota();
+        if (remaining == Integer.MAX_VALUE)
+            return remaining;
+        tenant.touch();
+        return Math.min(remaining, scheduler.getRemaining(tenant));
+    }
+
+    @Override
+    public String getHost() {
+        return delegate.getHost();
+    }
+
+    @Override
+    public List<Classification> classify(List<ImageSource> images) throws IOException {
+        return scheduler.runAs(tenant, () -> delegate.classify(images));
+    }
+}
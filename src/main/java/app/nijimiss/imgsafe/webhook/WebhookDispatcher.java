@@ -0,0 +1,183 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.webhook;
+
+import app.nijimiss.imgsafe.ImgSafeConfig;
+import app.nijimiss.imgsafe.api.misskey.File;
+import app.nijimiss.imgsafe.api.resilience.Backoff;
+import app.nijimiss.imgsafe.api.vision.SafeSearchAnnotation;
+import app.nijimiss.imgsafe.metrics.ImgSafeMetrics;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// 通知は専用のスレッドから送り、送信先の遅延や障害が画像の検査を止めないようにする
+@Slf4j
+public class WebhookDispatcher {
+    private static final long IDLE_POLL_MILLIS = 1000;
+
+    private final WebhookManager webhookManager;
+    private final WebhookRetryQueue retryQueue;
+    private final BlockingQueue<WebhookEvent> queue;
+    private final long coalesceWindowMillis;
+    private final int maxDigestSize;
+    private final int maxAttempts;
+    private final Backoff backoff;
+
+    private final Thread sender;
+    private volatile boolean running = true;
+    private volatile List<WebhookEvent> delivering = List.of(); // キューから取り出して送信中の通知
+    private int consecutiveFailures; // 送信スレッドからのみ参照する
+    private long nextRetryAt;
+
+    public WebhookDispatcher(WebhookManager webhookManager, WebhookRetryQueue retryQueue, ImgSafeConfig.Webhook config) {
+        this.webhookManager = webhookManager;
+        this.retryQueue = retryQueue;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, config.getQueueCapacity()));
+        this.coalesceWindowMillis = config.getCoalesceWindowMillis();
+        this.maxDigestSize = Math.max(1, config.getMaxDigestSize());
+        this.maxAttempts = Math.max(1, config.getMaxAttempts());
+        this.backoff = new Backoff(config.getInitialBackoffMillis(), config.getMaxBackoffMillis());
+
+        sender = new Thread(this::sendLoop, "imgsafe-webhook");
+        sender.setDaemon(true);
+    }
+
+    public void start() {
+        sender.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "imgsafe-webhook-shutdown"));
+    }
+
+    // 呼び出し元を待たせないため、キューが一杯の場合は再送キューに回す
+    public void dispatch(File file, String author, SafeSearchAnnotation result) {
+        val event = WebhookEvent.of(file, author, result);
+        if (queue.offer(event)) {
+            ImgSafeMetrics.WEBHOOK_EVENTS.inc("queued");
+        } else {
+            retryQueue.addAll(List.of(event));
+            ImgSafeMetrics.WEBHOOK_EVENTS.inc("spilled");
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public int getRetryQueueSize() {
+        return retryQueue.size();
+    }
+
+    // 送信していない通知は再送キューに移し、次回の起動時に送る
+    public synchronized void shutdown() {
+        // 終了時のフックからも呼ばれるため、2回目以降は何もしない
+        if (!running)
+            return;
+        running = false;
+        sender.interrupt();
+        List<WebhookEvent> remaining = new ArrayList<>(delivering); // 送信済みかわからないため、重複しても再送する
+        queue.drainTo(remaining);
+        retryQueue.addAll(remaining);
+        retryQueue.save();
+    }
+
+    private void sendLoop() {
+        while (running) {
+            try {
+                val first = queue.poll(waitMillis(), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    val events = collect(first);
+                    delivering = events;
+                    // 再送待ちの通知がある間は、順序を保つため後ろに並べる
+                    if (!retryQueue.isEmpty() || !deliver(events, maxAttempts)) {
+                        retryQueue.addAll(events);
+                        ImgSafeMetrics.WEBHOOK_EVENTS.inc("deferred");
+                    }
+                    delivering = List.of();
+                }
+
+                if (!retryQueue.isEmpty() && System.currentTimeMillis() >= nextRetryAt) {
+                    val events = retryQueue.peek(maxDigestSize);
+                    if (deliver(events, 1))
+                        retryQueue.remove(events.size());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private long waitMillis() {
+        if (retryQueue.isEmpty())
+            return IDLE_POLL_MILLIS;
+        return Math.max(0, Math.min(IDLE_POLL_MILLIS, nextRetryAt - System.currentTimeMillis()));
+    }
+
+    // 最初の通知から一定時間内に届いた通知をまとめる
+    private List<WebhookEvent> collect(WebhookEvent first) throws InterruptedException {
+        List<WebhookEvent> events = new ArrayList<>();
+        events.add(first);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(coalesceWindowMillis);
+        while (events.size() < maxDigestSize) {
+            val next = queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (next == null)
+                break;
+            events.add(next);
+        }
+        return events;
+    }
+
+    // 送信できたか、再送しても成功しない応答だった場合にtrueを返す
+    private boolean deliver(List<WebhookEvent> events, int attempts) throws InterruptedException {
+        val body = events.size() == 1 ? webhookManager.render(events.get(0)) : webhookManager.renderDigest(events);
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            if (attempt > 0)
+                Thread.sleep(backoff.delayMillis(attempt - 1));
+
+            long started = System.nanoTime();
+            try {
+                int code = webhookManager.send(body);
+                ImgSafeMetrics.observe(ImgSafeMetrics.STAGE_WEBHOOK, started);
+                if (code >= 200 && code < 300) {
+                    log.debug("Webhook sent successfully: {} files.", events.size());
+                    ImgSafeMetrics.WEBHOOK_EVENTS.inc("sent");
+                    consecutiveFailures = 0;
+                    return true;
+                }
+                if (!Backoff.isRetryable(code)) {
+                    log.error("Webhook was rejected with status {}. {} files are not notified.", code, events.size());
+                    ImgSafeMetrics.WEBHOOK_EVENTS.inc("rejected");
+                    return true;
+                }
+                log.warn("Webhook failed with status {}.", code);
+            } catch (IOException e) {
+                ImgSafeMetrics.observe(ImgSafeMetrics.STAGE_WEBHOOK, started);
+                log.warn("Webhook failed: {}", e.getMessage());
+            }
+        }
+
+        // 送信先が復旧するまでの間隔を、失敗が続くほど長くする
+        nextRetryAt = System.currentTimeMillis() + backoff.delayMillis(consecutiveFailures++);
+        return false;
+    }
+}
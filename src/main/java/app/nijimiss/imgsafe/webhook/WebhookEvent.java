@@ -0,0 +1,49 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.webhook;
+
+import app.nijimiss.imgsafe.api.misskey.File;
+import app.nijimiss.imgsafe.api.vision.SafeSearchAnnotation;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import org.apache.commons.lang3.StringUtils;
+
+// 送信を待つ間にファイルへ保存できるよう、テンプレートに埋め込む値だけを保持する
+@JsonIgnoreProperties(ignoreUnknown = true)
+public record WebhookEvent(String fileId,
+                           String fileName,
+                           String fileUrl,
+                           String thumbnailUrl,
+                           long fileSize,
+                           String md5,
+                           String folderId,
+                           String folderName,
+                           String authorUser,
+                           SafeSearchAnnotation result) {
+
+    public static WebhookEvent of(File file, String author, SafeSearchAnnotation result) {
+        return new WebhookEvent(file.id(),
+                StringUtils.defaultIfEmpty(file.name(), "unknown"),
+                StringUtils.defaultIfEmpty(file.url(), "unknown"),
+                StringUtils.defaultIfEmpty(file.thumbnailUrl(), "unknown"),
+                file.size(),
+                StringUtils.defaultIfEmpty(file.md5(), "unknown"),
+                StringUtils.defaultIfEmpty(file.folderId(), "none"),
+                file.folder() != null ? StringUtils.defaultIfEmpty(file.folder().name(), "none") : "none",
+                StringUtils.defaultIfEmpty(author, "unknown"),
+                result);
+    }
+}
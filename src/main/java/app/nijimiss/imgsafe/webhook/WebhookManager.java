@@ -21,54 +21,80 @@ import app.nijimiss.imgsafe.api.vision.SafeSearchAnnotation;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.*;
 import okhttp3.logging.HttpLoggingInterceptor;
-import org.apache.commons.lang3.ObjectUtils;
-import org.apache.commons.lang3.StringUtils;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Objects;
 
 @Slf4j
 public class WebhookManager {
+    private static final String DEFAULT_DIGEST_TEMPLATE = "{ \"content\": \"{count} images deemed sensitive were found.\\n{entries}\" }";
+    private static final String DEFAULT_DIGEST_ENTRY_TEMPLATE = "File ID:{fileId} Author: {authorUser} Result: {checkResult}";
+    private static final String DIGEST_ENTRY_SEPARATOR = "\\n"; // JSON文字列の中に埋め込むため、エスケープした改行を使う
+
     private final String webhookUrl;
-    private final String webhookTemplate;
+    private final WebhookTemplate webhookTemplate;
+    private WebhookTemplate digestTemplate = WebhookTemplate.compile(DEFAULT_DIGEST_TEMPLATE);
+    private WebhookTemplate digestEntryTemplate = WebhookTemplate.compile(DEFAULT_DIGEST_ENTRY_TEMPLATE);
 
     private final OkHttpClient okHttpClient;
 
     public WebhookManager(String webhookUrl, String webhookTemplate) {
+        this(webhookUrl, webhookTemplate, new OkHttpClient());
+    }
+
+    public WebhookManager(String webhookUrl, String webhookTemplate, OkHttpClient httpClient) {
         this.webhookUrl = webhookUrl;
-        this.webhookTemplate = webhookTemplate;
+        this.webhookTemplate = WebhookTemplate.compile(webhookTemplate);
 
-        okHttpClient = new OkHttpClient.Builder()
+        okHttpClient = httpClient.newBuilder()
                 .addInterceptor(new HttpLoggingInterceptor(log::debug))
                 .build();
     }
 
+    public void setDigestTemplate(String digestTemplate, String digestEntryTemplate) {
+        if (digestTemplate != null)
+            this.digestTemplate = WebhookTemplate.compile(digestTemplate);
+        if (digestEntryTemplate != null)
+            this.digestEntryTemplate = WebhookTemplate.compile(digestEntryTemplate);
+    }
+
+    public String getHost() {
+        return Objects.requireNonNull(HttpUrl.parse(webhookUrl)).host();
+    }
+
     public void sendWebhook(File file, String author, SafeSearchAnnotation result) throws IOException {
-        HttpUrl.Builder builder = Objects.requireNonNull(HttpUrl.parse(webhookUrl)).newBuilder();
+        int code = send(render(file, author, result));
+        if (code == 200 || code == 204) {
+            log.info("Webhook sent successfully");
+        }
+    }
 
-        var messageBody = webhookTemplate.replace("{fileId}", file.id());
-        messageBody = messageBody.replace("{fileUrl}", StringUtils.defaultIfEmpty(file.url(), "unknown"));
-        messageBody = messageBody.replace("{fileSize}", Long.toString(ObjectUtils.defaultIfNull(file.size(), 0L)));
-        messageBody = messageBody.replace("{authorUser}", StringUtils.defaultIfEmpty(author, "unknown"));
-        //messageBody = messageBody.replace("{authorName}", author.name());
-        messageBody = messageBody.replace("{checkResult}", "adult=" + result.adult() +
-                ", spoof=" + result.spoof() +
-                ", medical=" + result.medical() +
-                ", violence=" + result.violence() +
-                ", racy=" + result.racy());
+    // 応答のステータスコードを返す。再送するかどうかは呼び出し側で判断する
+    public int send(String body) throws IOException {
+        HttpUrl.Builder builder = Objects.requireNonNull(HttpUrl.parse(webhookUrl)).newBuilder();
 
         Request request = new Request.Builder()
                 .url(builder.build())
-                .post(RequestBody.create(messageBody,
-                        MediaType.get("application/json; charset=utf-8")))
+                .post(RequestBody.create(body, MediaType.get("application/json; charset=utf-8")))
                 .build();
 
         try (Response response = okHttpClient.newCall(request).execute()) {
             log.debug("Webhook requested!");
-
-            if (response.code() == 200) {
-                log.info("Webhook sent successfully");
-            }
+            return response.code();
         }
     }
+
+    String render(File file, String author, SafeSearchAnnotation result) {
+        return render(WebhookEvent.of(file, author, result));
+    }
+
+    public String render(WebhookEvent event) {
+        return webhookTemplate.render(event);
+    }
+
+    // 複数のファイルをまとめて1件の通知にする
+    public String renderDigest(List<WebhookEvent> events) {
+        return digestTemplate.renderDigest(events, digestEntryTemplate, DIGEST_ENTRY_SEPARATOR);
+    }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.webhook;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// 送信できなかった通知。送信先が復旧するまでの間に再起動しても失われないようファイルに保存する
+@Slf4j
+public class WebhookRetryQueue {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final File retryFile;
+    private final ArrayDeque<WebhookEvent> events = new ArrayDeque<>(); // 追加順
+    private boolean dirty;
+
+    public WebhookRetryQueue(File retryFile) {
+        this.retryFile = retryFile;
+        load();
+    }
+
+    public synchronized void addAll(Collection<WebhookEvent> added) {
+        if (added.isEmpty())
+            return;
+        events.addAll(added);
+        dirty = true;
+    }
+
+    public synchronized List<WebhookEvent> peek(int max) {
+        List<WebhookEvent> peeked = new ArrayList<>(Math.min(max, events.size()));
+        val iterator = events.iterator();
+        while (iterator.hasNext() && peeked.size() < max)
+            peeked.add(iterator.next());
+        return peeked;
+    }
+
+    // 送信できた分を先頭から取り除く
+    public synchronized void remove(int count) {
+        for (int i = 0; i < count && !events.isEmpty(); i++)
+            events.poll();
+        dirty = true;
+    }
+
+    public synchronized boolean isEmpty() {
+        return events.isEmpty();
+    }
+
+    public synchronized int size() {
+        return events.size();
+    }
+
+    public void startAutoSave(long intervalMillis) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+                .namingPattern("imgsafe-webhook-retry")
+                .daemon(true)
+                .build());
+        scheduler.scheduleWithFixedDelay(this::save, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void save() {
+        List<WebhookEvent> snapshot;
+        synchronized (this) {
+            if (!dirty)
+                return;
+            snapshot = new ArrayList<>(events);
+            dirty = false;
+        }
+
+        val tempFile = new File(retryFile.getPath() + ".tmp");
+        try {
+            MAPPER.writeValue(tempFile, snapshot);
+            Files.move(tempFile.toPath(), retryFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("Webhook retry queue saved: {} events.", snapshot.size());
+        } catch (IOException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            log.error("The webhook retry queue could not be saved successfully.", e);
+        }
+    }
+
+    private void load() {
+        if (!retryFile.exists() || retryFile.length() == 0)
+            return;
+
+        try {
+            List<WebhookEvent> loaded = MAPPER.readValue(retryFile, new TypeReference<>() {
+            });
+            synchronized (this) {
+                events.addAll(loaded);
+            }
+            log.info("Loaded {} webhook events waiting to be resent.", loaded.size());
+        } catch (IOException e) {
+            log.error("The webhook retry queue could not be loaded successfully.", e);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.webhook;
+
+import app.nijimiss.imgsafe.api.vision.LikelinessLevel;
+import lombok.val;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// テンプレートは起動時に一度だけ解析し、送信のたびに置換文字列を探さないようにする
+// 埋め込む値はJSON文字列の中に置かれる前提でエスケープする
+public class WebhookTemplate {
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+    private final Object[] segments; // String (そのまま出力する部分) または Placeholder
+
+    private WebhookTemplate(Object[] segments) {
+        this.segments = segments;
+    }
+
+    public static WebhookTemplate compile(String template) {
+        List<Object> segments = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int index = 0;
+        while (index < template.length()) {
+            int open = template.indexOf('{', index);
+            int close = open >= 0 ? template.indexOf('}', open + 1) : -1;
+            if (open < 0 || close < 0) {
+                literal.append(template, index, template.length());
+                break;
+            }
+
+            // 未知の名前やJSONの括弧はそのまま出力する
+            val placeholder = Placeholder.of(template.substring(open + 1, close));
+            if (placeholder == null) {
+                literal.append(template, index, open + 1);
+                index = open + 1;
+                continue;
+            }
+
+            literal.append(template, index, open);
+            if (literal.length() > 0) {
+                segments.add(literal.toString());
+                literal.setLength(0);
+            }
+            segments.add(placeholder);
+            index = close + 1;
+        }
+        if (literal.length() > 0)
+            segments.add(literal.toString());
+        return new WebhookTemplate(segments.toArray());
+    }
+
+    public String render(WebhookEvent event) {
+        val buffer = buffer();
+        renderTo(buffer, event, null);
+        return release(buffer);
+    }
+
+    // {entries}はentryTemplateで描画した各ファイルをseparatorで区切ったもの、{count}はファイル数に置き換える
+    public String renderDigest(List<WebhookEvent> events, WebhookTemplate entryTemplate, String separator) {
+        val entries = new StringBuilder(events.size() * 128);
+        for (WebhookEvent event : events) {
+            if (entries.length() > 0)
+                entries.append(separator);
+            entryTemplate.renderTo(entries, event, null);
+        }
+
+        val buffer = buffer();
+        renderTo(buffer, null, new Digest(events.size(), entries));
+        return release(buffer);
+    }
+
+    private void renderTo(StringBuilder output, WebhookEvent event, Digest digest) {
+        for (Object segment : segments) {
+            if (segment instanceof String literal) {
+                output.append(literal);
+            } else if (segment == Placeholder.COUNT) {
+                output.append(digest != null ? digest.count : 1);
+            } else if (segment == Placeholder.ENTRIES) {
+                if (digest != null)
+                    output.append(digest.entries); // 各ファイルの値はエスケープ済み
+            } else if (event != null) {
+                append(output, (Placeholder) segment, event);
+            }
+        }
+    }
+
+    // 中間の文字列を作らずに直接書き込む
+    private static void append(StringBuilder output, Placeholder placeholder, WebhookEvent event) {
+        val result = event.result();
+        switch (placeholder) {
+            case FILE_ID -> escape(output, event.fileId());
+            case FILE_NAME -> escape(output, event.fileName());
+            case FILE_URL -> escape(output, event.fileUrl());
+            case THUMBNAIL_URL -> escape(output, event.thumbnailUrl());
+            case FILE_SIZE -> output.append(event.fileSize());
+            case MD5 -> escape(output, event.md5());
+            case FOLDER_ID -> escape(output, event.folderId());
+            case FOLDER_NAME -> escape(output, event.folderName());
+            case AUTHOR_USER -> escape(output, event.authorUser());
+            case CHECK_RESULT -> {
+                if (result == null) {
+                    output.append("null");
+                    return;
+                }
+                output.append("adult=").append(result.adult())
+                        .append(", spoof=").append(result.spoof())
+                        .append(", medical=").append(result.medical())
+                        .append(", violence=").append(result.violence())
+                        .append(", racy=").append(result.racy());
+            }
+            case ADULT -> output.append(result != null ? result.adult() : LikelinessLevel.UNKNOWN);
+            case SPOOF -> output.append(result != null ? result.spoof() : LikelinessLevel.UNKNOWN);
+            case MEDICAL -> output.append(result != null ? result.medical() : LikelinessLevel.UNKNOWN);
+            case VIOLENCE -> output.append(result != null ? result.violence() : LikelinessLevel.UNKNOWN);
+            case RACY -> output.append(result != null ? result.racy() : LikelinessLevel.UNKNOWN);
+            default -> {
+            }
+        }
+    }
+
+    private static StringBuilder buffer() {
+        val buffer = BUFFER.get();
+        buffer.setLength(0);
+        return buffer;
+    }
+
+    private static String release(StringBuilder buffer) {
+        val rendered = buffer.toString();
+        if (buffer.capacity() > MAX_RETAINED_BUFFER)
+            BUFFER.set(new StringBuilder(1024)); // 大きな通知のために確保した領域を持ち続けない
+        return rendered;
+    }
+
+    static void escape(StringBuilder output, String value) {
+        if (value == null) {
+            output.append("null");
+            return;
+        }
+
+        // エスケープが必要な文字がなければまとめて書き込む
+        int first = 0;
+        while (first < value.length() && !needsEscape(value.charAt(first)))
+            first++;
+        output.append(value, 0, first);
+
+        for (int i = first; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> output.append("\\\"");
+                case '\\' -> output.append("\\\\");
+                case '\n' -> output.append("\\n");
+                case '\r' -> output.append("\\r");
+                case '\t' -> output.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        output.append("\\u00");
+                        output.append(Character.forDigit(c >> 4, 16));
+                        output.append(Character.forDigit(c & 0xf, 16));
+                    } else {
+                        output.append(c);
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean needsEscape(char c) {
+        return c < 0x20 || c == '"' || c == '\\';
+    }
+
+    private record Digest(int count, CharSequence entries) {
+    }
+
+    private enum Placeholder {
+        FILE_ID("fileId"),
+        FILE_NAME("fileName"),
+        FILE_URL("fileUrl"),
+        THUMBNAIL_URL("thumbnailUrl"),
+        FILE_SIZE("fileSize"),
+        MD5("md5"),
+        FOLDER_ID("folderId"),
+        FOLDER_NAME("folderName"),
+        AUTHOR_USER("authorUser"),
+        CHECK_RESULT("checkResult"),
+        ADULT("adult"),
+        SPOOF("spoof"),
+        MEDICAL("medical"),
+        VIOLENCE("violence"),
+        RACY("racy"),
+        COUNT("count"),
+        ENTRIES("entries");
+
+        private final String name;
+
+        Placeholder(String name) {
+            this.name = name;
+        }
+
+        private static Placeholder of(String name) {
+            for (Placeholder placeholder : values()) {
+                if (placeholder.name.equals(name))
+                    return placeholder;
+            }
+            return null;
+        }
+    }
+}
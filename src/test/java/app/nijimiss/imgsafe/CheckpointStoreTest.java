@@ -0,0 +1,110 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe;
+
+import app.nijimiss.imgsafe.api.vision.VisionQuota;
+import lombok.val;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import static org.junit.Assert.*;
+
+public class CheckpointStoreTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void flushReplacesTheFile() throws Exception {
+        val file = new File(temp.getRoot(), "ImgSafe.json");
+        val store = new CheckpointStore(file);
+        store.setLastCheckedFile("file1");
+        store.setLastChecked(1000);
+
+        // 書き出すまではファイルに反映しない
+        assertFalse(file.exists());
+        store.flush();
+        assertTrue(file.exists());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        Object before = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+
+        // 上書きではなく、書き終えた一時ファイルとの置き換えで更新する
+        store.setLastCheckedFile("file2");
+        store.flush();
+        Object after = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        if (before != null)
+            assertNotEquals(before, after);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        val loaded = new CheckpointStore(file);
+        assertEquals("file2", loaded.getLastCheckedFile());
+        assertEquals(1000, loaded.getLastChecked());
+
+        // 変更がなければ書き出さない
+        assertTrue(file.delete());
+        store.flush();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void leftoverTemporaryFileIsIgnored() throws Exception {
+        val file = new File(temp.getRoot(), "ImgSafe.json");
+        val store = new CheckpointStore(file);
+        store.setLastCheckedFile("file1");
+        store.setLastChecked(1000);
+        store.flush();
+
+        // 書き込みの途中で停止した場合、一時ファイルだけが途中まで書かれた状態で残る
+        val tempFile = new File(file.getPath() + ".tmp");
+        Files.write(tempFile.toPath(), "{\"lastCheckedFile\":\"file9\",\"lastChe".getBytes(StandardCharsets.UTF_8));
+
+        val loaded = new CheckpointStore(file);
+        assertEquals("file1", loaded.getLastCheckedFile());
+        assertEquals(1000, loaded.getLastChecked());
+
+        // 次の書き出しで一時ファイルは置き換えられる
+        loaded.setLastCheckedFile("file2");
+        loaded.flush();
+        assertFalse(tempFile.exists());
+        assertEquals("file2", new CheckpointStore(file).getLastCheckedFile());
+    }
+
+    @Test
+    public void autoFlushWritesQuotaUsage() throws Exception {
+        val file = new File(temp.getRoot(), "ImgSafe.json");
+        val store = new CheckpointStore(file);
+        val quota = new VisionQuota(100);
+        store.bindQuota(quota);
+        store.startAutoFlush(20);
+
+        // 利用量の変化だけでも書き出す
+        assertNotNull(quota.tryReserve(7));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!file.exists() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertTrue(file.exists());
+        val loaded = new CheckpointStore(file).getQuotaUsage();
+        assertEquals(quota.getUsage(), loaded);
+        assertEquals(7, loaded.used());
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe;
+
+import app.nijimiss.imgsafe.api.misskey.File;
+import app.nijimiss.imgsafe.api.misskey.MisskeyApiClient;
+import app.nijimiss.imgsafe.api.misskey.Properties;
+import lombok.val;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import org.jetbrains.annotations.NotNull;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+// テスト用のMisskey。show-fileと画像の配信、センシティブ指定の受け付けのみを再現する
+public class MockMisskeyServer implements Closeable {
+    private static final Pattern FILE_ID = Pattern.compile("\"fileId\":\"([^\"]+)\"");
+    private static final int IMAGE_EDGE = 500;
+
+    private final MockWebServer server = new MockWebServer();
+    private final byte[] image = createImage();
+    private final Map<String, AtomicInteger> imageFailures = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> imageRequests = new ConcurrentHashMap<>();
+    private final Map<String, String> thumbnails = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> thumbnailRequests = new ConcurrentHashMap<>();
+    private final AtomicInteger updates = new AtomicInteger();
+
+    public MockMisskeyServer() throws IOException {
+        server.setDispatcher(new Dispatcher() {
+            @NotNull
+            @Override
+            public MockResponse dispatch(@NotNull RecordedRequest request) {
+                return MockMisskeyServer.this.dispatch(request);
+            }
+        });
+        server.start();
+    }
+
+    public String getUrl() {
+        return "http://" + server.getHostName() + ":" + server.getPort();
+    }
+
+    public MisskeyApiClient newClient() {
+        return new MisskeyApiClient(getUrl(), "token", new OkHttpClient());
+    }
+
+    // 指定した回数だけ画像の取得を500で失敗させる
+    public void failImage(String fileId, int times) {
+        imageFailures.put(fileId, new AtomicInteger(times));
+    }
+
+    // サムネイルのURLを設定する。名前が.pngで終わる場合はPNG、それ以外はImageIOで読めないWebPとして配信する
+    public void setThumbnail(String fileId, String name) {
+        thumbnails.put(fileId, name);
+    }
+
+    public int getImageRequests(String fileId) {
+        val count = imageRequests.get(fileId);
+        return count != null ? count.get() : 0;
+    }
+
+    public int getThumbnailRequests(String name) {
+        val count = thumbnailRequests.get(name);
+        return count != null ? count.get() : 0;
+    }
+
+    public int getUpdates() {
+        return updates.get();
+    }
+
+    public File file(String fileId) {
+        return new File(fileId, OffsetDateTime.of(2023, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC), fileId + ".png", "image/png",
+                "md5-" + fileId, image.length, false, null, new Properties(IMAGE_EDGE, IMAGE_EDGE, 0),
+                getUrl() + "/images/" + fileId, null, null, null, null, null, "user");
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.shutdown();
+    }
+
+    private MockResponse dispatch(RecordedRequest request) {
+        val path = String.valueOf(request.getPath());
+        if (path.startsWith("/api/admin/drive/show-file")) {
+            val matcher = FILE_ID.matcher(request.getBody().readUtf8());
+            if (!matcher.find())
+                return new MockResponse().setResponseCode(400);
+            return new MockResponse().setHeader("Content-Type", "application/json").setBody(fileJson(matcher.group(1)));
+        }
+        if (path.startsWith("/api/drive/files/update")) {
+            updates.incrementAndGet();
+            return new MockResponse().setResponseCode(204);
+        }
+        if (path.startsWith("/thumbnails/")) {
+            val name = path.substring("/thumbnails/".length());
+            thumbnailRequests.computeIfAbsent(name, key -> new AtomicInteger()).incrementAndGet();
+            if (name.endsWith(".png"))
+                return new MockResponse().setHeader("Content-Type", "image/png").setBody(new Buffer().write(image));
+            return new MockResponse().setHeader("Content-Type", "image/webp").setBody("RIFF\0\0\0\0WEBPVP8 ");
+        }
+        if (path.startsWith("/images/")) {
+            val fileId = path.substring("/images/".length());
+            imageRequests.computeIfAbsent(fileId, key -> new AtomicInteger()).incrementAndGet();
+            val failures = imageFailures.get(fileId);
+            if (failures != null && failures.getAndDecrement() > 0)
+                return new MockResponse().setResponseCode(500);
+            return new MockResponse().setHeader("Content-Type", "image/png").setBody(new Buffer().write(image));
+        }
+        return new MockResponse().setResponseCode(404);
+    }
+
+    private String fileJson(String fileId) {
+        return "{\"id\":\"" + fileId + "\",\"createdAt\":\"2023-01-01T00:00:00.000Z\",\"name\":\"" + fileId + ".png\","
+                + "\"type\":\"image/png\",\"md5\":\"md5-" + fileId + "\",\"size\":" + image.length + ",\"isSensitive\":false,"
+                + "\"properties\":{\"width\":" + IMAGE_EDGE + ",\"height\":" + IMAGE_EDGE + "},"
+                + "\"url\":\"" + getUrl() + "/images/" + fileId + "\","
+                + (thumbnails.containsKey(fileId) ? "\"thumbnailUrl\":\"" + getUrl() + "/thumbnails/" + thumbnails.get(fileId) + "\"," : "")
+                + "\"userId\":\"user\"}";
+    }
+
+    private static byte[] createImage() {
+        val image = new BufferedImage(IMAGE_EDGE, IMAGE_EDGE, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < IMAGE_EDGE; y++) {
+            for (int x = 0; x < IMAGE_EDGE; x++)
+                image.setRGB(x, y, (x * 7 + y * 13) & 0xFFFFFF);
+        }
+        try {
+            val output = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", output);
+            return output.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
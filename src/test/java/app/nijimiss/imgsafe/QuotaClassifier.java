@@ -0,0 +1,75 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe;
+
+import app.nijimiss.imgsafe.api.vision.ImageSource;
+import app.nijimiss.imgsafe.api.vision.LikelinessLevel;
+import app.nijimiss.imgsafe.api.vision.QuotaExceededException;
+import app.nijimiss.imgsafe.api.vision.SafeSearchAnnotation;
+import app.nijimiss.imgsafe.api.vision.VisionQuota;
+import app.nijimiss.imgsafe.classifier.Classification;
+import app.nijimiss.imgsafe.classifier.ImageClassifier;
+import app.nijimiss.imgsafe.store.VerdictSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Vision APIの代わりに、画像1枚ごとに上限から予約して安全と判定する分類器
+public class QuotaClassifier implements ImageClassifier {
+    public static final SafeSearchAnnotation SAFE = new SafeSearchAnnotation(LikelinessLevel.VERY_UNLIKELY,
+            LikelinessLevel.VERY_UNLIKELY, LikelinessLevel.VERY_UNLIKELY, LikelinessLevel.VERY_UNLIKELY,
+            LikelinessLevel.VERY_UNLIKELY);
+
+    private final VisionQuota quota;
+    private final AtomicInteger classified = new AtomicInteger();
+
+    public QuotaClassifier(VisionQuota quota) {
+        this.quota = quota;
+    }
+
+    public int getClassified() {
+        return classified.get();
+    }
+
+    @Override
+    public String getName() {
+        return "Fake Vision";
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return 16;
+    }
+
+    @Override
+    public int getRemainingQuota() {
+        return quota.getRemaining();
+    }
+
+    @Override
+    public List<Classification> classify(List<ImageSource> images) {
+        if (quota.tryReserve(images.size()) == null)
+            throw new QuotaExceededException(quota.getNextReset());
+
+        classified.addAndGet(images.size());
+        List<Classification> results = new ArrayList<>(images.size());
+        for (int i = 0; i < images.size(); i++)
+            results.add(Classification.success(SAFE, VerdictSource.VISION));
+        return results;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.api.misskey;
+
+import lombok.val;
+import okhttp3.OkHttpClient;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MisskeyStreamingClientTest {
+    private static final int FILES = 10;
+    private static final int QUEUE_CAPACITY = 3;
+
+    private MockWebServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void slowListenerDoesNotBlockReading() throws Exception {
+        // 接続を受け付けたら、1件のファイルを含むノートをまとめて送る
+        server.enqueue(new MockResponse().withWebSocketUpgrade(new WebSocketListener() {
+            @Override
+            public void onMessage(@NotNull WebSocket webSocket, @NotNull String text) {
+                for (int i = 0; i < FILES; i++)
+                    webSocket.send(note("file" + i));
+            }
+
+            @Override
+            public void onClosing(@NotNull WebSocket webSocket, int code, @NotNull String reason) {
+                webSocket.close(1000, null);
+            }
+        }));
+
+        val release = new CountDownLatch(1);
+        // 受信待ちのキューに入りきらないファイルは、最初のファイルの処理中でも破棄される
+        val minimumDropped = FILES - 1 - QUEUE_CAPACITY;
+        val dropping = new CountDownLatch(minimumDropped);
+        List<String> received = new CopyOnWriteArrayList<>();
+        List<String> dropped = new CopyOnWriteArrayList<>();
+
+        val misskey = new MisskeyApiClient("http://" + server.getHostName() + ":" + server.getPort(), "token", new OkHttpClient());
+        val client = misskey.createStreamingClient("localTimeline", QUEUE_CAPACITY, new MisskeyStreamingClient.Listener() {
+            @Override
+            public void onFile(File file) {
+                received.add(file.id());
+                try {
+                    // パイプラインが詰まっている状態を再現する
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onDropped(File file) {
+                dropped.add(file.id());
+                dropping.countDown();
+            }
+
+            @Override
+            public void onConnected(boolean reconnected) {
+            }
+        });
+        client.connect();
+
+        // 最初のファイルの処理が終わらなくても、残りのメッセージは受信される
+        assertTrue(dropping.await(10, TimeUnit.SECONDS));
+        assertEquals(1, received.size());
+        release.countDown();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (received.size() + dropped.size() < FILES && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(FILES, received.size() + dropped.size());
+        assertTrue(received.size() <= QUEUE_CAPACITY + 1);
+        assertTrue(dropped.size() >= minimumDropped);
+        assertEquals("file0", received.get(0));
+        assertEquals(0, client.getQueueSize());
+        client.close();
+    }
+
+    private static String note(String fileId) {
+        return "{\"type\":\"channel\",\"body\":{\"id\":\"imgsafe\",\"type\":\"note\",\"body\":{\"files\":[{\"id\":\"" + fileId + "\"}]}}}";
+    }
+}
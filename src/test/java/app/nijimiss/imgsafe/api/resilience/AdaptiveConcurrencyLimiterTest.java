@@ -0,0 +1,55 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.api.resilience;
+
+import lombok.val;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveConcurrencyLimiterTest {
+    @Test
+    public void concurrentFailuresHalveOnce() throws Exception {
+        val limiter = new AdaptiveConcurrencyLimiter(1, 16);
+        long[] started = new long[8];
+        for (int i = 0; i < started.length; i++)
+            started[i] = limiter.acquire();
+        assertEquals(8, limiter.getInFlight());
+
+        // 同時に送っていた要求がまとめて失敗しても、半分にするのは1回だけ
+        for (long startedAt : started)
+            limiter.release(startedAt, true);
+        assertEquals(8, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+
+        // 下げた後に送った要求の失敗ではさらに下げる
+        limiter.release(limiter.acquire(), true);
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void limitStaysWithinBounds() throws Exception {
+        val limiter = new AdaptiveConcurrencyLimiter(2, 4);
+        for (int i = 0; i < 5; i++)
+            limiter.release(limiter.acquire(), true);
+        assertEquals(2, limiter.getLimit());
+
+        for (int i = 0; i < 100; i++)
+            limiter.release(limiter.acquire(), false);
+        assertEquals(4, limiter.getLimit());
+    }
+}
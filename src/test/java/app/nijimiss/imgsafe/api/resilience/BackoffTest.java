@@ -0,0 +1,48 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.api.resilience;
+
+import lombok.val;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BackoffTest {
+    @Test
+    public void delayDoublesUpToTheMaximum() {
+        val backoff = new Backoff(100, 1000);
+        for (int i = 0; i < 100; i++) {
+            assertInRange(backoff.delayMillis(0), 50, 100);
+            assertInRange(backoff.delayMillis(2), 200, 400);
+            assertInRange(backoff.delayMillis(10), 500, 1000);
+            // 桁あふれする回数でも上限で打ち切る
+            assertInRange(backoff.delayMillis(Integer.MAX_VALUE), 500, 1000);
+        }
+    }
+
+    @Test
+    public void onlyTransientStatusesAreRetryable() {
+        for (int code : new int[]{408, 429, 500, 502, 503})
+            assertTrue(String.valueOf(code), Backoff.isRetryable(code));
+        for (int code : new int[]{200, 204, 400, 401, 403, 404, 410})
+            assertFalse(String.valueOf(code), Backoff.isRetryable(code));
+    }
+
+    private static void assertInRange(long value, long min, long max) {
+        assertTrue(value + " is not between " + min + " and " + max, value >= min && value <= max);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.api.resilience;
+
+import app.nijimiss.imgsafe.ImgSafeConfig;
+import lombok.val;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ResilienceInterceptorTest {
+    private MockWebServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void serverErrorsOpenTheCircuit() throws Exception {
+        val config = new ImgSafeConfig.Endpoint();
+        config.setFailureThreshold(3);
+        config.setOpenSeconds(60);
+        val client = newClient(config);
+        for (int i = 0; i < 3; i++)
+            server.enqueue(new MockResponse().setResponseCode(503));
+
+        for (int i = 0; i < 3; i++)
+            assertEquals(503, call(client, "/api/drive/files/update"));
+
+        // 遮断中は送信せずに失敗する
+        try {
+            call(client, "/api/drive/files/update");
+            fail("The circuit was not opened.");
+        } catch (CircuitOpenException e) {
+            assertTrue(e.getRetryAfterMillis() > 0);
+        }
+        assertEquals(3, server.getRequestCount());
+
+        // 遮断はエンドポイントごとに行う
+        server.enqueue(new MockResponse().setResponseCode(200));
+        assertEquals(200, call(client, "/api/admin/drive/files"));
+    }
+
+    @Test
+    public void retryAfterPausesTheEndpoint() throws Exception {
+        val config = new ImgSafeConfig.Endpoint();
+        config.setRatePerSecond(1000);
+        val client = newClient(config);
+        server.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "1"));
+        server.enqueue(new MockResponse().setResponseCode(200));
+
+        assertEquals(429, call(client, "/api/drive/files/update"));
+        long started = System.nanoTime();
+        assertEquals(200, call(client, "/api/drive/files/update"));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) >= 900);
+    }
+
+    @Test
+    public void rateLimitedResponsesDoNotOpenTheCircuit() throws Exception {
+        val config = new ImgSafeConfig.Endpoint();
+        config.setFailureThreshold(1);
+        val client = newClient(config);
+        server.enqueue(new MockResponse().setResponseCode(429));
+        server.enqueue(new MockResponse().setResponseCode(200));
+
+        assertEquals(429, call(client, "/api/drive/files/update"));
+        assertEquals(200, call(client, "/api/drive/files/update"));
+    }
+
+    private static OkHttpClient newClient(ImgSafeConfig.Endpoint config) {
+        return new OkHttpClient.Builder().addInterceptor(new ResilienceInterceptor("test", config)).build();
+    }
+
+    private int call(OkHttpClient client, String path) throws IOException {
+        try (val response = client.newCall(new Request.Builder().url(server.url(path)).build()).execute()) {
+            return response.code();
+        }
+    }
+}
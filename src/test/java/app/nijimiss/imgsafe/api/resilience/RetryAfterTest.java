@@ -0,0 +1,52 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.api.resilience;
+
+import org.junit.Test;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+
+import static org.junit.Assert.*;
+
+public class RetryAfterTest {
+    @Test
+    public void parsesSeconds() {
+        assertEquals(120000, RetryAfter.parseMillis("120"));
+        assertEquals(5000, RetryAfter.parseMillis(" 5 "));
+        assertEquals(0, RetryAfter.parseMillis("-3"));
+    }
+
+    @Test
+    public void parsesHttpDate() {
+        String value = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(60));
+        long millis = RetryAfter.parseMillis(value);
+        // HTTP日付は秒単位のため、切り捨て分と実行時間を許容する
+        assertTrue(String.valueOf(millis), millis > 55000 && millis <= 60000);
+
+        String past = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).minusSeconds(60));
+        assertEquals(0, RetryAfter.parseMillis(past));
+    }
+
+    @Test
+    public void missingOrInvalidValuesAreZero() {
+        assertEquals(0, RetryAfter.parseMillis(null));
+        assertEquals(0, RetryAfter.parseMillis(""));
+        assertEquals(0, RetryAfter.parseMillis("soon"));
+    }
+}
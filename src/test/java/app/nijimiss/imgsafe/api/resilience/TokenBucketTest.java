@@ -0,0 +1,71 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.api.resilience;
+
+import lombok.val;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+    @Test
+    public void burstIsAvailableImmediately() throws Exception {
+        val bucket = new TokenBucket(1, 5);
+        long started = System.nanoTime();
+        for (int i = 0; i < 5; i++)
+            bucket.acquire();
+        assertTrue(elapsedMillis(started) < 500);
+    }
+
+    @Test
+    public void acquireWaitsForRefill() throws Exception {
+        val bucket = new TokenBucket(20, 1);
+        bucket.acquire();
+        long started = System.nanoTime();
+        // 1秒に20トークンなので、次のトークンまで約50ms
+        bucket.acquire();
+        bucket.acquire();
+        assertTrue(elapsedMillis(started) >= 90);
+    }
+
+    @Test
+    public void pauseStopsRefill() throws Exception {
+        val bucket = new TokenBucket(1000, 10);
+        bucket.pause(200);
+        long started = System.nanoTime();
+        bucket.acquire();
+        assertTrue(elapsedMillis(started) >= 190);
+
+        // 短い待機の指定で、既に指定された長い待機を縮めない
+        bucket.pause(300);
+        bucket.pause(10);
+        started = System.nanoTime();
+        bucket.acquire();
+        assertTrue(elapsedMillis(started) >= 290);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rateMustBePositive() {
+        new TokenBucket(0, 1);
+    }
+
+    private static long elapsedMillis(long started) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    }
+}
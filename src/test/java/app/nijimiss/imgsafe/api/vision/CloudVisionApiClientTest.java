@@ -0,0 +1,89 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.api.vision;
+
+import app.nijimiss.imgsafe.classifier.VisionClassifier;
+import lombok.val;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class CloudVisionApiClientTest {
+    private MockWebServer server;
+    private CloudVisionApiClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        client = new CloudVisionApiClient("token", new VisionQuota(100), new OkHttpClient(), server.url("/v1/images:annotate").toString());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void parsesResponses() throws Exception {
+        server.enqueue(new MockResponse().setHeader("Content-Type", "application/json").setBody("{\"responses\":["
+                + "{\"safeSearchAnnotation\":{\"adult\":\"VERY_LIKELY\",\"spoof\":\"UNLIKELY\",\"medical\":\"UNLIKELY\",\"violence\":\"UNLIKELY\",\"racy\":\"POSSIBLE\"}},"
+                + "{\"error\":{\"code\":3,\"message\":\"Bad image data.\"}}]}"));
+
+        val responses = client.safeSearch(images(2)).responses();
+        assertEquals(2, responses.size());
+        assertEquals(LikelinessLevel.VERY_LIKELY, responses.get(0).safeSearchAnnotation().adult());
+        assertEquals("Bad image data.", responses.get(1).error().message());
+        assertEquals(2, client.getQuota().getUsed());
+    }
+
+    @Test
+    public void malformedResponseIsAFailure() {
+        // 途中で切れたレスポンスや壊れたレスポンスを、空の結果として扱わない
+        for (String body : new String[]{"<html>Bad Gateway</html>", "{\"responses\":[{\"safeSearchAnnotation\":{\"adult\":"}) {
+            server.enqueue(new MockResponse().setHeader("Content-Type", "application/json").setBody(body));
+            assertThrows(IOException.class, () -> client.safeSearch(images(3)));
+        }
+        // 200が返ったリクエストは課金されるため、予約は返却しない
+        assertEquals(6, client.getQuota().getUsed());
+
+        server.enqueue(new MockResponse().setBody("garbage"));
+        assertThrows(IOException.class, () -> new VisionClassifier(client).classify(images(2)));
+    }
+
+    @Test
+    public void errorStatusIsRefunded() {
+        server.enqueue(new MockResponse().setResponseCode(500));
+        assertThrows(IOException.class, () -> client.safeSearch(images(4)));
+        assertEquals(0, client.getQuota().getUsed());
+    }
+
+    private static List<ImageSource> images(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> ImageSource.ofBytes(new byte[]{(byte) i, 1, 2, 3}))
+                .toList();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.api.vision;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.val;
+import okio.Buffer;
+import okio.ForwardingSink;
+import okio.Okio;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class SafeSearchRequestBodyTest {
+    @Test
+    public void writesEncodedImagesAndKeepsSinkOpen() throws Exception {
+        // パディングの有無と、バッファより大きい画像を含める
+        val random = new Random(1);
+        List<byte[]> images = new ArrayList<>();
+        for (int size : new int[]{0, 1, 2, 3, 100_000}) {
+            byte[] image = new byte[size];
+            random.nextBytes(image);
+            images.add(image);
+        }
+
+        val body = new SafeSearchRequestBody(images.stream().map(ImageSource::ofBytes).toList());
+        val written = new Buffer();
+        val closed = new AtomicBoolean();
+        val sink = Okio.buffer(new ForwardingSink(written) {
+            @Override
+            public void close() throws IOException {
+                closed.set(true);
+                super.close();
+            }
+        });
+        body.writeTo(sink);
+        sink.flush();
+        // 画像ごとにエンコーダーを閉じても、書き込み先は閉じられない
+        assertFalse(closed.get());
+        assertEquals(body.contentLength(), written.size());
+
+        val json = new ObjectMapper().readTree(written.readUtf8());
+        val requests = json.get("requests");
+        assertEquals(images.size(), requests.size());
+        for (int i = 0; i < images.size(); i++) {
+            val request = requests.get(i);
+            assertArrayEquals(images.get(i), Base64.getDecoder().decode(request.get("image").get("content").asText()));
+            assertEquals("SAFE_SEARCH_DETECTION", request.get("features").get(0).get("type").asText());
+        }
+    }
+}
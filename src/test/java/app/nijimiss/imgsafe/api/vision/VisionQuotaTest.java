@@ -0,0 +1,142 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.api.vision;
+
+import lombok.val;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class VisionQuotaTest {
+    private static final int THREADS = 16;
+    private static final int LIMIT = 1000;
+
+    @Test
+    public void concurrentReservationsNeverExceedLimit() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            val quota = new VisionQuota(LIMIT);
+            val granted = new AtomicInteger();
+            val exceeded = new AtomicBoolean();
+            val held = new ConcurrentLinkedQueue<VisionQuota.Reservation>();
+
+            runConcurrently(() -> {
+                val random = ThreadLocalRandom.current();
+                for (int i = 0; i < 2000; i++) {
+                    int units = 1 + random.nextInt(16);
+                    val reservation = quota.tryReserve(units);
+                    if (quota.getUsed() > LIMIT)
+                        exceeded.set(true);
+                    if (reservation == null)
+                        continue;
+
+                    // 一部は返却し、残りは最後にまとめて返却する
+                    if (random.nextInt(4) == 0) {
+                        quota.refund(reservation);
+                    } else {
+                        granted.addAndGet(units);
+                        held.add(reservation);
+                    }
+                }
+            });
+
+            assertFalse("The limit was exceeded during the run.", exceeded.get());
+            assertEquals(granted.get(), quota.getUsed());
+            assertTrue(quota.getUsed() <= LIMIT);
+
+            // 返却も同時に行い、利用量が正確に0まで戻ることを確認する
+            List<VisionQuota.Reservation> reservations = new ArrayList<>(held);
+            val next = new AtomicInteger();
+            runConcurrently(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < reservations.size())
+                    quota.refund(reservations.get(index));
+            });
+            assertEquals(0, quota.getUsed());
+            assertEquals(LIMIT, quota.getRemaining());
+        }
+    }
+
+    @Test
+    public void refundRestoresExactCount() {
+        val quota = new VisionQuota(10);
+        val first = quota.tryReserve(4);
+        val second = quota.tryReserve(6);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(quota.tryReserve(1));
+
+        quota.refund(first);
+        assertEquals(6, quota.getUsed());
+        assertNull(quota.tryReserve(5));
+        assertNotNull(quota.tryReserve(4));
+        assertEquals(10, quota.getUsed());
+    }
+
+    @Test
+    public void usageResetsWhenMonthChanges() {
+        val zone = ZoneId.of("Asia/Tokyo");
+        val clock = Clock.fixed(ZonedDateTime.of(2023, 1, 1, 0, 0, 0, 0, zone).toInstant(), zone);
+        val quota = new VisionQuota(10, new VisionQuota.Usage(YearMonth.of(2022, 12), 10), clock);
+        assertEquals(0, quota.getUsed());
+        assertNotNull(quota.tryReserve(10));
+        assertNull(quota.tryReserve(1));
+
+        // 前月の予約は返却しても今月の利用量を減らさない
+        quota.refund(new VisionQuota.Reservation(YearMonth.of(2022, 12), 5));
+        assertEquals(10, quota.getUsed());
+    }
+
+    @Test
+    public void zeroLimitIsUnlimited() {
+        val quota = new VisionQuota(0);
+        assertNotNull(quota.tryReserve(100000));
+        assertEquals(Integer.MAX_VALUE, quota.getRemaining());
+    }
+
+    private static void runConcurrently(Runnable task) throws InterruptedException {
+        val pool = Executors.newFixedThreadPool(THREADS);
+        val start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            futures.add(pool.submit(() -> {
+                start.await();
+                task.run();
+                return null;
+            }));
+        }
+        start.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+        for (val future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new AssertionError(e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.cache;
+
+import app.nijimiss.imgsafe.api.vision.LikelinessLevel;
+import app.nijimiss.imgsafe.api.vision.SafeSearchAnnotation;
+import lombok.val;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MultiIndexHashTest {
+    @Test
+    public void findsSameDistanceAsLinearScan() {
+        for (int maxDistance : new int[]{0, 1, 4, 8, 16}) {
+            val random = new Random(maxDistance);
+            val index = new MultiIndexHash<Integer>(maxDistance, 16); // 拡張も確認するため小さく始める
+            long[] hashes = new long[20000];
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = random.nextLong();
+                index.add(hashes[i], i);
+            }
+
+            for (int query = 0; query < 2000; query++) {
+                long hash = hashes[random.nextInt(hashes.length)];
+                // 登録済みのハッシュから0〜maxDistance+2bit反転させた近傍と、無関係なハッシュを混ぜる
+                if (query % 4 == 3) {
+                    hash = random.nextLong();
+                } else {
+                    for (int flips = random.nextInt(maxDistance + 3); flips > 0; flips--)
+                        hash ^= 1L << random.nextInt(64);
+                }
+
+                int expected = nearestDistance(hashes, hash, maxDistance);
+                val found = index.findNearest(hash);
+                if (expected > maxDistance) {
+                    assertNull(found);
+                } else {
+                    assertNotNull("distance " + maxDistance + ", query " + query, found);
+                    assertEquals(expected, PerceptualHash.distance(hash, hashes[found]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sameHashIsOverwritten() {
+        val index = new MultiIndexHash<String>(4, 16);
+        index.add(0x0123456789ABCDEFL, "old");
+        index.add(0x0123456789ABCDEFL, "new");
+        assertEquals(1, index.size());
+        assertEquals("new", index.findNearest(0x0123456789ABCDEFL));
+        assertEquals("new", index.findNearest(0x0123456789ABCDEFL ^ 0b1011));
+        assertNull(index.findNearest(0x0123456789ABCDEFL ^ 0b11111));
+    }
+
+    @Test
+    public void lowDetailHashesAreNeverMatched() {
+        val index = new NearDuplicateIndex(4, 100);
+        val safe = new SafeSearchAnnotation(LikelinessLevel.VERY_UNLIKELY, LikelinessLevel.VERY_UNLIKELY,
+                LikelinessLevel.VERY_UNLIKELY, LikelinessLevel.VERY_UNLIKELY, LikelinessLevel.VERY_UNLIKELY);
+
+        // 単色の画像のハッシュは内容に関わらずほぼ0になるため、登録も照合もしない
+        index.add(0L, safe);
+        index.add(-1L, safe);
+        assertEquals(0, index.size());
+        assertNull(index.find(0b101L));
+        assertEquals(1, index.getIgnored());
+
+        index.add(0x0F0F_0F0F_0F0F_0F0FL, safe);
+        assertSame(safe, index.find(0x0F0F_0F0F_0F0F_0F0FL ^ 0b11));
+        assertEquals(1, index.getHits());
+    }
+
+    @Test
+    public void oldGenerationsAreDropped() {
+        val index = new NearDuplicateIndex(0, 4);
+        val safe = new SafeSearchAnnotation(LikelinessLevel.VERY_UNLIKELY, LikelinessLevel.VERY_UNLIKELY,
+                LikelinessLevel.VERY_UNLIKELY, LikelinessLevel.VERY_UNLIKELY, LikelinessLevel.VERY_UNLIKELY);
+        long[] hashes = {0x00FF_00FF_00FF_00FFL, 0x0F0F_0F0F_0F0F_0F0FL, 0x3333_3333_3333_3333L,
+                0x5555_5555_5555_5555L, 0x6666_6666_6666_6666L, 0x7777_0000_7777_0000L};
+        for (long hash : hashes)
+            index.add(hash, safe);
+
+        assertEquals(4, index.size());
+        assertNull(index.find(hashes[0]));
+        assertNotNull(index.find(hashes[5]));
+    }
+
+    private static int nearestDistance(long[] hashes, long query, int maxDistance) {
+        int best = maxDistance + 1;
+        for (long hash : hashes)
+            best = Math.min(best, PerceptualHash.distance(query, hash));
+        return best;
+    }
+}
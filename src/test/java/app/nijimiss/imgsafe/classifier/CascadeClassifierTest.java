@@ -0,0 +1,125 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.classifier;
+
+import app.nijimiss.imgsafe.QuotaClassifier;
+import app.nijimiss.imgsafe.api.vision.ImageSource;
+import app.nijimiss.imgsafe.api.vision.LikelinessLevel;
+import app.nijimiss.imgsafe.api.vision.SafeSearchAnnotation;
+import app.nijimiss.imgsafe.api.vision.VisionQuota;
+import app.nijimiss.imgsafe.store.VerdictSource;
+import lombok.val;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CascadeClassifierTest {
+    private static final SafeSearchAnnotation LOCAL = new SafeSearchAnnotation(LikelinessLevel.POSSIBLE,
+            LikelinessLevel.UNKNOWN, LikelinessLevel.UNKNOWN, LikelinessLevel.UNKNOWN, LikelinessLevel.UNKNOWN);
+
+    // 1バイト目を手元のモデルのスコア (百分率) とする
+    private static final ImageClassifier SCORING = new ImageClassifier() {
+        @Override
+        public String getName() {
+            return "Scoring";
+        }
+
+        @Override
+        public int getMaxBatchSize() {
+            return 16;
+        }
+
+        @Override
+        public List<Classification> classify(List<ImageSource> images) throws IOException {
+            List<Classification> results = new ArrayList<>();
+            for (val image : images) {
+                try (val input = image.openStream()) {
+                    results.add(Classification.success(LOCAL, VerdictSource.LOCAL, input.read() / 100.0));
+                }
+            }
+            return results;
+        }
+    };
+
+    @Test
+    public void uncertainImagesGoToRemote() throws Exception {
+        val remote = new QuotaClassifier(new VisionQuota(0));
+        val cascade = new CascadeClassifier(SCORING, remote, 0.2, 0.8);
+
+        val results = cascade.classify(images(10, 50, 90));
+        assertEquals(VerdictSource.LOCAL, results.get(0).source());
+        assertEquals(VerdictSource.VISION, results.get(1).source());
+        assertEquals(VerdictSource.LOCAL, results.get(2).source());
+        assertEquals(1, remote.getClassified());
+        assertEquals(2, cascade.getStats().localDecided());
+        assertEquals(1, cascade.getStats().remoteDecided());
+    }
+
+    @Test
+    public void remoteErrorsFallBackToLocalVerdicts() throws Exception {
+        val cascade = new CascadeClassifier(SCORING, new ImageClassifier() {
+            @Override
+            public String getName() {
+                return "Failing";
+            }
+
+            @Override
+            public int getMaxBatchSize() {
+                return 16;
+            }
+
+            @Override
+            public List<Classification> classify(List<ImageSource> images) throws IOException {
+                throw new IOException("Unexpected code 503");
+            }
+        }, 0.2, 0.8);
+
+        val results = cascade.classify(images(10, 50, 60));
+        assertEquals(3, results.size());
+        for (val result : results) {
+            assertTrue(result.isSuccess());
+            assertEquals(VerdictSource.LOCAL, result.source());
+        }
+        val stats = cascade.getStats();
+        assertEquals(2, stats.fallbacks());
+        assertEquals(1, stats.remoteErrors());
+        assertEquals(0, stats.remoteDecided());
+    }
+
+    @Test
+    public void exhaustedQuotaFallsBackWithoutError() throws Exception {
+        val remote = new QuotaClassifier(new VisionQuota(1));
+        val cascade = new CascadeClassifier(SCORING, remote, 0.2, 0.8);
+
+        cascade.classify(images(50));
+        val results = cascade.classify(images(50));
+        assertEquals(VerdictSource.LOCAL, results.get(0).source());
+        assertEquals(1, cascade.getStats().fallbacks());
+        assertEquals(0, cascade.getStats().remoteErrors());
+    }
+
+    private static List<ImageSource> images(int... scores) {
+        List<ImageSource> images = new ArrayList<>();
+        for (int score : scores)
+            images.add(ImageSource.ofBytes(new byte[]{(byte) score}));
+        return images;
+    }
+}
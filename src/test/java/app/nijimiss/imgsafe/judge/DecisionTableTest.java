@@ -0,0 +1,78 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.judge;
+
+import app.nijimiss.imgsafe.api.vision.JudgingItem;
+import app.nijimiss.imgsafe.api.vision.LikelinessLevel;
+import app.nijimiss.imgsafe.api.vision.SafeSearchAnnotation;
+import lombok.val;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+public class DecisionTableTest {
+    private static final LikelinessLevel[] LEVELS = LikelinessLevel.values();
+
+    @Test
+    public void tableMatchesDirectEvaluationForAllCombinations() {
+        assertSameForAll("adult >= LIKELY || (racy >= VERY_LIKELY && violence >= POSSIBLE) || (medical >= LIKELY && !(spoof >= LIKELY))",
+                a -> a.adult().getLevel() >= 15
+                        || (a.racy().getLevel() >= 20 && a.violence().getLevel() >= 10)
+                        || (a.medical().getLevel() >= 15 && !(a.spoof().getLevel() >= 15)));
+        assertSameForAll("spoof == UNKNOWN || racy != VERY_UNLIKELY && medical < 10",
+                a -> a.spoof() == LikelinessLevel.UNKNOWN
+                        || (a.racy() != LikelinessLevel.VERY_UNLIKELY && a.medical().getLevel() < 10));
+        assertSameForAll("violence > 5 && violence <= 15", a -> a.violence().getLevel() > 5 && a.violence().getLevel() <= 15);
+        assertSameForAll("true", a -> true);
+        assertSameForAll("false", a -> false);
+    }
+
+    @Test
+    public void legacyConditionMatchesDirectEvaluation() {
+        val table = DecisionTable.compile(JudgingRules.anyAtLeast(List.of(JudgingItem.ADULT, JudgingItem.VIOLENCE), 10));
+        forAllAnnotations(a -> assertEquals(a.toString(),
+                a.adult().getLevel() >= 10 || a.violence().getLevel() >= 10, table.matches(a)));
+    }
+
+    @Test
+    public void missingLevelsAreTreatedAsUnknown() {
+        val table = DecisionTable.compile(RuleParser.parse("adult == UNKNOWN && racy >= LIKELY"));
+        assertTrue(table.matches(new SafeSearchAnnotation(null, LikelinessLevel.VERY_UNLIKELY, LikelinessLevel.VERY_UNLIKELY,
+                LikelinessLevel.VERY_UNLIKELY, LikelinessLevel.LIKELY)));
+        assertFalse(table.matches(new SafeSearchAnnotation(null, LikelinessLevel.VERY_UNLIKELY, LikelinessLevel.VERY_UNLIKELY,
+                LikelinessLevel.VERY_UNLIKELY, null)));
+    }
+
+    private static void assertSameForAll(String rule, Predicate<SafeSearchAnnotation> expected) {
+        val table = DecisionTable.compile(RuleParser.parse(rule));
+        forAllAnnotations(a -> assertEquals(rule + " for " + a, expected.test(a), table.matches(a)));
+    }
+
+    // 5項目 x 6段階の全ての組み合わせ (7776通り) を列挙する
+    private static void forAllAnnotations(Consumer<SafeSearchAnnotation> action) {
+        for (val adult : LEVELS)
+            for (val spoof : LEVELS)
+                for (val medical : LEVELS)
+                    for (val violence : LEVELS)
+                        for (val racy : LEVELS)
+                            action.accept(new SafeSearchAnnotation(adult, spoof, medical, violence, racy));
+    }
+}
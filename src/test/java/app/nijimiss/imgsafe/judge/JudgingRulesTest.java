@@ -0,0 +1,78 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.judge;
+
+import app.nijimiss.imgsafe.ImgSafeConfig;
+import app.nijimiss.imgsafe.api.misskey.File;
+import app.nijimiss.imgsafe.api.vision.LikelinessLevel;
+import app.nijimiss.imgsafe.api.vision.SafeSearchAnnotation;
+import lombok.val;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JudgingRulesTest {
+    private static final SafeSearchAnnotation POSSIBLY_ADULT = new SafeSearchAnnotation(LikelinessLevel.POSSIBLE,
+            LikelinessLevel.VERY_UNLIKELY, LikelinessLevel.VERY_UNLIKELY, LikelinessLevel.VERY_UNLIKELY, LikelinessLevel.VERY_UNLIKELY);
+
+    @Test
+    public void legacySettingsAreUsedWithoutRule() {
+        val settings = new ImgSafeConfig.Settings();
+        settings.setJudgingScore(10);
+        val rules = JudgingRules.compile(settings);
+        assertTrue(rules.isSensitive(file("user", "folder"), POSSIBLY_ADULT));
+
+        settings.setJudgingScore(15);
+        assertFalse(JudgingRules.compile(settings).isSensitive(file("user", "folder"), POSSIBLY_ADULT));
+    }
+
+    @Test
+    public void userOverrideWinsOverFolderOverride() {
+        val settings = new ImgSafeConfig.Settings();
+        settings.setJudgingRule("false");
+        settings.setJudgingOverrides(List.of(override("strict", null, "adult >= POSSIBLE"),
+                override(null, "nsfw", "true"), override("lenient", null, "false")));
+        val rules = JudgingRules.compile(settings);
+
+        assertFalse(rules.isSensitive(file("someone", null), POSSIBLY_ADULT));
+        assertTrue(rules.isSensitive(file("strict", null), POSSIBLY_ADULT));
+        assertTrue(rules.isSensitive(file("someone", "nsfw"), POSSIBLY_ADULT));
+        assertFalse(rules.isSensitive(file("lenient", "nsfw"), POSSIBLY_ADULT));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void overrideNeedsExactlyOneTarget() {
+        val settings = new ImgSafeConfig.Settings();
+        settings.setJudgingOverrides(List.of(override("user", "folder", "true")));
+        JudgingRules.compile(settings);
+    }
+
+    private static ImgSafeConfig.JudgingOverride override(String userId, String folderId, String rule) {
+        val override = new ImgSafeConfig.JudgingOverride();
+        override.setUserId(userId);
+        override.setFolderId(folderId);
+        override.setRule(rule);
+        return override;
+    }
+
+    private static File file(String userId, String folderId) {
+        return new File("file", null, "file.png", "image/png", null, 0, false, null, null, null, null, null, null,
+                folderId, null, userId);
+    }
+}
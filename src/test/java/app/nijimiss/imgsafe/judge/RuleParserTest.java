@@ -0,0 +1,85 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.judge;
+
+import app.nijimiss.imgsafe.api.vision.LikelinessLevel;
+import org.junit.Test;
+
+import static app.nijimiss.imgsafe.api.vision.LikelinessLevel.*;
+import static org.junit.Assert.*;
+
+public class RuleParserTest {
+    @Test
+    public void andBindsTighterThanOr() {
+        assertTrue(eval("true || false && false"));
+        assertFalse(eval("(true || false) && false"));
+        assertTrue(eval("false && false || true"));
+        assertFalse(eval("false && (false || true)"));
+
+        // adultのみLIKELY
+        LikelinessLevel[] levels = {LIKELY, VERY_UNLIKELY, VERY_UNLIKELY, VERY_UNLIKELY, VERY_UNLIKELY};
+        assertTrue(RuleParser.parse("adult >= LIKELY || racy >= LIKELY && violence >= LIKELY").test(levels));
+        assertFalse(RuleParser.parse("(adult >= LIKELY || racy >= LIKELY) && violence >= LIKELY").test(levels));
+    }
+
+    @Test
+    public void notBindsTighterThanAnd() {
+        assertFalse(eval("!false && false"));
+        assertTrue(eval("!(false && false)"));
+        assertTrue(eval("!!true"));
+        assertTrue(eval("((( !false )))"));
+    }
+
+    @Test
+    public void comparesNamesAndScores() {
+        LikelinessLevel[] levels = {POSSIBLE, UNKNOWN, VERY_UNLIKELY, VERY_LIKELY, UNLIKELY};
+        assertTrue(RuleParser.parse("adult == POSSIBLE").test(levels));
+        assertTrue(RuleParser.parse("adult == 10").test(levels));
+        assertTrue(RuleParser.parse("spoof == -1 && spoof == unknown").test(levels));
+        assertTrue(RuleParser.parse("Violence>LIKELY&&racy<POSSIBLE").test(levels));
+        assertTrue(RuleParser.parse("medical <= VERY_UNLIKELY && medical != UNLIKELY").test(levels));
+        assertFalse(RuleParser.parse("racy >= POSSIBLE").test(levels));
+    }
+
+    @Test
+    public void invalidRulesAreRejected() {
+        assertParseError("", "empty");
+        assertParseError("   ", "empty");
+        assertParseError("adult", "Comparison operator expected");
+        assertParseError("adult => LIKELY", "Comparison operator expected");
+        assertParseError("adult >= ", "Unexpected end of rule");
+        assertParseError("adult >= SOMETIMES", "Unknown likeliness level 'SOMETIMES'");
+        assertParseError("nsfw >= LIKELY", "Unknown judging item 'nsfw'");
+        assertParseError("(adult >= LIKELY", "')' expected");
+        assertParseError("adult >= LIKELY)", "Unexpected character ')'");
+        assertParseError("adult >= LIKELY &&", "Unexpected end of rule");
+        assertParseError("adult >= LIKELY & racy >= LIKELY", "Unexpected character '&' at position 16");
+    }
+
+    private static boolean eval(String rule) {
+        return RuleParser.parse(rule).test(new LikelinessLevel[5]);
+    }
+
+    private static void assertParseError(String rule, String message) {
+        try {
+            RuleParser.parse(rule);
+            fail("Accepted invalid rule: " + rule);
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.pipeline;
+
+import app.nijimiss.imgsafe.ImgSafeConfig;
+import app.nijimiss.imgsafe.api.misskey.MisskeyApiClient;
+import lombok.val;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FlagUpdaterTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private MockWebServer server;
+    private MisskeyApiClient client;
+    private final BlockingQueue<FlagUpdater.Outcome> outcomes = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        client = new MisskeyApiClient("http://" + server.getHostName() + ":" + server.getPort(), "token", new OkHttpClient());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void retriesAfterRateLimitAndServerErrors() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "1"));
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setResponseCode(204));
+        server.enqueue(new MockResponse().setResponseCode(400));
+
+        val updater = new FlagUpdater(client, new FlagRetryQueue(temp.newFile()), config(1, 3));
+        updater.start();
+
+        long started = System.currentTimeMillis();
+        updater.submit("a", outcomes::add);
+        assertEquals(FlagUpdater.Outcome.UPDATED, outcomes.poll(10, TimeUnit.SECONDS));
+        // Retry-Afterの間は送信しない
+        assertTrue(System.currentTimeMillis() - started >= 900);
+
+        updater.submit("b", outcomes::add);
+        assertEquals(FlagUpdater.Outcome.REJECTED, outcomes.poll(10, TimeUnit.SECONDS));
+        assertEquals(4, server.getRequestCount());
+        updater.shutdown();
+    }
+
+    @Test
+    public void deferredUpdatesAreSavedToRetryFile() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(500));
+        server.enqueue(new MockResponse().setResponseCode(500));
+
+        File retryFile = new File(temp.getRoot(), "retry.json");
+        val updater = new FlagUpdater(client, new FlagRetryQueue(retryFile), config(1, 2));
+        updater.start();
+
+        updater.submit("c", outcomes::add);
+        assertEquals(FlagUpdater.Outcome.DEFERRED, outcomes.poll(10, TimeUnit.SECONDS));
+        assertEquals(1, updater.getRetryQueueSize());
+
+        updater.shutdown();
+        assertTrue(Files.readString(retryFile.toPath()).contains("\"c\""));
+        assertEquals(1, new FlagRetryQueue(retryFile).size());
+    }
+
+    @Test
+    public void unexpectedExceptionsDoNotStopWorkers() throws Exception {
+        // 一部のファイルで実行時例外を投げるクライアント
+        val failing = new MisskeyApiClient("http://" + server.getHostName() + ":" + server.getPort(), "token", new OkHttpClient()) {
+            @Override
+            public UpdateResult requestFileUpdate(String fileId, boolean isSensitive) {
+                if (fileId.startsWith("bad"))
+                    throw new IllegalStateException("broken response");
+                return new UpdateResult(204, 0);
+            }
+        };
+        val retryQueue = new FlagRetryQueue(temp.newFile());
+        val updater = new FlagUpdater(failing, retryQueue, config(2, 3));
+        updater.start();
+
+        // ワーカー数より多く失敗させても、後続の要求は反映される
+        for (int i = 0; i < 5; i++)
+            updater.submit("bad" + i, outcomes::add);
+        for (int i = 0; i < 5; i++)
+            assertEquals(FlagUpdater.Outcome.DEFERRED, outcomes.poll(10, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 5; i++)
+            updater.submit("good" + i, outcomes::add);
+        for (int i = 0; i < 5; i++)
+            assertEquals(FlagUpdater.Outcome.UPDATED, outcomes.poll(10, TimeUnit.SECONDS));
+
+        assertEquals(0, updater.getQueueSize());
+        assertEquals(5, retryQueue.size());
+        updater.shutdown();
+    }
+
+    private static ImgSafeConfig.FlagUpdate config(int concurrency, int maxAttempts) {
+        val config = new ImgSafeConfig.FlagUpdate();
+        config.setConcurrency(concurrency);
+        config.setMaxAttempts(maxAttempts);
+        config.setInitialBackoffMillis(10);
+        config.setMaxBackoffMillis(5000);
+        return config;
+    }
+}
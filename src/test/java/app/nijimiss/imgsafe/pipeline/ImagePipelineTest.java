@@ -0,0 +1,257 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.pipeline;
+
+import app.nijimiss.imgsafe.ImgSafeConfig;
+import app.nijimiss.imgsafe.MockMisskeyServer;
+import app.nijimiss.imgsafe.QuotaClassifier;
+import app.nijimiss.imgsafe.api.ImageDownloader;
+import app.nijimiss.imgsafe.api.vision.ImageSource;
+import app.nijimiss.imgsafe.api.vision.QuotaExceededException;
+import app.nijimiss.imgsafe.api.vision.VisionQuota;
+import app.nijimiss.imgsafe.classifier.Classification;
+import app.nijimiss.imgsafe.judge.JudgingRules;
+import lombok.val;
+import okhttp3.OkHttpClient;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeFalse;
+
+public class ImagePipelineTest {
+    private static final int MAX_ATTEMPTS = 3;
+
+    @Test
+    public void transientFailuresAreRetried() throws Exception {
+        try (val server = new MockMisskeyServer()) {
+            server.failImage("b", 2);
+            val classifier = new QuotaClassifier(new VisionQuota(0));
+            val checkpoint = new AtomicReference<String>();
+            val pipeline = newPipeline(server, classifier, checkpoint);
+            try {
+                for (String fileId : new String[]{"a", "b", "c"})
+                    pipeline.submit(server.file(fileId));
+                pipeline.awaitIdle();
+
+                assertFalse(pipeline.isAborted());
+                assertEquals(3, server.getImageRequests("b"));
+                assertEquals(3, classifier.getClassified());
+                assertEquals("c", checkpoint.get());
+            } finally {
+                pipeline.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void persistentFailuresAreSkipped() throws Exception {
+        try (val server = new MockMisskeyServer()) {
+            server.failImage("b", Integer.MAX_VALUE);
+            val classifier = new QuotaClassifier(new VisionQuota(0));
+            val checkpoint = new AtomicReference<String>();
+            val pipeline = newPipeline(server, classifier, checkpoint);
+            try {
+                for (String fileId : new String[]{"a", "b", "c"})
+                    pipeline.submit(server.file(fileId));
+                pipeline.awaitIdle();
+
+                // 上限まで試行した後は飛ばし、他のファイルの検査とチェックポイントは止めない
+                assertFalse(pipeline.isAborted());
+                assertEquals(MAX_ATTEMPTS, server.getImageRequests("b"));
+                assertEquals(2, classifier.getClassified());
+                assertEquals("c", checkpoint.get());
+            } finally {
+                pipeline.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void quotaExhaustionStillAborts() throws Exception {
+        try (val server = new MockMisskeyServer()) {
+            val classifier = new QuotaClassifier(new VisionQuota(1));
+            val checkpoint = new AtomicReference<String>();
+            val pipeline = newPipeline(server, classifier, checkpoint);
+            try {
+                for (String fileId : new String[]{"a", "b", "c"})
+                    pipeline.submit(server.file(fileId));
+                pipeline.awaitIdle();
+
+                assertTrue(pipeline.isAborted());
+                assertThrows(QuotaExceededException.class, pipeline::throwIfFailed);
+                assertEquals(1, classifier.getClassified());
+            } finally {
+                pipeline.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void streamedFileInFlightIsNotPolledAgain() throws Exception {
+        try (val server = new MockMisskeyServer()) {
+            val classifying = new CountDownLatch(1);
+            val release = new CountDownLatch(1);
+            val classifier = new QuotaClassifier(new VisionQuota(0)) {
+                @Override
+                public List<Classification> classify(List<ImageSource> images) {
+                    classifying.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return super.classify(images);
+                }
+            };
+            val checkpoint = new AtomicReference<String>();
+            val pipeline = newPipeline(server, classifier, checkpoint);
+            try {
+                pipeline.submitUntracked(server.file("a"));
+                assertTrue(classifying.await(10, TimeUnit.SECONDS));
+
+                // ストリーミングで検査中のファイルにポーリングが追いついても、二重に検査しない
+                pipeline.submit(server.file("a"));
+                pipeline.submitUntracked(server.file("a"));
+                release.countDown();
+                pipeline.awaitIdle();
+                assertEquals("a", checkpoint.get());
+
+                long deadline = System.currentTimeMillis() + 10000;
+                while (classifier.getClassified() < 1 && System.currentTimeMillis() < deadline)
+                    Thread.sleep(10);
+                Thread.sleep(200);
+                assertEquals(1, classifier.getClassified());
+                assertEquals(1, server.getImageRequests("a"));
+            } finally {
+                pipeline.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void temporaryFilesAreDeletedOnShutdown() throws Exception {
+        try (val server = new MockMisskeyServer()) {
+            // 大きな画像と同じく、ダウンロードした画像を一時ファイルに退避する
+            List<Path> spooled = new CopyOnWriteArrayList<>();
+            val downloader = new ImageDownloader(new OkHttpClient()) {
+                @Override
+                public ImageSource download(String url) throws IOException {
+                    val path = Files.createTempFile("imgsafe-test-", ".img");
+                    try (val input = super.download(url).openStream()) {
+                        Files.copy(input, path, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    spooled.add(path);
+                    return ImageSource.ofFile(path);
+                }
+            };
+            val classifying = new CountDownLatch(1);
+            val classifier = new QuotaClassifier(new VisionQuota(0)) {
+                @Override
+                public List<Classification> classify(List<ImageSource> images) {
+                    classifying.countDown();
+                    try {
+                        new CountDownLatch(1).await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new IllegalStateException("interrupted");
+                }
+            };
+            val pipeline = new ImagePipeline(server.newClient(), classifier, null, downloader,
+                    JudgingRules.compile(new ImgSafeConfig.Settings()), 1, new ImgSafeConfig.Pipeline(), new CheckpointTracker(fileId -> {
+            }));
+            for (String fileId : new String[]{"a", "b", "c"})
+                pipeline.submitUntracked(server.file(fileId));
+            assertTrue(classifying.await(10, TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (spooled.size() < 3 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(3, spooled.size());
+
+            // 分類中のバッチとキューに残ったファイルの一時ファイルも削除する
+            pipeline.shutdown();
+            for (val path : spooled)
+                assertFalse(path.toString(), Files.exists(path));
+        }
+    }
+
+    @Test
+    public void onlyReadableThumbnailsAreUsed() throws Exception {
+        try (val server = new MockMisskeyServer()) {
+            server.setThumbnail("png", "png.png");
+            server.setThumbnail("webp", "webp.webp");
+            server.setThumbnail("unknown", "unknown");
+            val classifier = new QuotaClassifier(new VisionQuota(0));
+            val pipeline = newPipeline(server, classifier, new AtomicReference<>());
+            pipeline.setPreferThumbnail(true);
+            try {
+                for (String fileId : new String[]{"png", "webp", "unknown", "none"})
+                    pipeline.submit(server.file(fileId));
+                pipeline.awaitIdle();
+
+                // 読み込めるサムネイルのみ使い、拡張子がWebPのものは取得せず、読み込めないものは元の画像に切り替える
+                assertEquals(1, server.getThumbnailRequests("png.png"));
+                assertEquals(0, server.getImageRequests("png"));
+                assertEquals(0, server.getThumbnailRequests("webp.webp"));
+                assertEquals(1, server.getImageRequests("webp"));
+                assertEquals(1, server.getThumbnailRequests("unknown"));
+                assertEquals(1, server.getImageRequests("unknown"));
+                assertEquals(1, server.getImageRequests("none"));
+                assertEquals(4, classifier.getClassified());
+            } finally {
+                pipeline.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void virtualModeIsRejectedWithoutVirtualThreads() throws Exception {
+        assumeFalse(ImagePipeline.isVirtualThreadAvailable());
+        try (val server = new MockMisskeyServer()) {
+            val config = new ImgSafeConfig.Pipeline();
+            config.setExecutionMode(ExecutionMode.VIRTUAL);
+            try {
+                new ImagePipeline(server.newClient(), new QuotaClassifier(new VisionQuota(0)), null,
+                        new ImageDownloader(new OkHttpClient()), JudgingRules.compile(new ImgSafeConfig.Settings()), 16,
+                        config, new CheckpointTracker(fileId -> {
+                        }));
+                fail("Virtual mode was accepted without virtual threads.");
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("Java 21"));
+            }
+        }
+    }
+
+    private static ImagePipeline newPipeline(MockMisskeyServer server, QuotaClassifier classifier, AtomicReference<String> checkpoint) {
+        val config = new ImgSafeConfig.Pipeline();
+        config.setMaxAttempts(MAX_ATTEMPTS);
+        config.setInitialBackoffMillis(10);
+        // 1枚ずつ分類し、上限の確認を画像単位にする
+        return new ImagePipeline(server.newClient(), classifier, null, new ImageDownloader(new OkHttpClient()),
+                JudgingRules.compile(new ImgSafeConfig.Settings()), 1, config, new CheckpointTracker(checkpoint::set));
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.tenant;
+
+import app.nijimiss.imgsafe.ImgSafeConfig;
+import app.nijimiss.imgsafe.MockMisskeyServer;
+import app.nijimiss.imgsafe.QuotaClassifier;
+import app.nijimiss.imgsafe.api.ImageDownloader;
+import app.nijimiss.imgsafe.api.vision.VisionQuota;
+import app.nijimiss.imgsafe.judge.JudgingRules;
+import app.nijimiss.imgsafe.pipeline.BacklogDrainer;
+import app.nijimiss.imgsafe.pipeline.CheckpointTracker;
+import app.nijimiss.imgsafe.pipeline.ImagePipeline;
+import app.nijimiss.imgsafe.pipeline.VisionBacklog;
+import lombok.val;
+import okhttp3.OkHttpClient;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class FairQuotaSchedulerTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void activeTenantsShareByWeight() throws Exception {
+        val quota = new VisionQuota(100);
+        val scheduler = new FairQuotaScheduler(quota);
+        val light = scheduler.register("light", 1, null);
+        val heavy = scheduler.register("heavy", 3, null);
+
+        // 他のインスタンスが利用していない間は全体を使える
+        assertEquals(100, scheduler.getRemaining(light));
+        assertNotNull(scheduler.runAs(light, () -> quota.tryReserve(60)));
+        assertEquals(60, light.getUsage().getUsed());
+
+        // 両方が利用している場合は1:3に分ける
+        assertNotNull(scheduler.runAs(heavy, () -> quota.tryReserve(10)));
+        assertEquals(0, scheduler.getRemaining(light));
+        assertEquals(30, scheduler.getRemaining(heavy));
+        assertNull(scheduler.runAs(light, () -> quota.tryReserve(1)));
+        assertEquals(60, light.getUsage().getUsed());
+        assertEquals(70, quota.getUsed());
+    }
+
+    @Test
+    public void refundsAreAttributedToTenant() throws Exception {
+        val quota = new VisionQuota(100);
+        val scheduler = new FairQuotaScheduler(quota);
+        val tenant = scheduler.register("a", 1, null);
+
+        scheduler.runAs(tenant, () -> {
+            quota.refund(quota.tryReserve(5));
+            return null;
+        });
+        assertEquals(0, tenant.getUsage().getUsed());
+        assertEquals(0, quota.getUsed());
+
+        // インスタンスに属さない予約は全体の上限のみで判断する
+        assertNotNull(quota.tryReserve(100));
+        assertEquals(0, tenant.getUsage().getUsed());
+    }
+
+    @Test
+    public void inactiveTenantUsageIsExcludedFromPool() {
+        val quota = new VisionQuota(100);
+        val scheduler = new FairQuotaScheduler(quota);
+        // 前回の起動までに40使っていて、現在は検査していないインスタンス
+        val idle = scheduler.register("idle", 1, null);
+        idle.getUsage().tryReserve(40);
+        quota.tryReserve(40);
+        val active = scheduler.register("active", 1, null);
+        val other = scheduler.register("other", 1, null);
+        active.touch();
+        other.touch();
+
+        // 残りの60を利用中の2つで分け合う
+        assertEquals(30, scheduler.getRemaining(active));
+        assertEquals(30, scheduler.getRemaining(other));
+    }
+
+    @Test
+    public void backlogDrainStaysWithinTenantShare() throws Exception {
+        try (val server = new MockMisskeyServer()) {
+            val misskey = server.newClient();
+            val quota = new VisionQuota(100);
+            val scheduler = new FairQuotaScheduler(quota);
+            val tenant = scheduler.register("a", 1, null);
+            val other = scheduler.register("b", 1, null);
+            other.touch();
+
+            val classifier = new QuotaClassifier(quota);
+            val tenantClassifier = new TenantClassifier(classifier, scheduler, tenant);
+            val backlog = new VisionBacklog(new File(temp.getRoot(), "backlog.json"));
+            for (int i = 0; i < 200; i++)
+                backlog.add("file" + i);
+
+            val pipeline = new ImagePipeline(misskey, tenantClassifier, null, new ImageDownloader(new OkHttpClient()),
+                    JudgingRules.compile(new ImgSafeConfig.Settings()), 16, new ImgSafeConfig.Pipeline(),
+                    new CheckpointTracker(fileId -> {
+                    }));
+            pipeline.setBacklog(backlog);
+            val drainer = new BacklogDrainer(backlog, quota, tenantClassifier::getRemainingQuota, misskey, pipeline, 6000);
+            drainer.start(600000);
+            try {
+                long deadline = System.currentTimeMillis() + 20000;
+                while (!(drainer.isParked() && backlog.pendingCount() == backlog.size()) && System.currentTimeMillis() < deadline)
+                    Thread.sleep(50);
+                Thread.sleep(1500); // 上限に達した後は戻さないことを確認する
+
+                // 全体には残りがあっても、このインスタンスへの配分を使い切った時点で戻すのを止める
+                assertTrue(drainer.isParked());
+                // 重みが同じため、バックログが多くても全体の半分までしか使わない
+                assertEquals(50, tenant.getUsage().getUsed());
+                assertEquals(50, classifier.getClassified());
+                assertEquals(50, quota.getRemaining());
+                assertEquals(150, backlog.size());
+                assertNotNull(scheduler.runAs(other, () -> quota.tryReserve(50)));
+            } finally {
+                drainer.shutdown();
+                pipeline.shutdown();
+            }
+        }
+    }
+}
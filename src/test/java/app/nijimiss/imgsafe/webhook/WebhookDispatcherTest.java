@@ -0,0 +1,136 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.webhook;
+
+import app.nijimiss.imgsafe.ImgSafeConfig;
+import app.nijimiss.imgsafe.api.misskey.File;
+import app.nijimiss.imgsafe.api.misskey.Properties;
+import app.nijimiss.imgsafe.api.vision.LikelinessLevel;
+import app.nijimiss.imgsafe.api.vision.SafeSearchAnnotation;
+import lombok.val;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WebhookDispatcherTest {
+    private static final SafeSearchAnnotation RESULT = new SafeSearchAnnotation(LikelinessLevel.VERY_LIKELY,
+            LikelinessLevel.UNLIKELY, LikelinessLevel.UNLIKELY, LikelinessLevel.UNLIKELY, LikelinessLevel.UNLIKELY);
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private MockWebServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void coalescesAndRetriesServerErrors() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(500));
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setResponseCode(204));
+        server.enqueue(new MockResponse().setResponseCode(204));
+        val dispatcher = newDispatcher(config());
+        dispatcher.start();
+        try {
+            for (int i = 0; i < 7; i++)
+                dispatcher.dispatch(file(i), "user", RESULT);
+
+            // 最初の5件を1件の通知にまとめ、失敗した場合は同じ内容で再送する
+            for (int i = 0; i < 3; i++)
+                assertTrue(server.takeRequest(5, TimeUnit.SECONDS).getBody().readUtf8().contains("5 images"));
+            val last = server.takeRequest(5, TimeUnit.SECONDS).getBody().readUtf8();
+            assertTrue(last, last.contains("2 images") && last.contains("File ID:f5") && last.contains("File ID:f6"));
+            assertEquals(0, dispatcher.getRetryQueueSize());
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void unsentEventsArePersistedWhileEndpointIsDown() throws Exception {
+        for (int i = 0; i < 50; i++)
+            server.enqueue(new MockResponse().setResponseCode(500));
+        val retryFile = temp.newFile("retry.json");
+        val config = config();
+        config.setQueueCapacity(2);
+        config.setMaxAttempts(2);
+        val dispatcher = new WebhookDispatcher(new WebhookManager(server.url("/hook").toString(), "{\"content\":\"{fileId}\"}"),
+                new WebhookRetryQueue(retryFile), config);
+        dispatcher.start();
+
+        for (int i = 0; i < 10; i++)
+            dispatcher.dispatch(file(i), "user", RESULT);
+        Thread.sleep(1000);
+        dispatcher.shutdown();
+
+        // キューに入りきらなかった通知と送信できなかった通知は、全て再送用のファイルに残る
+        assertEquals(10, new WebhookRetryQueue(retryFile).size());
+    }
+
+    @Test
+    public void rejectedNotificationsAreNotRetried() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(400));
+        val dispatcher = newDispatcher(config());
+        dispatcher.start();
+        try {
+            dispatcher.dispatch(file(0), "user", RESULT);
+            assertNotNull(server.takeRequest(5, TimeUnit.SECONDS));
+            assertNull(server.takeRequest(500, TimeUnit.MILLISECONDS));
+            assertEquals(0, dispatcher.getRetryQueueSize());
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+
+    private WebhookDispatcher newDispatcher(ImgSafeConfig.Webhook config) throws Exception {
+        return new WebhookDispatcher(new WebhookManager(server.url("/hook").toString(), "{\"content\":\"{fileId}\"}"),
+                new WebhookRetryQueue(temp.newFile()), config);
+    }
+
+    private static ImgSafeConfig.Webhook config() {
+        val config = new ImgSafeConfig.Webhook();
+        config.setCoalesceWindowMillis(300);
+        config.setMaxDigestSize(5);
+        config.setInitialBackoffMillis(50);
+        config.setMaxBackoffMillis(200);
+        return config;
+    }
+
+    private static File file(int index) {
+        return new File("f" + index, OffsetDateTime.of(2023, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC), "n", "image/png", "m", 10,
+                false, null, new Properties(500, 500, 0), "https://example.com/" + index, null, null, null, null, null, "user");
+    }
+}
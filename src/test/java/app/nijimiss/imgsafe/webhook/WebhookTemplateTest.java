@@ -0,0 +1,109 @@
+/*
+ * Copyright 2023 NAFU_at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.nijimiss.imgsafe.webhook;
+
+import app.nijimiss.imgsafe.api.misskey.File;
+import app.nijimiss.imgsafe.api.misskey.Folder;
+import app.nijimiss.imgsafe.api.misskey.Properties;
+import app.nijimiss.imgsafe.api.vision.LikelinessLevel;
+import app.nijimiss.imgsafe.api.vision.SafeSearchAnnotation;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.val;
+import org.junit.Test;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WebhookTemplateTest {
+    // 同梱のconfig.yamlの既定値
+    private static final String DEFAULT_TEMPLATE = "{ \"content\": \"Images deemed sensitive were found.\\nFile ID:{fileId}\\nAuthor: {authorUser}\\nResult: {checkResult}\" }";
+    private static final SafeSearchAnnotation RESULT = new SafeSearchAnnotation(LikelinessLevel.VERY_LIKELY,
+            LikelinessLevel.UNLIKELY, LikelinessLevel.POSSIBLE, LikelinessLevel.LIKELY, LikelinessLevel.UNKNOWN);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Test
+    public void matchesPlainReplacement() {
+        // エスケープが不要な値では、従来の文字列置換と同じ結果になる
+        val file = file("9abcdef", "image.png", "https://example.com/files/a.png", null);
+        String expected = DEFAULT_TEMPLATE.replace("{fileId}", file.id())
+                .replace("{authorUser}", "user1")
+                .replace("{checkResult}", "adult=" + RESULT.adult() + ", spoof=" + RESULT.spoof() + ", medical=" + RESULT.medical()
+                        + ", violence=" + RESULT.violence() + ", racy=" + RESULT.racy());
+        assertEquals(expected, WebhookTemplate.compile(DEFAULT_TEMPLATE).render(WebhookEvent.of(file, "user1", RESULT)));
+    }
+
+    @Test
+    public void rendersEveryPlaceholderAsJsonString() throws Exception {
+        val file = file("id1", "a\"b\\c\n\t.png", "https://example.com/\"x\"", new Folder("folder1", null, "My \"Folder\"", null, 0, 0));
+        val template = WebhookTemplate.compile("{ \"content\": \"{fileId} {fileName} {fileUrl} {thumbnailUrl} {fileSize} {md5} "
+                + "{folderId} {folderName} {authorUser} {adult}/{spoof}/{medical}/{violence}/{racy}\" }");
+
+        val json = MAPPER.readTree(template.render(WebhookEvent.of(file, "user1", RESULT)));
+        assertEquals("id1 a\"b\\c\n\t.png https://example.com/\"x\" unknown 42 md5-id1 folder1 My \"Folder\" user1 "
+                + "VERY_LIKELY/UNLIKELY/POSSIBLE/LIKELY/UNKNOWN", json.get("content").asText());
+    }
+
+    @Test
+    public void controlCharactersAreEscaped() throws Exception {
+        StringBuilder name = new StringBuilder();
+        for (char c = 0; c < 0x20; c++)
+            name.append(c);
+        name.append("\"\\/ é 日本語");
+
+        val rendered = WebhookTemplate.compile("{\"name\":\"{fileName}\"}").render(WebhookEvent.of(file("id", name.toString(), null, null), null, null));
+        assertEquals(name.toString(), MAPPER.readTree(rendered).get("name").asText());
+        assertTrue(rendered.contains("\\u0001"));
+        assertTrue(rendered.contains("\\u001f"));
+    }
+
+    @Test
+    public void unknownPlaceholdersAndBracesAreKept() {
+        val event = WebhookEvent.of(file("id", "n", null, null), null, null);
+        assertEquals("{unknown} id", WebhookTemplate.compile("{unknown} {fileId}").render(event));
+        assertEquals("{{}}x{", WebhookTemplate.compile("{{}}x{").render(event));
+        assertEquals("{\"a\":{\"b\":\"id\"}}", WebhookTemplate.compile("{\"a\":{\"b\":\"{fileId}\"}}").render(event));
+        assertEquals("", WebhookTemplate.compile("").render(event));
+        // 判定結果がない場合
+        assertEquals("null UNKNOWN", WebhookTemplate.compile("{checkResult} {adult}").render(event));
+    }
+
+    @Test
+    public void digestJoinsEntries() throws Exception {
+        val manager = new WebhookManager("http://localhost/", DEFAULT_TEMPLATE);
+        val events = List.of(WebhookEvent.of(file("f1", "a", null, null), "user1", RESULT),
+                WebhookEvent.of(file("f2", "b\"", null, null), "user\"2", RESULT));
+
+        val content = MAPPER.readTree(manager.renderDigest(events)).get("content").asText();
+        val lines = content.split("\n");
+        assertEquals(3, lines.length);
+        assertEquals("2 images deemed sensitive were found.", lines[0]);
+        assertTrue(lines[1].startsWith("File ID:f1 Author: user1 Result: adult=VERY_LIKELY"));
+        assertTrue(lines[2].startsWith("File ID:f2 Author: user\"2 "));
+
+        manager.setDigestTemplate("{\"count\":{count},\"text\":\"{entries}\"}", "{fileId}");
+        assertEquals("{\"count\":2,\"text\":\"f1\\nf2\"}", manager.renderDigest(events));
+    }
+
+    private static File file(String id, String name, String url, Folder folder) {
+        return new File(id, OffsetDateTime.of(2023, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC), name, "image/png", "md5-" + id, 42,
+                false, null, new Properties(500, 500, 0), url, null, null, null,
+                folder != null ? folder.id() : null, folder, "user1");
+    }
+}